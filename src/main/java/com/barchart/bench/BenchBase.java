@@ -7,7 +7,8 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.caliper.CaliperRc;
+import com.google.caliper.Json;
+import com.google.caliper.Result;
 import com.google.caliper.Runner;
 import com.google.caliper.SimpleBenchmark;
 
@@ -52,8 +53,6 @@ public abstract class BenchBase extends SimpleBenchmark implements Bench {
 		final File reportDir = new File(buildDir.getAbsolutePath()
 				+ File.separator + "caliper-reports");
 
-		FileUtils.deleteDirectory(reportDir);
-
 		if (!reportDir.exists()) {
 			if (!reportDir.mkdirs()) {
 				fail("failed to create the Caliper report directory: "
@@ -61,16 +60,7 @@ public abstract class BenchBase extends SimpleBenchmark implements Bench {
 			}
 		}
 
-		final CaliperRc caliperrc = CaliperRc.INSTANCE;
-		if (caliperrc.getApiKey() == null || caliperrc.getPostUrl() == null) {
-			log.info("#");
-			log.info("# Cannot read the configuration properties from ${user.home}/.caliperrc");
-			log.info("# Please follow the instructions at:");
-			log.info("#    http://code.google.com/p/caliper/wiki/OnlineResults");
-			log.info("# to upload and browse the benchmark results.");
-			log.info("#");
-			fail("missing caliper config");
-		}
+		final long timeStart = System.currentTimeMillis();
 
 		final String[] runnerArgs = ArrayUtils.addAll(args, //
 				new String[] {//
@@ -83,6 +73,33 @@ public abstract class BenchBase extends SimpleBenchmark implements Bench {
 				});
 
 		new Runner().run(runnerArgs);
+
+		store(reportDir, timeStart);
+	}
+
+	/**
+	 * Keep caliper reports saved since start time in {@link MetricsStore}.
+	 */
+	protected void store(final File reportDir, final long timeStart) {
+		final File[] fileList = reportDir.listFiles();
+		if (fileList == null) {
+			return;
+		}
+		try {
+			final MetricsStore store = new MetricsStore();
+			for (final File file : fileList) {
+				if (!file.getName().endsWith(".json")
+						|| file.lastModified() < timeStart) {
+					continue;
+				}
+				final String json = FileUtils.readFileToString(file);
+				store.append(Json.getGsonInstance().fromJson(json,
+						Result.class));
+				log.info("stored {}", file.getName());
+			}
+		} catch (final Exception e) {
+			log.error("failed to store caliper reports", e);
+		}
 	}
 
 }
@@ -2,6 +2,8 @@ package com.barchart.bench;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class BenchUtil {
 
@@ -9,4 +11,34 @@ public class BenchUtil {
 		return Arrays.asList(values.split(","));
 	}
 
+	/**
+	 * Encode scenario variables as single line: name=value;name=value
+	 */
+	public static String encode(final Map<String, String> vars) {
+		final StringBuilder text = new StringBuilder();
+		for (final Map.Entry<String, String> entry : new TreeMap<String, String>(
+				vars).entrySet()) {
+			if (text.length() > 0) {
+				text.append(';');
+			}
+			text.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Decode scenario variables from {@link #encode(Map)}.
+	 */
+	public static Map<String, String> decode(final String text) {
+		final Map<String, String> vars = new TreeMap<String, String>();
+		if (text.length() == 0) {
+			return vars;
+		}
+		for (final String item : text.split(";")) {
+			final String[] pair = item.split("=", 2);
+			vars.put(pair[0], pair.length == 2 ? pair[1] : "");
+		}
+		return vars;
+	}
+
 }
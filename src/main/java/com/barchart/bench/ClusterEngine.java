@@ -0,0 +1,535 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Execute each scenario across cooperating {@link MetricsAgent} processes.
+ * <p>
+ * agents are set up in declared order, typically servers first, each one
+ * seeing properties published by earlier ones; coordinator estimates clock
+ * offset of each agent, starts all of them at a common instant, and merges
+ * their samples into one measure on a grid of mark periods from the common
+ * start, in coordinator clock: at each grid instant, rate of agents which
+ * measure it is summed and time and size are averaged, each agent taking its
+ * sample whose mark interval covers the instant; every agent metric and
+ * summary value is also kept under "agent.roleN." name
+ */
+public class ClusterEngine implements MetricsEngine {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(ClusterEngine.class);
+
+	/** agent connection timeout, millis */
+	private static final int TIMEOUT = 60 * 1000;
+
+	/** agent silence limit, covers set up and warm up, millis */
+	static final int READ_TIMEOUT = 10 * 60 * 1000;
+
+	/** clock probes per agent; the one with shortest round trip is used */
+	static final int CLOCK_PROBES = 16;
+
+	/** delay of common start after last set up, millis */
+	static final long START_DELAY = 200;
+
+	/**
+	 * Agent address and role.
+	 */
+	public static class Node {
+
+		private final String role;
+
+		private final InetSocketAddress address;
+
+		public Node(final String role, final InetSocketAddress address) {
+			this.role = role;
+			this.address = address;
+		}
+
+		/** scenario role, such as "server" or "client" */
+		public String role() {
+			return role;
+		}
+
+		/** agent address */
+		public InetSocketAddress address() {
+			return address;
+		}
+
+		/**
+		 * Parse "role@host:port".
+		 */
+		public static Node parse(final String text) {
+			final String[] pair = text.split("@", 2);
+			final int index = pair[1].lastIndexOf(':');
+			return new Node(pair[0], new InetSocketAddress(pair[1].substring(0,
+					index), Integer.parseInt(pair[1].substring(index + 1))));
+		}
+
+		@Override
+		public String toString() {
+			return role + "@" + address;
+		}
+
+	}
+
+	private final List<Node> nodes;
+
+	private final List<Process> processes = new ArrayList<Process>();
+
+	/**
+	 * Agents in set up order.
+	 */
+	public ClusterEngine(final List<Node> nodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("no agents");
+		}
+		this.nodes = new ArrayList<Node>(nodes);
+	}
+
+	/**
+	 * Agents in set up order, as "role@host:port".
+	 */
+	public ClusterEngine(final String... nodes) {
+		this(parse(nodes));
+	}
+
+	private static List<Node> parse(final String... texts) {
+		final List<Node> list = new ArrayList<Node>();
+		for (final String text : texts) {
+			list.add(Node.parse(text));
+		}
+		return list;
+	}
+
+	/**
+	 * Launch one local agent JVM per role, for testing; stop them with
+	 * {@link #close()}.
+	 */
+	public static ClusterEngine local(final List<String> jvmArgs,
+			final String... roles) throws IOException {
+		final List<Process> processes = new ArrayList<Process>();
+		final List<Node> nodes = new ArrayList<Node>();
+		try {
+			for (final String role : roles) {
+				final String java = System.getProperty("java.home")
+						+ File.separator + "bin" + File.separator + "java";
+				final List<String> command = new ArrayList<String>();
+				command.add(java);
+				command.addAll(jvmArgs);
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(MetricsAgent.class.getName());
+				command.add("localhost:0");
+				final ProcessBuilder builder = new ProcessBuilder(command);
+				builder.redirectErrorStream(true);
+				final Process process = builder.start();
+				processes.add(process);
+				nodes.add(new Node(role, announce(process, role)));
+			}
+		} catch (final IOException e) {
+			for (final Process process : processes) {
+				process.destroy();
+			}
+			throw e;
+		}
+		final ClusterEngine engine = new ClusterEngine(nodes);
+		engine.processes.addAll(processes);
+		return engine;
+	}
+
+	/** wait for agent port, then forward agent console into log */
+	private static InetSocketAddress announce(final Process process,
+			final String role) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith(MetricsAgent.ANNOUNCE)) {
+				break;
+			}
+			log.info("{} | {}", role, line);
+		}
+		if (line == null) {
+			throw new IOException("agent exited before announce");
+		}
+		final Thread thread = new Thread("agent console " + role) {
+			@Override
+			public void run() {
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						log.info("{} | {}", role, line);
+					}
+				} catch (final IOException e) {
+					log.debug("agent console closed", e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return new InetSocketAddress("localhost", Integer.parseInt(line
+				.substring(MetricsAgent.ANNOUNCE.length())));
+	}
+
+	/**
+	 * Agents in set up order.
+	 */
+	public List<Node> nodes() {
+		return nodes;
+	}
+
+	/**
+	 * Stop agent processes launched by {@link #local(List, String...)}.
+	 */
+	public void close() {
+		for (final Process process : processes) {
+			process.destroy();
+		}
+		processes.clear();
+	}
+
+	/**
+	 * Connection to one agent during a scenario.
+	 */
+	private static final class Link {
+
+		final Node node;
+		final String name;
+		final Socket socket;
+		final DataInputStream input;
+		final DataOutputStream output;
+
+		/** agent clock minus coordinator clock, nanos */
+		long offset;
+
+		/** agent samples in coordinator clock */
+		final MetricsMeasure measure = new MetricsMeasure();
+
+		Link(final Node node, final String name) throws IOException {
+			this.node = node;
+			this.name = name;
+			socket = new Socket();
+			socket.connect(node.address(), TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			input = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			output = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+			measure.shutdown();
+		}
+
+	}
+
+	@Override
+	public MetricsMeasure execute(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars) throws Exception {
+
+		final List<Link> links = new ArrayList<Link>();
+		final Map<String, Integer> roleCount = new TreeMap<String, Integer>();
+
+		try {
+
+			final Map<String, String> properties = new TreeMap<String, String>();
+
+			for (final Node node : nodes) {
+				final Integer count = roleCount.get(node.role());
+				roleCount.put(node.role(), count == null ? 1 : count + 1);
+				final Link link = new Link(node, node.role()
+						+ (count == null ? 0 : count));
+				links.add(link);
+				link.output.writeByte(MetricsAgent.SETUP);
+				link.output.writeUTF(klaz.getName());
+				link.output.writeUTF(node.role());
+				MetricsAgent.writeMap(link.output, vars);
+				MetricsAgent.writeMap(link.output, properties);
+				link.output.flush();
+				MetricsAgent.expect(link.input, MetricsAgent.READY);
+				properties.putAll(MetricsAgent.readMap(link.input));
+				log.debug("agent {} ready", link.name);
+			}
+
+			for (final Link link : links) {
+				link.offset = offset(link);
+				log.debug("agent {} clock offset {} ns", link.name,
+						link.offset);
+			}
+
+			final long start = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(START_DELAY);
+			for (final Link link : links) {
+				link.output.writeByte(MetricsAgent.START);
+				link.output.writeLong(start + link.offset);
+				link.output.flush();
+			}
+
+			receive(links);
+
+			return merge(links, vars, start, klaz.newInstance().markPeriod());
+
+		} finally {
+			for (final Link link : links) {
+				link.socket.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Agent clock offset from probe with shortest round trip.
+	 */
+	private static long offset(final Link link) throws IOException {
+		long bestTrip = Long.MAX_VALUE;
+		long bestOffset = 0;
+		for (int probe = 0; probe < CLOCK_PROBES; probe++) {
+			final long timeSend = System.nanoTime();
+			link.output.writeByte(MetricsAgent.CLOCK);
+			link.output.flush();
+			MetricsAgent.expect(link.input, MetricsAgent.CLOCK);
+			final long remote = link.input.readLong();
+			final long timeReceive = System.nanoTime();
+			final long trip = timeReceive - timeSend;
+			if (trip < bestTrip) {
+				bestTrip = trip;
+				bestOffset = remote - (timeSend + trip / 2);
+			}
+		}
+		return bestOffset;
+	}
+
+	/**
+	 * Read all agents concurrently until each one finishes.
+	 */
+	private static void receive(final List<Link> links) throws Exception {
+
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final List<Thread> threads = new ArrayList<Thread>();
+
+		for (final Link link : links) {
+			final Thread thread = new Thread("cluster " + link.name) {
+				@Override
+				public void run() {
+					try {
+						receive(link);
+					} catch (final Exception e) {
+						failure.compareAndSet(null, new Exception("agent "
+								+ link.name + " failure", e));
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+	}
+
+	private static void receive(final Link link) throws Exception {
+		while (true) {
+			final byte type = link.input.readByte();
+			switch (type) {
+			case ForkEngine.SAMPLE:
+				final String metric = link.input.readUTF();
+				final long time = link.input.readLong() - link.offset;
+				final double value = link.input.readDouble();
+				link.measure.record(metric, time, value);
+				continue;
+			case ForkEngine.SUMMARY:
+				final String key = ForkEngine.readText(link.input);
+				link.measure.summary().put(key,
+						ForkEngine.readText(link.input));
+				continue;
+			case ForkEngine.FINISH:
+				return;
+			case ForkEngine.FAILURE:
+				throw new Exception(ForkEngine.readText(link.input));
+			default:
+				throw new IOException("unknown record type " + type);
+			}
+		}
+	}
+
+	/**
+	 * Combine agent samples into one scenario measure.
+	 *
+	 * @param start
+	 *            common start, coordinator clock, nanos
+	 * @param period
+	 *            mark period, nanos
+	 */
+	private static MetricsMeasure merge(final List<Link> links,
+			final Map<String, String> vars, final long start, final long period) {
+
+		final MetricsMeasure result = new MetricsMeasure();
+		result.variables().putAll(vars);
+		result.shutdown();
+
+		final List<String> core = Arrays.asList(MetricsMeasure.RATE,
+				MetricsMeasure.TIME, MetricsMeasure.SIZE);
+
+		long finish = start;
+
+		for (final Link link : links) {
+			final String prefix = "agent." + link.name + ".";
+			final List<String> metrics = new ArrayList<String>(core);
+			for (final MetricsValue value : link.measure.metrics()) {
+				metrics.add(value.name());
+			}
+			for (final String metric : metrics) {
+				final MetricsSeries series = link.measure.series(metric);
+				for (int index = 0; index < series.size(); index++) {
+					result.record(prefix + metric, series.time(index),
+							series.value(index));
+					finish = Math.max(finish, series.time(index));
+				}
+			}
+			for (final Map.Entry<String, String> entry : link.measure
+					.summary().entrySet()) {
+				result.summary().put(prefix + entry.getKey(),
+						entry.getValue());
+			}
+			result.summary().put(prefix + "offset",
+					String.valueOf(link.offset));
+		}
+
+		/** agents warm up and mark on own schedule: combine by time */
+		final Cursor[][] cursors = new Cursor[links.size()][core.size()];
+		for (int index = 0; index < links.size(); index++) {
+			final Link link = links.get(index);
+			for (int slot = 0; slot < core.size(); slot++) {
+				final String metric = core.get(slot);
+				if (isMeasured(link, metric)) {
+					cursors[index][slot] = new Cursor(
+							link.measure.series(metric), period);
+				}
+			}
+		}
+		final double[] values = new double[links.size()];
+		final long limit = finish + period;
+		for (long time = start + period; time <= limit; time += period) {
+			boolean isCovered = false;
+			final double[] combined = new double[core.size()];
+			for (int slot = 0; slot < core.size(); slot++) {
+				int count = 0;
+				for (int index = 0; index < links.size(); index++) {
+					final Cursor cursor = cursors[index][slot];
+					if (cursor == null) {
+						continue;
+					}
+					final double value = cursor.valueAt(time);
+					if (!Double.isNaN(value)) {
+						values[count++] = value;
+					}
+				}
+				isCovered |= count > 0;
+				combined[slot] = combine(values, count, slot == 0);
+			}
+			if (!isCovered) {
+				continue;
+			}
+			result.record(MetricsMeasure.RATE, time, combined[0]);
+			result.record(MetricsMeasure.TIME, time, combined[1]);
+			result.record(MetricsMeasure.SIZE, time, combined[2]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Agent reported that it fed the core metric.
+	 */
+	private static boolean isMeasured(final Link link, final String metric) {
+		final String measured = link.measure.summary().get(
+				MetricsAgent.MEASURED);
+		if (measured == null) {
+			return false;
+		}
+		return Arrays.asList(measured.split(",")).contains(metric);
+	}
+
+	/**
+	 * Position in agent series; grid and series are both in time order, so
+	 * cursor only advances.
+	 */
+	private static final class Cursor {
+
+		final MetricsSeries series;
+		final long period;
+		final int size;
+		int index;
+
+		Cursor(final MetricsSeries series, final long period) {
+			this.series = series;
+			this.period = period;
+			size = series.size();
+		}
+
+		/**
+		 * Sample whose mark interval covers given time, or NaN; time must
+		 * not decrease between calls.
+		 */
+		double valueAt(final long time) {
+			while (index < size && series.time(index) < time) {
+				index++;
+			}
+			if (index == size) {
+				return Double.NaN;
+			}
+			if (index == 0 && series.time(0) - period >= time) {
+				return Double.NaN;
+			}
+			return series.value(index);
+		}
+
+	}
+
+	/**
+	 * Sum or mean of values of measuring agents; caliper placeholder 1.0 when
+	 * none measured.
+	 */
+	private static double combine(final double[] array, final int count,
+			final boolean isSum) {
+		if (count == 0) {
+			return 1.0;
+		}
+		double sum = 0;
+		for (int index = 0; index < count; index++) {
+			sum += array[index];
+		}
+		return isSum ? sum : sum / count;
+	}
+
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Echo server for {@link NetworkProbe}.
+ * <p>
+ * blocking channels; TCP uses a thread per connection, UDP a single thread
+ */
+public class EchoServer {
+
+	private final static Logger log = LoggerFactory.getLogger(EchoServer.class);
+
+	/** echo buffer size */
+	static final int BUFFER = 64 * 1024;
+
+	private final NetworkProbe.Protocol protocol;
+
+	private final Set<Closeable> channelSet = new HashSet<Closeable>();
+
+	private ServerSocketChannel server;
+
+	private DatagramChannel datagram;
+
+	public EchoServer(final NetworkProbe.Protocol protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Bound server address.
+	 */
+	public InetSocketAddress address() {
+		if (protocol == NetworkProbe.Protocol.TCP) {
+			return (InetSocketAddress) server.socket().getLocalSocketAddress();
+		} else {
+			return (InetSocketAddress) datagram.socket()
+					.getLocalSocketAddress();
+		}
+	}
+
+	/**
+	 * Bind and start serving.
+	 */
+	public synchronized InetSocketAddress start(final InetSocketAddress local)
+			throws IOException {
+		if (!channelSet.isEmpty()) {
+			throw new IllegalStateException("server is active");
+		}
+		if (protocol == NetworkProbe.Protocol.TCP) {
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(local);
+			channelSet.add(server);
+			daemon("echo accept " + address(), new Runnable() {
+				@Override
+				public void run() {
+					accept();
+				}
+			});
+		} else {
+			datagram = DatagramChannel.open();
+			datagram.socket().bind(local);
+			channelSet.add(datagram);
+			daemon("echo datagram " + address(), new Runnable() {
+				@Override
+				public void run() {
+					reflect();
+				}
+			});
+		}
+		return address();
+	}
+
+	/**
+	 * Stop serving and close all connections.
+	 */
+	public synchronized void stop() {
+		for (final Closeable channel : channelSet) {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				log.debug("close failure", e);
+			}
+		}
+		channelSet.clear();
+	}
+
+	private static void daemon(final String name, final Runnable task) {
+		final Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void accept() {
+		try {
+			while (true) {
+				final SocketChannel channel = server.accept();
+				channel.socket().setTcpNoDelay(true);
+				synchronized (this) {
+					channelSet.add(channel);
+				}
+				daemon("echo " + channel.socket().getRemoteSocketAddress(),
+						new Runnable() {
+							@Override
+							public void run() {
+								echo(channel);
+							}
+						});
+			}
+		} catch (final IOException e) {
+			log.debug("accept finished", e);
+		}
+	}
+
+	private void echo(final SocketChannel channel) {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+		try {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				buffer.clear();
+			}
+		} catch (final IOException e) {
+			log.debug("echo finished", e);
+		} finally {
+			synchronized (this) {
+				channelSet.remove(channel);
+			}
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				log.debug("close failure", e);
+			}
+		}
+	}
+
+	private void reflect() {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+		try {
+			while (true) {
+				buffer.clear();
+				final SocketAddress client = datagram.receive(buffer);
+				buffer.flip();
+				datagram.send(buffer, client);
+			}
+		} catch (final IOException e) {
+			log.debug("reflect finished", e);
+		}
+	}
+
+}
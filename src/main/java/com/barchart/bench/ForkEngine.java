@@ -0,0 +1,343 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Execute each scenario in a child JVM.
+ * <p>
+ * child streams {@link MetricsMeasure} samples back over loopback socket;
+ * parent assembles them into a measure ready for
+ * {@link MetricsMeasure#appendTo(com.google.caliper.Run)}
+ */
+public class ForkEngine implements MetricsEngine {
+
+	private final static Logger log = LoggerFactory.getLogger(ForkEngine.class);
+
+	static final byte SAMPLE = 1;
+	static final byte FINISH = 2;
+	static final byte FAILURE = 3;
+	static final byte SUMMARY = 4;
+
+	/** child connection timeout, millis */
+	private static final int TIMEOUT = 60 * 1000;
+
+	private final List<String> jvmArgs;
+
+	/**
+	 * Child JVM with default heap.
+	 */
+	public ForkEngine(final String... jvmArgs) {
+		this.jvmArgs = Arrays.asList(jvmArgs);
+	}
+
+	/**
+	 * Child JVM with fixed heap size, megabytes.
+	 */
+	public ForkEngine(final int heapSize, final String... jvmArgs) {
+		this.jvmArgs = new ArrayList<String>();
+		this.jvmArgs.add("-Xms" + heapSize + "m");
+		this.jvmArgs.add("-Xmx" + heapSize + "m");
+		this.jvmArgs.addAll(Arrays.asList(jvmArgs));
+	}
+
+	/**
+	 * Child JVM arguments.
+	 */
+	public List<String> jvmArgs() {
+		return jvmArgs;
+	}
+
+	/**
+	 * Child JVM launch command, under taskset or numactl when scenario
+	 * declares {@link MetricsBench#affinity(Map)}.
+	 */
+	protected List<String> command(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final int port) throws Exception {
+		final String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		final List<String> command = new ArrayList<String>();
+		final MetricsAffinity affinity = klaz.newInstance().affinity(vars);
+		if (affinity != null) {
+			command.addAll(affinity.command());
+		}
+		command.add(java);
+		command.addAll(jvmArgs);
+		if (command.contains("numactl")) {
+			/** child reports memory placement done by its launcher */
+			command.add("-D" + MetricsAffinity.MEMBIND + "="
+					+ affinity.memNode());
+		}
+		final File jfr = JfrProfile.defaultFolder();
+		if (jfr != null) {
+			command.add("-D" + JfrProfile.PROPERTY + "=" + jfr.getAbsolutePath());
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ForkEngine.class.getName());
+		command.add(String.valueOf(port));
+		command.add(klaz.getName());
+		for (final Map.Entry<String, String> entry : vars.entrySet()) {
+			command.add(entry.getKey() + "=" + entry.getValue());
+		}
+		return command;
+	}
+
+	@Override
+	public MetricsMeasure execute(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars) throws Exception {
+
+		final ServerSocket server = new ServerSocket(0, 1,
+				InetAddress.getByName("localhost"));
+
+		Process process = null;
+
+		try {
+
+			server.setSoTimeout(TIMEOUT);
+
+			final ProcessBuilder builder = new ProcessBuilder(command(klaz,
+					vars, server.getLocalPort()));
+			builder.redirectErrorStream(true);
+
+			process = builder.start();
+
+			pump(process, klaz.getSimpleName() + " " + vars);
+
+			final Socket socket = server.accept();
+
+			/** parent side measure only holds child samples */
+			final MetricsMeasure measure = new MetricsMeasure();
+			measure.variables().putAll(vars);
+			measure.shutdown();
+
+			/** child samples reach telemetry as they arrive */
+			final MetricsTelemetry telemetry = MetricsTelemetry.attached();
+			if (telemetry != null) {
+				measure.listeners().add(telemetry);
+			}
+
+			try {
+				receive(socket, measure);
+			} finally {
+				socket.close();
+			}
+
+			final int code = process.waitFor();
+			if (code != 0) {
+				throw new Exception("child exit code " + code + " for "
+						+ vars);
+			}
+
+			return measure;
+
+		} finally {
+			server.close();
+			if (process != null) {
+				process.destroy();
+			}
+		}
+
+	}
+
+	/**
+	 * Read child samples until finish.
+	 */
+	private void receive(final Socket socket, final MetricsMeasure measure)
+			throws Exception {
+		final DataInputStream input = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream()));
+		while (true) {
+			final byte type = input.readByte();
+			switch (type) {
+			case SAMPLE:
+				final String metric = input.readUTF();
+				final long time = input.readLong();
+				final double value = input.readDouble();
+				measure.record(metric, time, value);
+				continue;
+			case SUMMARY:
+				final String key = readText(input);
+				measure.summary().put(key, readText(input));
+				continue;
+			case FINISH:
+				return;
+			case FAILURE:
+				throw new Exception("child failure: " + readText(input));
+			default:
+				throw new IOException("unknown record type " + type);
+			}
+		}
+	}
+
+	/**
+	 * Forward child console into log.
+	 */
+	private void pump(final Process process, final String name) {
+		final Thread thread = new Thread("fork " + name) {
+			@Override
+			public void run() {
+				try {
+					final BufferedReader reader = new BufferedReader(
+							new InputStreamReader(process.getInputStream()));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						log.info("| {}", line);
+					}
+				} catch (final IOException e) {
+					log.debug("child console closed", e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Write text of any length as byte count and UTF-8 bytes;
+	 * {@link DataOutputStream#writeUTF(String)} is limited to 64 KB.
+	 */
+	static void writeText(final DataOutputStream output, final String text)
+			throws IOException {
+		final byte[] bytes = text.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * Read text of {@link #writeText(DataOutputStream, String)}.
+	 */
+	static String readText(final DataInputStream input) throws IOException {
+		final int size = input.readInt();
+		if (size < 0) {
+			throw new IOException("invalid text size " + size);
+		}
+		final byte[] bytes = new byte[size];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Stream samples to parent; flushed once per mark, after its last
+	 * {@link MetricsMeasure#SIZE} sample, rather than per sample, so the
+	 * measured process is not disturbed by a write per sample.
+	 */
+	static class Sender implements MetricsListener {
+
+		private final DataOutputStream output;
+
+		Sender(final DataOutputStream output) {
+			this.output = output;
+		}
+
+		@Override
+		public void sample(final MetricsMeasure measure, final String metric,
+				final long time, final double value) {
+			synchronized (output) {
+				try {
+					output.writeByte(SAMPLE);
+					output.writeUTF(metric);
+					output.writeLong(time);
+					output.writeDouble(value);
+					if (MetricsMeasure.SIZE.equals(metric)) {
+						output.flush();
+					}
+				} catch (final IOException e) {
+					log.error("failed to stream sample", e);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Child JVM entry: port, benchmark class, name=value scenario variables.
+	 */
+	public static void main(final String... args) throws Exception {
+
+		final int port = Integer.parseInt(args[0]);
+
+		final Class<? extends MetricsBench> klaz = Class.forName(args[1])
+				.asSubclass(MetricsBench.class);
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		for (int index = 2; index < args.length; index++) {
+			final String[] pair = args[index].split("=", 2);
+			vars.put(pair[0], pair[1]);
+		}
+
+		final Socket socket = new Socket();
+		socket.connect(new InetSocketAddress(InetAddress
+				.getByName("localhost"), port), TIMEOUT);
+
+		final DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+
+		/** child configured with own telemetry properties exports it too */
+		final MetricsTelemetry telemetry = klaz.newInstance().telemetry();
+		MetricsTelemetry.attach(telemetry);
+
+		int code = 0;
+		try {
+			final MetricsMeasure measure = new LocalEngine(new Sender(output))
+					.execute(klaz, vars);
+			synchronized (output) {
+				for (final Map.Entry<String, String> entry : measure.summary()
+						.entrySet()) {
+					output.writeByte(SUMMARY);
+					writeText(output, entry.getKey());
+					writeText(output, entry.getValue());
+				}
+				output.writeByte(FINISH);
+				output.flush();
+			}
+		} catch (final Throwable e) {
+			log.error("scenario failure", e);
+			final StringWriter trace = new StringWriter();
+			e.printStackTrace(new PrintWriter(trace));
+			synchronized (output) {
+				output.writeByte(FAILURE);
+				writeText(output, StringUtils.left(trace.toString(), 16 * 1024));
+				output.flush();
+			}
+			code = 1;
+		} finally {
+			socket.close();
+			if (telemetry != null) {
+				telemetry.close();
+			}
+		}
+
+		/** metrics library may leave non daemon threads */
+		System.exit(code);
+	}
+
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Garbage collection and allocation profile of a scenario.
+ * <p>
+ * allocation is summed over per thread allocation counters, sampled on each
+ * {@link #update()} at most every {@value #UPDATE_MILLIS} ms, so threads
+ * which terminate between updates lose their last allocations
+ * <p>
+ * collector and allocation counters are process wide, so they include
+ * concurrent scenarios of the same JVM; {@link MetricsRunner} labels such
+ * scenarios with "gc.scope" of "process"
+ */
+public class GcProfile implements NotificationListener {
+
+	private final static Logger log = LoggerFactory.getLogger(GcProfile.class);
+
+	/** summary key: "process" when counters include other scenarios */
+	static final String SCOPE = "gc.scope";
+
+	/** minimum interval of thread allocation sampling */
+	static final long UPDATE_MILLIS = 100;
+
+	private final List<GarbageCollectorMXBean> collectorList = ManagementFactory
+			.getGarbageCollectorMXBeans();
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	/** thread table, open addressing by thread id; reused between samples */
+	private long[] threadIds = new long[64];
+	private long[] threadBase = new long[64];
+	private long[] threadLast = new long[64];
+	private int threadCount;
+
+	private long gcCount;
+	private long gcTime;
+	private long pauseMax;
+	private long updateTime;
+	private boolean isListening;
+
+	/**
+	 * Thread allocation counters are available.
+	 */
+	private boolean isAllocationSupported() {
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return false;
+		}
+		final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!bean.isThreadAllocatedMemorySupported()) {
+			return false;
+		}
+		if (!bean.isThreadAllocatedMemoryEnabled()) {
+			bean.setThreadAllocatedMemoryEnabled(true);
+		}
+		return true;
+	}
+
+	private long collectionCount() {
+		long count = 0;
+		for (final GarbageCollectorMXBean bean : collectorList) {
+			count += Math.max(0, bean.getCollectionCount());
+		}
+		return count;
+	}
+
+	/** millis */
+	private long collectionTime() {
+		long time = 0;
+		for (final GarbageCollectorMXBean bean : collectorList) {
+			time += Math.max(0, bean.getCollectionTime());
+		}
+		return time;
+	}
+
+	/**
+	 * Begin or restart profile.
+	 */
+	public synchronized void start() {
+		gcCount = collectionCount();
+		gcTime = collectionTime();
+		pauseMax = 0;
+		if (!isListening) {
+			for (final GarbageCollectorMXBean bean : collectorList) {
+				if (bean instanceof NotificationEmitter) {
+					((NotificationEmitter) bean).addNotificationListener(this,
+							null, null);
+				}
+			}
+			isListening = true;
+		}
+		Arrays.fill(threadIds, 0);
+		threadCount = 0;
+		updateTime = 0;
+		sample(true);
+	}
+
+	/**
+	 * Sample thread allocation, rate limited.
+	 */
+	public synchronized void update() {
+		final long timeNow = System.currentTimeMillis();
+		if (timeNow - updateTime < UPDATE_MILLIS) {
+			return;
+		}
+		sample(false);
+	}
+
+	private void sample(final boolean isStart) {
+		updateTime = System.currentTimeMillis();
+		if (!isAllocationSupported()) {
+			return;
+		}
+		/** JDK allocates both arrays; thread table is reused */
+		final long[] idArray = threadBean.getAllThreadIds();
+		final long[] byteArray = ((com.sun.management.ThreadMXBean) threadBean)
+				.getThreadAllocatedBytes(idArray);
+		for (int index = 0; index < idArray.length; index++) {
+			if (byteArray[index] < 0) {
+				continue;
+			}
+			final int slot = slot(idArray[index]);
+			if (threadIds[slot] == 0) {
+				threadIds[slot] = idArray[index];
+				/** threads started later allocate from zero */
+				threadBase[slot] = isStart ? byteArray[index] : 0;
+				threadCount++;
+			}
+			threadLast[slot] = byteArray[index];
+		}
+	}
+
+	/** slot of thread id, free or taken; thread ids are positive */
+	private int slot(final long id) {
+		if (2 * (threadCount + 1) > threadIds.length) {
+			grow();
+		}
+		final int mask = threadIds.length - 1;
+		int slot = (int) (id * 0x9E3779B97F4A7C15L >>> 40) & mask;
+		while (threadIds[slot] != 0 && threadIds[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		final long[] ids = threadIds;
+		final long[] base = threadBase;
+		final long[] last = threadLast;
+		threadIds = new long[ids.length * 2];
+		threadBase = new long[ids.length * 2];
+		threadLast = new long[ids.length * 2];
+		threadCount = 0;
+		for (int index = 0; index < ids.length; index++) {
+			if (ids[index] == 0) {
+				continue;
+			}
+			final int slot = slot(ids[index]);
+			threadIds[slot] = ids[index];
+			threadBase[slot] = base[index];
+			threadLast[slot] = last[index];
+			threadCount++;
+		}
+	}
+
+	/**
+	 * Finish profile and report it into summary.
+	 *
+	 * @param operations
+	 *            number of measured operations, for allocation per operation
+	 */
+	public synchronized void finish(final long operations,
+			final Map<String, String> summary) {
+
+		sample(false);
+
+		if (isListening) {
+			for (final GarbageCollectorMXBean bean : collectorList) {
+				if (bean instanceof NotificationEmitter) {
+					try {
+						((NotificationEmitter) bean)
+								.removeNotificationListener(this);
+					} catch (final ListenerNotFoundException e) {
+						log.debug("listener not found", e);
+					}
+				}
+			}
+			isListening = false;
+		}
+
+		summary.put("gc.count", String.valueOf(collectionCount() - gcCount));
+		summary.put("gc.time", String.valueOf(collectionTime() - gcTime));
+		summary.put("gc.pause.max", String.valueOf(pauseMax));
+
+		long heapAfter = 0;
+		for (final MemoryPoolMXBean pool : ManagementFactory
+				.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP) {
+				continue;
+			}
+			final MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null) {
+				heapAfter += usage.getUsed();
+			}
+		}
+		summary.put("gc.heap.after", String.valueOf(heapAfter));
+
+		if (threadCount > 0) {
+			long allocated = 0;
+			for (int slot = 0; slot < threadIds.length; slot++) {
+				if (threadIds[slot] != 0) {
+					allocated += threadLast[slot] - threadBase[slot];
+				}
+			}
+			summary.put("alloc.bytes", String.valueOf(allocated));
+			if (operations > 0) {
+				summary.put("alloc.perOp",
+						String.valueOf(allocated / (double) operations));
+			}
+		}
+
+	}
+
+	/**
+	 * Track longest stop-the-world pause, millis.
+	 */
+	@Override
+	public void handleNotification(final Notification notification,
+			final Object handback) {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+				.equals(notification.getType())) {
+			return;
+		}
+		final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+				.from((CompositeData) notification.getUserData());
+		if (isConcurrent(info.getGcName())) {
+			return;
+		}
+		final long duration = info.getGcInfo().getDuration();
+		synchronized (this) {
+			pauseMax = Math.max(pauseMax, duration);
+		}
+	}
+
+	/** concurrent cycles run beside application, not a pause */
+	private static boolean isConcurrent(final String name) {
+		return name.contains("Concurrent") || name.contains("Cycles");
+	}
+
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flight recorder profile of a scenario.
+ * <p>
+ * records CPU samples, allocation samples and contended monitor enter while
+ * the scenario measures, restarted after warm up and finished before tear
+ * down, dumps the recording into a .jfr file, and summarizes top CPU methods,
+ * allocation sites and lock sites into scenario summary; events are process
+ * wide, so profile is refused for concurrent scenarios; flight recorder API is
+ * used by reflection, so profile is skipped on JVM without it
+ */
+public class JfrProfile {
+
+	private final static Logger log = LoggerFactory.getLogger(JfrProfile.class);
+
+	/**
+	 * System property: recording folder, or "true" for folder "jfr" next to
+	 * {@link MetricsStore#defaultFile()}.
+	 */
+	public static final String PROPERTY = "bench.jfr";
+
+	/** number of reported entries per hot spot kind */
+	static final int TOP = 5;
+
+	/** CPU sampling period, millis */
+	static final long SAMPLE_MILLIS = 10;
+
+	/** shortest reported monitor contention, millis */
+	static final long LOCK_MILLIS = 1;
+
+	/** frames of these packages are not application sites */
+	static final String[] SYSTEM = { "java.", "jdk.", "sun." };
+
+	/**
+	 * Flight recorder is present in this JVM.
+	 */
+	public static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Recording");
+			return true;
+		} catch (final Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Recording folder configured by system property {@value #PROPERTY}, or
+	 * null.
+	 */
+	public static File defaultFolder() {
+		final String path = System.getProperty(PROPERTY);
+		if (path == null || "false".equals(path)) {
+			return null;
+		}
+		if ("true".equals(path)) {
+			return new File(MetricsStore.defaultFile().getAbsoluteFile()
+					.getParentFile(), "jfr");
+		}
+		return new File(path);
+	}
+
+	private final File folder;
+
+	private Object recording;
+
+	private File file;
+
+	private String name;
+
+	public JfrProfile(final File folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * Recording file of the last profile.
+	 */
+	public File file() {
+		return file;
+	}
+
+	/**
+	 * Begin recording.
+	 *
+	 * @param name
+	 *            recording file name prefix, such as scenario
+	 * @return false when flight recorder is not available
+	 */
+	public boolean start(final String name) {
+		if (recording != null) {
+			throw new IllegalStateException("recording is active");
+		}
+		if (!isAvailable()) {
+			log.warn("flight recorder is not available");
+			return false;
+		}
+		try {
+			folder.mkdirs();
+			this.name = name;
+			file = new File(folder, name.replaceAll("[^\\w.-]+", "_") + "-"
+					+ System.currentTimeMillis() + ".jfr");
+			final Object target = Class.forName("jdk.jfr.Recording")
+					.newInstance();
+			enable(target, "jdk.ExecutionSample", "withPeriod", SAMPLE_MILLIS);
+			enable(target, "jdk.ObjectAllocationSample", null, 0);
+			enable(target, "jdk.ObjectAllocationInNewTLAB", null, 0);
+			enable(target, "jdk.JavaMonitorEnter", "withThreshold", LOCK_MILLIS);
+			invoke("jdk.jfr.Recording", target, "start");
+			recording = target;
+			return true;
+		} catch (final Exception e) {
+			log.error("failed to start recording", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Discard events so far, such as warm up, and begin new recording.
+	 */
+	public boolean restart() {
+		if (recording == null) {
+			return false;
+		}
+		final Object target = recording;
+		recording = null;
+		try {
+			invoke("jdk.jfr.Recording", target, "stop");
+			invoke("jdk.jfr.Recording", target, "close");
+		} catch (final Exception e) {
+			log.error("failed to discard recording", e);
+		}
+		return start(name);
+	}
+
+	/**
+	 * End recording, write file and report hot spots into summary.
+	 */
+	public void finish(final Map<String, String> summary) {
+		if (recording == null) {
+			return;
+		}
+		final Object target = recording;
+		recording = null;
+		try {
+			invoke("jdk.jfr.Recording", target, "stop");
+			final Object path = File.class.getMethod("toPath").invoke(file);
+			invoke("jdk.jfr.Recording", target, "dump",
+					new Class<?>[] { Class.forName("java.nio.file.Path") },
+					path);
+			invoke("jdk.jfr.Recording", target, "close");
+			summary.put("jfr.file", file.getAbsolutePath());
+			summarize(path, summary);
+		} catch (final Exception e) {
+			log.error("failed to finish recording", e);
+		}
+	}
+
+	private static void enable(final Object recording, final String event,
+			final String setting, final long millis) throws Exception {
+		final Object settings = invoke("jdk.jfr.Recording", recording,
+				"enable", new Class<?>[] { String.class }, event);
+		if (setting == null) {
+			return;
+		}
+		final Class<?> durationClass = Class.forName("java.time.Duration");
+		final Object duration = durationClass.getMethod("ofMillis",
+				long.class).invoke(null, millis);
+		invoke("jdk.jfr.EventSettings", settings, setting,
+				new Class<?>[] { durationClass }, duration);
+	}
+
+	/**
+	 * Aggregate events by top application frame.
+	 */
+	private static void summarize(final Object path,
+			final Map<String, String> summary) throws Exception {
+
+		final Map<String, Double> cpuMap = new HashMap<String, Double>();
+		final Map<String, Double> sampleMap = new HashMap<String, Double>();
+		final Map<String, Double> tlabMap = new HashMap<String, Double>();
+		final Map<String, Double> lockMap = new HashMap<String, Double>();
+
+		final List<?> events = (List<?>) Class
+				.forName("jdk.jfr.consumer.RecordingFile")
+				.getMethod("readAllEvents",
+						Class.forName("java.nio.file.Path")).invoke(null, path);
+
+		for (final Object event : events) {
+			final Object type = invoke("jdk.jfr.consumer.RecordedEvent", event,
+					"getEventType");
+			final String name = (String) invoke("jdk.jfr.EventType", type,
+					"getName");
+			if ("jdk.ExecutionSample".equals(name)) {
+				add(cpuMap, site(event), 1);
+			} else if ("jdk.ObjectAllocationSample".equals(name)) {
+				add(sampleMap, site(event), number(event, "weight"));
+			} else if ("jdk.ObjectAllocationInNewTLAB".equals(name)) {
+				add(tlabMap, site(event), number(event, "tlabSize"));
+			} else if ("jdk.JavaMonitorEnter".equals(name)) {
+				final Object duration = invoke(
+						"jdk.jfr.consumer.RecordedEvent", event, "getDuration");
+				add(lockMap, site(event),
+						(Long) invoke("java.time.Duration", duration, "toNanos"));
+			}
+		}
+
+		report(summary, "jfr.cpu.", cpuMap, true);
+		report(summary, "jfr.alloc.", sampleMap.isEmpty() ? tlabMap
+				: sampleMap, true);
+		report(summary, "jfr.lock.", lockMap, false);
+
+	}
+
+	/**
+	 * Top application stack frame as class.method, or top frame when all are
+	 * {@link #SYSTEM}, or "unknown".
+	 */
+	private static String site(final Object event) throws Exception {
+		final Object trace = invoke("jdk.jfr.consumer.RecordedEvent", event,
+				"getStackTrace");
+		if (trace == null) {
+			return "unknown";
+		}
+		final List<?> frames = (List<?>) invoke(
+				"jdk.jfr.consumer.RecordedStackTrace", trace, "getFrames");
+		if (frames.isEmpty()) {
+			return "unknown";
+		}
+		String top = null;
+		for (final Object frame : frames) {
+			final Object method = invoke("jdk.jfr.consumer.RecordedFrame",
+					frame, "getMethod");
+			final Object type = invoke("jdk.jfr.consumer.RecordedMethod",
+					method, "getType");
+			final String klaz = (String) invoke(
+					"jdk.jfr.consumer.RecordedClass", type, "getName");
+			final String site = klaz + "."
+					+ invoke("jdk.jfr.consumer.RecordedMethod", method,
+							"getName");
+			if (!isSystem(klaz)) {
+				return site;
+			}
+			if (top == null) {
+				top = site;
+			}
+		}
+		return top;
+	}
+
+	private static boolean isSystem(final String klaz) {
+		for (final String prefix : SYSTEM) {
+			if (klaz.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static double number(final Object event, final String field)
+			throws Exception {
+		final Boolean hasField = (Boolean) invoke(
+				"jdk.jfr.consumer.RecordedObject", event, "hasField",
+				new Class<?>[] { String.class }, field);
+		if (!hasField) {
+			return 0;
+		}
+		return (Long) invoke("jdk.jfr.consumer.RecordedObject", event,
+				"getLong", new Class<?>[] { String.class }, field);
+	}
+
+	private static void add(final Map<String, Double> map, final String site,
+			final double weight) {
+		final Double value = map.get(site);
+		map.put(site, value == null ? weight : value + weight);
+	}
+
+	/**
+	 * Top entries as "jfr.kind.N=share% site" or "jfr.kind.N=millis ms site".
+	 */
+	private static void report(final Map<String, String> summary,
+			final String prefix, final Map<String, Double> map,
+			final boolean isShare) {
+		double total = 0;
+		for (final Double value : map.values()) {
+			total += value;
+		}
+		if (total <= 0) {
+			return;
+		}
+		final List<Map.Entry<String, Double>> list = new ArrayList<Map.Entry<String, Double>>(
+				map.entrySet());
+		Collections.sort(list, new Comparator<Map.Entry<String, Double>>() {
+			@Override
+			public int compare(final Map.Entry<String, Double> one,
+					final Map.Entry<String, Double> two) {
+				return Double.compare(two.getValue(), one.getValue());
+			}
+		});
+		for (int index = 0; index < Math.min(TOP, list.size()); index++) {
+			final Map.Entry<String, Double> entry = list.get(index);
+			final String value;
+			if (isShare) {
+				value = String.format("%.1f%% %s", 100 * entry.getValue()
+						/ total, entry.getKey());
+			} else {
+				value = String.format("%.1fms %s", entry.getValue() / 1e6,
+						entry.getKey());
+			}
+			summary.put(prefix + (index + 1), value);
+		}
+	}
+
+	private static Object invoke(final String type, final Object target,
+			final String method) throws Exception {
+		return invoke(type, target, method, new Class<?>[0]);
+	}
+
+	/** call public method declared by public type */
+	private static Object invoke(final String type, final Object target,
+			final String method, final Class<?>[] types, final Object... args)
+			throws Exception {
+		return Class.forName(type).getMethod(method, types)
+				.invoke(target, args);
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.caliper.ConfiguredBenchmark;
+import com.google.caliper.SimpleBenchmark;
+
+/**
+ * JMH harness adapter for caliper {@link SimpleBenchmark} timeXXX(int reps)
+ * methods; used by {@link JmhEngine}.
+ * <p>
+ * state parameters select benchmark class, encoded scenario variables, and
+ * repetitions passed into each time method invocation
+ */
+@State(Scope.Benchmark)
+public class JmhAdapter {
+
+	/** benchmark class name */
+	@Param("")
+	public String benchClass;
+
+	/** scenario variables, see {@link BenchUtil#encode(java.util.Map)} */
+	@Param("")
+	public String benchVars;
+
+	/** time method repetitions per invocation */
+	@Param("1")
+	public int benchReps;
+
+	private ConfiguredBenchmark configured;
+
+	/** telemetry of forked JMH child, held until child exits */
+	private static MetricsTelemetry telemetry;
+
+	/**
+	 * Acquire telemetry once per child which has none attached yet.
+	 */
+	private static synchronized void attach(final MetricsBench bench) {
+		if (telemetry != null || MetricsTelemetry.attached() != null) {
+			return;
+		}
+		telemetry = bench.telemetry();
+		if (telemetry == null) {
+			return;
+		}
+		MetricsTelemetry.attach(telemetry);
+		Runtime.getRuntime().addShutdownHook(new Thread("telemetry close") {
+			@Override
+			public void run() {
+				telemetry.close();
+			}
+		});
+	}
+
+	/**
+	 * Inject parameters and call setUp().
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		final SimpleBenchmark bench = Class.forName(benchClass)
+				.asSubclass(SimpleBenchmark.class).newInstance();
+		if (bench instanceof MetricsBench) {
+			attach((MetricsBench) bench);
+		}
+		try {
+			configured = bench.createBenchmark(BenchUtil.decode(benchVars));
+		} finally {
+			/** tear down is skipped when set up fails */
+			if (configured == null && bench instanceof MetricsBench) {
+				final MetricsMeasure measure = ((MetricsBench) bench).measure();
+				if (measure != null) {
+					measure.shutdown();
+				}
+				((MetricsBench) bench).releaseLeases();
+			}
+		}
+	}
+
+	/**
+	 * Call timeXXX(reps).
+	 */
+	@Benchmark
+	public void measure(final Blackhole hole) throws Exception {
+		hole.consume(configured.run(benchReps));
+	}
+
+	/**
+	 * Call tearDown().
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		try {
+			configured.close();
+		} finally {
+			final Object bench = configured.getBenchmark();
+			if (bench instanceof MetricsBench) {
+				((MetricsBench) bench).releaseLeases();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.openjdk.jmh.util.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.caliper.Run;
+import com.google.caliper.SimpleBenchmark;
+
+/**
+ * Execute scenarios of existing caliper benchmarks under JMH harness.
+ * <p>
+ * each JMH iteration becomes one {@link MetricsMeasure} sample: operations
+ * per second as rate, nanoseconds per operation as time, where JMH score of
+ * one timeXXX(reps) invocation is divided by reps; in {@link Mode#SampleTime}
+ * latency percentiles, also per operation, go into the summary
+ * <p>
+ * JMH reports no iteration time stamps, so sample time is iteration index
+ * rather than nanoseconds of {@link MetricsMeasure#mark()}
+ * <p>
+ * {@link MetricsBench} time methods which run for a fixed duration should
+ * use {@link Mode#SingleShotTime}
+ */
+public class JmhEngine implements MetricsEngine {
+
+	private final static Logger log = LoggerFactory.getLogger(JmhEngine.class);
+
+	private final Mode mode;
+	private final int forks;
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final int reps;
+	private final String[] jvmArgs;
+	private long iterationTime;
+
+	/**
+	 * Throughput in one fork, 5 warmup and 5 measurement iterations.
+	 */
+	public JmhEngine() {
+		this(Mode.Throughput, 1, 5, 5, 1);
+	}
+
+	/**
+	 * @param reps
+	 *            repetitions passed into each timeXXX(int reps) invocation
+	 */
+	public JmhEngine(final Mode mode, final int forks,
+			final int warmupIterations, final int measurementIterations,
+			final int reps, final String... jvmArgs) {
+		if (mode == Mode.All) {
+			throw new IllegalArgumentException("single mode is required");
+		}
+		this.mode = mode;
+		this.forks = forks;
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.reps = reps;
+		this.jvmArgs = jvmArgs;
+	}
+
+	/**
+	 * Duration of each warmup and measurement iteration, millis; zero for JMH
+	 * default.
+	 */
+	public JmhEngine iterationTime(final long millis) {
+		this.iterationTime = millis;
+		return this;
+	}
+
+	@Override
+	public MetricsMeasure execute(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars) throws Exception {
+		return run(klaz, vars);
+	}
+
+	/**
+	 * Execute all parameter combinations of any caliper benchmark, such as
+	 * {@link BenchBase}.
+	 */
+	public Run execute(final Class<? extends SimpleBenchmark> klaz)
+			throws Exception {
+		final Run run = MetricsRunner.newRun(klaz.getName());
+		for (final Map<String, String> vars : MetricsRunner.scenarios(klaz
+				.newInstance())) {
+			log.info("JMH {}", vars);
+			run(klaz, vars).appendTo(run);
+		}
+		return run;
+	}
+
+	/**
+	 * Execute single scenario of any caliper benchmark.
+	 */
+	public MetricsMeasure run(final Class<? extends SimpleBenchmark> klaz,
+			final Map<String, String> vars) throws Exception {
+
+		final boolean isThroughput = mode == Mode.Throughput;
+
+		final ChainedOptionsBuilder builder = new OptionsBuilder()
+				.include(Pattern.quote(JmhAdapter.class.getName() + ".measure")
+						+ "$")
+				.param("benchClass", klaz.getName())
+				.param("benchVars", BenchUtil.encode(vars))
+				.param("benchReps", String.valueOf(reps)) //
+				.mode(mode) //
+				.timeUnit(isThroughput ? TimeUnit.SECONDS : TimeUnit.NANOSECONDS)
+				.forks(forks) //
+				.warmupIterations(warmupIterations) //
+				.measurementIterations(measurementIterations) //
+				.jvmArgsAppend(jvmArgs) //
+				.shouldFailOnError(true);
+		if (iterationTime > 0) {
+			builder.warmupTime(TimeValue.milliseconds(iterationTime));
+			builder.measurementTime(TimeValue.milliseconds(iterationTime));
+		}
+
+		final Collection<RunResult> resultList = new Runner(builder.build())
+				.run();
+
+		/** measure only holds results of JMH forks */
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.variables().putAll(vars);
+		measure.shutdown();
+
+		long index = 0;
+		for (final RunResult result : resultList) {
+			for (final BenchmarkResult bench : result.getBenchmarkResults()) {
+				for (final IterationResult iteration : bench
+						.getIterationResults()) {
+					final double score = iteration.getPrimaryResult()
+							.getScore();
+					if (score <= 0) {
+						continue;
+					}
+					/** score is per invocation of reps operations */
+					final double timeValue = isThroughput ? 1e9 / score / reps
+							: score / reps;
+					final double rateValue = 1e9 / timeValue;
+					/** iteration index, no time stamps in JMH results */
+					measure.record(MetricsMeasure.RATE, index, rateValue);
+					measure.record(MetricsMeasure.TIME, index, timeValue);
+					index++;
+				}
+			}
+			summarize(result, measure.summary());
+		}
+
+		return measure;
+	}
+
+	private void summarize(final RunResult result,
+			final Map<String, String> summary) {
+		final Statistics stats = result.getPrimaryResult().getStatistics();
+		summary.put("jmh.mode", mode.toString());
+		summary.put("jmh.score", String.valueOf(stats.getMean()));
+		summary.put("jmh.unit", result.getPrimaryResult().getScoreUnit());
+		summary.put("jmh.reps", String.valueOf(reps));
+		if (mode != Mode.SampleTime) {
+			return;
+		}
+		summary.put("latency.count", String.valueOf(stats.getN()));
+		summary.put("latency.mean", String.valueOf(stats.getMean() / reps));
+		for (int index = 0; index < LatencyRecorder.PERCENTILES.length; index++) {
+			final double value = stats
+					.getPercentile(LatencyRecorder.PERCENTILES[index]);
+			summary.put("latency." + LatencyRecorder.PERCENTILE_NAMES[index],
+					String.valueOf((long) (value / reps)));
+		}
+		summary.put("latency.max",
+				String.valueOf((long) (stats.getMax() / reps)));
+	}
+
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import com.yammer.metrics.core.Timer;
+
+/**
+ * High dynamic range latency recorder.
+ * <p>
+ * keeps every sample in bounded memory, in nanoseconds, with 3 significant
+ * digits; each sample also updates the {@link MetricsMeasure#time()} timer;
+ * each {@link MetricsStripe} records into own single writer recorder, merged
+ * into accumulated histogram on {@link #merge()}
+ */
+public class LatencyRecorder {
+
+	/** reported percentiles */
+	static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	/** reported percentile names */
+	static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99",
+			"p999", "p9999" };
+
+	private static final int DIGITS = 3;
+
+	private final Recorder recorder = new Recorder(DIGITS);
+
+	private final Histogram total = new Histogram(DIGITS);
+
+	private Histogram interval;
+
+	private final Timer timer;
+
+	private volatile long expectedInterval;
+
+	private final List<Stripe> stripes = new CopyOnWriteArrayList<Stripe>();
+
+	/**
+	 * Recorder of a single thread.
+	 */
+	final class Stripe {
+
+		private final SingleWriterRecorder recorder = new SingleWriterRecorder(
+				DIGITS);
+
+		/** recycled by owning recorder only */
+		private Histogram interval;
+
+		/**
+		 * Record into histogram only, from owning thread.
+		 */
+		void sample(final long nanos) {
+			final long expected = expectedInterval;
+			if (expected > 0) {
+				recorder.recordValueWithExpectedInterval(nanos, expected);
+			} else {
+				recorder.recordValue(nanos);
+			}
+		}
+
+		private void drain() {
+			interval = recorder.getIntervalHistogram(interval);
+			total.add(interval);
+		}
+
+	}
+
+	/**
+	 * @param timer
+	 *            also updated by each sample, or null
+	 */
+	LatencyRecorder(final Timer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Expected interval between samples, nanoseconds, for coordinated omission
+	 * correction; zero disables correction.
+	 */
+	public long expectedInterval() {
+		return expectedInterval;
+	}
+
+	/**
+	 * Enable coordinated omission correction for fixed rate workloads.
+	 */
+	public void expectedInterval(final long nanos) {
+		if (nanos < 0) {
+			throw new IllegalArgumentException("negative interval");
+		}
+		this.expectedInterval = nanos;
+	}
+
+	/**
+	 * Operation start time stamp.
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record operation started at {@link #start()}.
+	 */
+	public void stop(final long start) {
+		record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Record single latency sample, nanoseconds.
+	 */
+	public void record(final long nanos) {
+		if (nanos < 0) {
+			return;
+		}
+		if (timer != null) {
+			timer.update(nanos, TimeUnit.NANOSECONDS);
+		}
+		sample(nanos);
+	}
+
+	private void sample(final long nanos) {
+		final long expected = expectedInterval;
+		if (expected > 0) {
+			recorder.recordValueWithExpectedInterval(nanos, expected);
+		} else {
+			recorder.recordValue(nanos);
+		}
+	}
+
+	/**
+	 * New recorder for the calling thread, such as of {@link MetricsStripe}.
+	 */
+	Stripe stripe() {
+		final Stripe stripe = new Stripe();
+		stripes.add(stripe);
+		return stripe;
+	}
+
+	/**
+	 * Fold shared and per thread recorders into accumulated histogram.
+	 */
+	synchronized void merge() {
+		interval = recorder.getIntervalHistogram(interval);
+		total.add(interval);
+		for (final Stripe stripe : stripes) {
+			stripe.drain();
+		}
+	}
+
+	/**
+	 * Accumulated histogram of all samples recorded so far.
+	 */
+	public synchronized Histogram histogram() {
+		merge();
+		return total;
+	}
+
+	/**
+	 * Discard samples recorded so far.
+	 */
+	public synchronized void reset() {
+		merge();
+		total.reset();
+	}
+
+	/**
+	 * Report percentile spectrum into scenario summary, nanoseconds.
+	 */
+	public void summarize(final Map<String, String> summary) {
+		summarize(summary, "latency.");
+	}
+
+	/**
+	 * Report percentile spectrum under given key prefix.
+	 */
+	public synchronized void summarize(final Map<String, String> summary,
+			final String prefix) {
+		final Histogram histogram = histogram();
+		if (histogram.getTotalCount() == 0) {
+			return;
+		}
+		summary.put(prefix + "count", String.valueOf(histogram.getTotalCount()));
+		summary.put(prefix + "mean", String.valueOf(histogram.getMean()));
+		for (int index = 0; index < PERCENTILES.length; index++) {
+			final long value = histogram.getValueAtPercentile(PERCENTILES[index]);
+			summary.put(prefix + PERCENTILE_NAMES[index],
+					String.valueOf(value));
+		}
+		summary.put(prefix + "max", String.valueOf(histogram.getMaxValue()));
+		summary.put(prefix + MetricsRegression.QUANTILES,
+				MetricsRegression.sketch(new MetricsRegression.Quantile() {
+					@Override
+					public double value(final double percentile) {
+						return histogram.getValueAtPercentile(percentile);
+					}
+				}, histogram.getTotalCount()));
+	}
+
+}
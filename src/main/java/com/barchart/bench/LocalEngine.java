@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.caliper.ConfiguredBenchmark;
+
+/**
+ * Execute scenario inside current JVM on a fresh benchmark instance.
+ */
+public class LocalEngine implements MetricsEngine {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(LocalEngine.class);
+
+	/**
+	 * Step between set up and workload, such as cluster start barrier.
+	 */
+	interface Ready {
+
+		void ready(MetricsBench bench) throws Exception;
+
+	}
+
+	private final MetricsListener[] listeners;
+
+	public LocalEngine(final MetricsListener... listeners) {
+		this.listeners = listeners;
+	}
+
+	@Override
+	public MetricsMeasure execute(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars) throws Exception {
+		return execute(klaz.newInstance(), vars, klaz.getSimpleName() + "-"
+				+ BenchUtil.encode(vars), null);
+	}
+
+	/**
+	 * Scenario lifecycle, shared with {@link MetricsAgent}: place process,
+	 * set up, run profiled workload, tear down; tear down is still attempted
+	 * after failure, and measure is shut down and leases are released however
+	 * scenario ends.
+	 *
+	 * @param name
+	 *            flight recorder name of scenario
+	 * @param ready
+	 *            step after set up, or null
+	 */
+	MetricsMeasure execute(final MetricsBench booter,
+			final Map<String, String> vars, final String name,
+			final Ready ready) throws Exception {
+
+		/** place whole process, before set up allocates */
+		final MetricsAffinity affinity = booter.affinity(vars);
+		final String previous = affinity == null ? null : affinity.apply();
+
+		ConfiguredBenchmark runner = null;
+
+		try {
+
+			/** call setUp() */
+			runner = booter.createBenchmark(vars);
+
+			final MetricsBench bench = (MetricsBench) runner.getBenchmark();
+			final MetricsMeasure measure = bench.measure();
+			measure.variables().putAll(vars);
+			for (final MetricsListener listener : listeners) {
+				measure.listeners().add(listener);
+			}
+
+			if (ready != null) {
+				ready.ready(bench);
+			}
+
+			bench.recordStart(name);
+
+			try {
+
+				/** call timeXXX() */
+				runner.run(0);
+
+			} finally {
+				/** profile excludes tear down */
+				bench.recordFinish();
+			}
+
+			/** call tearDown() */
+			final ConfiguredBenchmark closing = runner;
+			runner = null;
+			closing.close();
+
+			if (affinity != null) {
+				affinity.summarize(measure.summary());
+			}
+
+			return measure;
+
+		} finally {
+			if (runner != null) {
+				try {
+					runner.close();
+				} catch (final Exception e) {
+					log.debug("tear down failure", e);
+				}
+			}
+			/** tear down is skipped when set up fails */
+			final MetricsMeasure measure = booter.measure();
+			if (measure != null) {
+				/** removes JMX listeners of its GC profile */
+				measure.shutdown();
+			}
+			booter.releaseLeases();
+			if (previous != null) {
+				MetricsAffinity.pin(previous);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CPU and NUMA placement of a scenario, Linux only.
+ * <p>
+ * declared by scenario variable {@value #VARIABLE}, one of:
+ * <ul>
+ * <li>"none" - no placement
+ * <li>"cpu:0-3,8" - CPU list, by taskset
+ * <li>"node:0" - CPUs and memory of NUMA node, by numactl
+ * <li>"node:0/mem:1" - CPUs of one node and memory of another, by numactl
+ * </ul>
+ * forked JVM is launched under taskset or numactl; local scenario pins all
+ * threads of current process and restores previous affinity when done, but
+ * memory stays where it is, which summary records as not applied; without
+ * numactl, node placement falls back to CPUs of the node
+ */
+public class MetricsAffinity {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsAffinity.class);
+
+	/** scenario variable which declares placement */
+	public static final String VARIABLE = "affinity";
+
+	/** system property of child launched with memory binding: its node */
+	static final String MEMBIND = "bench.affinity.membind";
+
+	/** NUMA topology of this host */
+	static final String NODE_FOLDER = "/sys/devices/system/node";
+
+	/**
+	 * Placement of specification, or null for none.
+	 */
+	public static MetricsAffinity parse(final String spec) {
+		if (spec == null || spec.trim().length() == 0
+				|| "none".equals(spec.trim())) {
+			return null;
+		}
+		final String text = spec.trim();
+		if (text.startsWith("cpu:")) {
+			return new MetricsAffinity(text, text.substring(4), -1, -1);
+		}
+		if (text.startsWith("node:")) {
+			final String[] parts = text.substring(5).split("/mem:", 2);
+			final int cpuNode = Integer.parseInt(parts[0]);
+			final int memNode = parts.length == 2 ? Integer.parseInt(parts[1])
+					: cpuNode;
+			return new MetricsAffinity(text, nodeCpus(cpuNode), cpuNode,
+					memNode);
+		}
+		throw new IllegalArgumentException("invalid affinity " + spec);
+	}
+
+	/**
+	 * Placement tools are present: Linux with taskset.
+	 */
+	public static boolean isSupported() {
+		return System.getProperty("os.name").toLowerCase().contains("linux")
+				&& which("taskset") != null;
+	}
+
+	/**
+	 * CPU list of NUMA node, such as "0-7,16-23".
+	 */
+	public static String nodeCpus(final int node) {
+		final File file = new File(NODE_FOLDER, "node" + node + "/cpulist");
+		try {
+			return FileUtils.readFileToString(file, "UTF-8").trim();
+		} catch (final IOException e) {
+			throw new IllegalArgumentException("unknown NUMA node " + node, e);
+		}
+	}
+
+	/**
+	 * Host topology for result environment: CPU count and CPU list of each
+	 * NUMA node.
+	 */
+	public static Map<String, String> topology() {
+		final Map<String, String> map = new TreeMap<String, String>();
+		map.put("host.cpus",
+				String.valueOf(Runtime.getRuntime().availableProcessors()));
+		final File[] nodes = new File(NODE_FOLDER).listFiles();
+		if (nodes != null) {
+			for (final File node : nodes) {
+				if (!node.getName().matches("node\\d+")) {
+					continue;
+				}
+				try {
+					map.put("host.numa." + node.getName(), FileUtils
+							.readFileToString(new File(node, "cpulist"),
+									"UTF-8").trim());
+				} catch (final IOException e) {
+					log.debug("no cpu list", e);
+				}
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * CPU list of current process, or null when unknown.
+	 */
+	public static String current() {
+		if (!isSupported()) {
+			return null;
+		}
+		try {
+			final String text = execute(Arrays.asList("taskset", "-p", "-c",
+					pid()));
+			return text.substring(text.lastIndexOf(':') + 1).trim();
+		} catch (final IOException e) {
+			log.warn("failed to read affinity", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Pin all threads of current process to CPU list.
+	 */
+	public static void pin(final String cpus) throws IOException {
+		execute(Arrays.asList("taskset", "-a", "-p", "-c", cpus, pid()));
+	}
+
+	private final String spec;
+
+	private final String cpus;
+
+	private final int cpuNode;
+
+	private final int memNode;
+
+	MetricsAffinity(final String spec, final String cpus, final int cpuNode,
+			final int memNode) {
+		this.spec = spec;
+		this.cpus = cpus;
+		this.cpuNode = cpuNode;
+		this.memNode = memNode;
+	}
+
+	/** declared specification */
+	public String spec() {
+		return spec;
+	}
+
+	/** CPU list */
+	public String cpus() {
+		return cpus;
+	}
+
+	/** NUMA node of CPUs, or -1 */
+	public int cpuNode() {
+		return cpuNode;
+	}
+
+	/** NUMA node of memory, or -1 */
+	public int memNode() {
+		return memNode;
+	}
+
+	/**
+	 * Command prefix which launches process with this placement; empty when
+	 * placement is not supported.
+	 */
+	public List<String> command() {
+		final List<String> list = new ArrayList<String>();
+		if (cpuNode >= 0 && which("numactl") != null) {
+			list.add("numactl");
+			list.add("--cpunodebind=" + cpuNode);
+			list.add("--membind=" + memNode);
+		} else if (isSupported()) {
+			list.add("taskset");
+			list.add("-c");
+			list.add(cpus);
+		} else {
+			log.warn("affinity is not supported: {}", spec);
+		}
+		return list;
+	}
+
+	/**
+	 * Pin current process; memory placement of running process is not
+	 * changed.
+	 *
+	 * @return previous CPU list to restore, or null when not pinned
+	 */
+	public String apply() throws IOException {
+		if (!isSupported()) {
+			log.warn("affinity is not supported: {}", spec);
+			return null;
+		}
+		if (memNode >= 0 && !isMemoryBound()) {
+			log.warn("memory placement {} needs forked JVM, CPUs only", spec);
+		}
+		final String previous = current();
+		pin(cpus);
+		log.debug("pinned {} to {}", spec, cpus);
+		return previous;
+	}
+
+	/**
+	 * Report placement into scenario summary.
+	 */
+	public void summarize(final Map<String, String> summary) {
+		summary.put("affinity.spec", spec);
+		summary.put("affinity.cpus", cpus);
+		if (cpuNode >= 0) {
+			summary.put("affinity.node", String.valueOf(cpuNode));
+			summary.put("affinity.mem", String.valueOf(memNode));
+			summary.put("affinity.mem.applied",
+					String.valueOf(isMemoryBound()));
+		}
+		final String current = current();
+		summary.put("affinity.applied", current == null ? "false" : current);
+	}
+
+	/** process was launched with memory binding of this placement */
+	private boolean isMemoryBound() {
+		return String.valueOf(memNode).equals(System.getProperty(MEMBIND));
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+
+	private static String pid() {
+		return ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+	}
+
+	/** executable in search path, or null */
+	private static File which(final String name) {
+		final String path = System.getenv("PATH");
+		if (path == null) {
+			return null;
+		}
+		for (final String folder : path.split(File.pathSeparator)) {
+			final File file = new File(folder, name);
+			if (file.canExecute()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/** run command, provide its output */
+	private static String execute(final List<String> command)
+			throws IOException {
+		final Process process = new ProcessBuilder(command)
+				.redirectErrorStream(true).start();
+		final String text = IOUtils.toString(process.getInputStream());
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException(command + " failed: " + text.trim());
+			}
+		} catch (final InterruptedException e) {
+			throw new IOException("interrupted " + command, e);
+		}
+		return text;
+	}
+
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cluster agent: executes scenarios for {@link ClusterEngine}.
+ * <p>
+ * one coordinator connection per scenario: set up with role and properties
+ * published by earlier agents, answer clock probes, wait for common start
+ * time, then run and stream samples back, as {@link ForkEngine} child does
+ */
+public class MetricsAgent {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsAgent.class);
+
+	static final byte SETUP = 5;
+	static final byte READY = 6;
+	static final byte CLOCK = 7;
+	static final byte START = 8;
+
+	/** summary key: comma separated core metrics which agent measured */
+	static final String MEASURED = "measured";
+
+	/** console line announcing agent port */
+	static final String ANNOUNCE = "agent port ";
+
+	private final ServerSocket server;
+
+	public MetricsAgent(final InetSocketAddress address) throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(address);
+	}
+
+	/**
+	 * Bound agent address.
+	 */
+	public InetSocketAddress address() {
+		return (InetSocketAddress) server.getLocalSocketAddress();
+	}
+
+	/**
+	 * Serve coordinator connections until closed.
+	 */
+	public void serve() {
+		try {
+			while (true) {
+				final Socket socket = server.accept();
+				final Thread thread = new Thread("agent "
+						+ socket.getRemoteSocketAddress()) {
+					@Override
+					public void run() {
+						try {
+							execute(socket);
+						} catch (final Exception e) {
+							log.error("coordinator failure", e);
+						} finally {
+							try {
+								socket.close();
+							} catch (final IOException e) {
+								log.debug("close failure", e);
+							}
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (final IOException e) {
+			log.debug("agent finished", e);
+		}
+	}
+
+	/**
+	 * Stop serving.
+	 */
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void execute(final Socket socket) throws Exception {
+
+		socket.setTcpNoDelay(true);
+
+		final DataInputStream input = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+
+		try {
+
+			expect(input, SETUP);
+			final Class<? extends MetricsBench> klaz = Class.forName(
+					input.readUTF()).asSubclass(MetricsBench.class);
+			final String role = input.readUTF();
+			final Map<String, String> vars = readMap(input);
+			final Map<String, String> properties = readMap(input);
+
+			final MetricsBench booter = klaz.newInstance();
+			booter.cluster(role, properties);
+
+			/** after set up: publish, answer clock probes, wait for start */
+			final LocalEngine.Ready ready = new LocalEngine.Ready() {
+				@Override
+				public void ready(final MetricsBench bench) throws Exception {
+
+					synchronized (output) {
+						output.writeByte(READY);
+						writeMap(output, bench.properties());
+						output.flush();
+					}
+
+					long start;
+					while (true) {
+						final byte type = input.readByte();
+						if (type == CLOCK) {
+							synchronized (output) {
+								output.writeByte(CLOCK);
+								output.writeLong(System.nanoTime());
+								output.flush();
+							}
+						} else if (type == START) {
+							start = input.readLong();
+							break;
+						} else {
+							throw new IOException("unexpected record type "
+									+ type);
+						}
+					}
+
+					long delay;
+					while ((delay = start - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(delay);
+					}
+
+				}
+			};
+
+			final MetricsMeasure measure = new LocalEngine(
+					new ForkEngine.Sender(output)).execute(booter, vars,
+					klaz.getSimpleName() + "-" + role + "-"
+							+ BenchUtil.encode(vars), ready);
+
+			final StringBuilder measured = new StringBuilder();
+			for (final String metric : Arrays.asList(MetricsMeasure.RATE,
+					MetricsMeasure.TIME, MetricsMeasure.SIZE)) {
+				if (measure.isMeasured(metric)) {
+					measured.append(measured.length() == 0 ? "" : ",").append(
+							metric);
+				}
+			}
+			measure.summary().put(MEASURED, measured.toString());
+
+			synchronized (output) {
+				for (final Map.Entry<String, String> entry : measure.summary()
+						.entrySet()) {
+					output.writeByte(ForkEngine.SUMMARY);
+					ForkEngine.writeText(output, entry.getKey());
+					ForkEngine.writeText(output, entry.getValue());
+				}
+				output.writeByte(ForkEngine.FINISH);
+				output.flush();
+			}
+
+		} catch (final Throwable e) {
+			log.error("scenario failure", e);
+			final StringWriter trace = new StringWriter();
+			e.printStackTrace(new PrintWriter(trace));
+			synchronized (output) {
+				output.writeByte(ForkEngine.FAILURE);
+				ForkEngine.writeText(output,
+						StringUtils.left(trace.toString(), 16 * 1024));
+				output.flush();
+			}
+		}
+
+	}
+
+	static void expect(final DataInputStream input, final byte expected)
+			throws IOException {
+		final byte type = input.readByte();
+		if (type == ForkEngine.FAILURE) {
+			throw new IOException("agent failure: "
+					+ ForkEngine.readText(input));
+		}
+		if (type != expected) {
+			throw new IOException("unexpected record type " + type);
+		}
+	}
+
+	static void writeMap(final DataOutputStream output,
+			final Map<String, String> map) throws IOException {
+		output.writeInt(map.size());
+		for (final Map.Entry<String, String> entry : map.entrySet()) {
+			ForkEngine.writeText(output, entry.getKey());
+			ForkEngine.writeText(output, entry.getValue());
+		}
+	}
+
+	static Map<String, String> readMap(final DataInputStream input)
+			throws IOException {
+		final Map<String, String> map = new TreeMap<String, String>();
+		final int size = input.readInt();
+		for (int index = 0; index < size; index++) {
+			map.put(ForkEngine.readText(input), ForkEngine.readText(input));
+		}
+		return map;
+	}
+
+	/**
+	 * Agent entry: host:port to listen on, port zero for any; default is
+	 * loopback, since agent runs any benchmark class a peer sends, so remote
+	 * coordinators need explicit bind address on a trusted network.
+	 */
+	public static void main(final String... args) throws Exception {
+
+		final String[] pair = args.length == 0 ? new String[] { "localhost",
+				"0" } : args[0].split(":", 2);
+
+		final MetricsAgent agent = new MetricsAgent(new InetSocketAddress(
+				pair[0], Integer.parseInt(pair[1])));
+
+		System.out.println(ANNOUNCE + agent.address().getPort());
+		System.out.flush();
+
+		/** one export for all scenarios of agent process */
+		final MetricsTelemetry telemetry = MetricsTelemetry.system();
+		MetricsTelemetry.attach(telemetry);
+
+		try {
+			agent.serve();
+		} finally {
+			if (telemetry != null) {
+				telemetry.close();
+			}
+		}
+	}
+
+}
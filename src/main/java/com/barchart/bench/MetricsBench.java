@@ -7,9 +7,18 @@
  */
 package com.barchart.bench;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.caliper.ConfiguredBenchmark;
 import com.google.caliper.SimpleBenchmark;
 
 /**
@@ -21,6 +30,18 @@ public abstract class MetricsBench extends SimpleBenchmark {
 
 	private volatile MetricsMeasure measure;
 
+	private volatile String role;
+
+	private volatile JfrProfile recorder;
+
+	private final Map<String, String> properties = new ConcurrentHashMap<String, String>();
+
+	private final MetricsFootprint footprint = new MetricsFootprint();
+
+	private volatile boolean isFootprintOn;
+
+	private final List<NetworkUtil.Lease> leases = new CopyOnWriteArrayList<NetworkUtil.Lease>();
+
 	/**
 	 * Caliper metrics wrapper.
 	 */
@@ -29,48 +50,454 @@ public abstract class MetricsBench extends SimpleBenchmark {
 	}
 
 	/**
-	 * Start measurement.
+	 * Cluster role of this process assigned by {@link ClusterEngine}, or null
+	 * when all roles run in this process.
+	 */
+	protected String role() {
+		return role;
+	}
+
+	/**
+	 * This process plays given role; local run plays all roles.
+	 */
+	protected boolean isRole(final String name) {
+		return role == null || role.equals(name);
+	}
+
+	/**
+	 * Publish value, such as bound server address, to cluster agents which
+	 * are set up later.
+	 */
+	protected void publish(final String key, final String value) {
+		properties.put(key, value);
+	}
+
+	/**
+	 * Value published by this process or by earlier cluster agents, or null.
+	 */
+	protected String property(final String key) {
+		return properties.get(key);
+	}
+
+	/**
+	 * Reserve consecutive local ports for this scenario; released after
+	 * {@link #tearDown()}, or by engine when scenario fails.
+	 */
+	protected NetworkUtil.Lease lease(final String host, final int count)
+			throws IOException {
+		final NetworkUtil.Lease lease = NetworkUtil.lease(host, count);
+		leases.add(lease);
+		return lease;
+	}
+
+	/**
+	 * Designate set up fixture, such as data structure under test, for deep
+	 * retained size measurement; total size of fixtures becomes size metric.
+	 *
+	 * @param entries
+	 *            number of entries in fixture, for bytes per entry; zero for
+	 *            none
+	 */
+	protected void retain(final String name, final Object fixture,
+			final long entries) {
+		footprint.retain(name, fixture, entries);
+	}
+
+	/**
+	 * Measure memory footprint: heap after GC around set up and workload, and
+	 * retained size of {@link #retain(String, Object, long)} fixtures; result
+	 * becomes size metric, unless benchmark sets size itself; forced GC
+	 * disturbs concurrent scenarios, so ignored when {@link #parallelism()}
+	 * is above one.
+	 */
+	protected boolean isFootprint() {
+		return false;
+	}
+
+	/**
+	 * Make fresh measure, then take heap before and after set up, so
+	 * footprint excludes measure itself and workload.
 	 */
 	@Override
-	protected void setUp() throws Exception {
+	public ConfiguredBenchmark createBenchmark(final Map<String, String> vars) {
 		measure = new MetricsMeasure();
+		isFootprintOn = isFootprint();
+		if (isFootprintOn && parallelism() > 1) {
+			log.warn("footprint is not measured with parallelism {}",
+					parallelism());
+			isFootprintOn = false;
+		}
+		if (isFootprintOn) {
+			footprint.base();
+		}
+		final ConfiguredBenchmark bench = super.createBenchmark(vars);
+		if (isFootprintOn) {
+			final long size = footprint.setup();
+			if (size >= 0) {
+				measure.size().footprint(size);
+			}
+		}
+		return bench;
+	}
+
+	/** assign cluster role and properties published so far */
+	void cluster(final String role, final Map<String, String> properties) {
+		this.role = role;
+		this.properties.putAll(properties);
+	}
+
+	/** properties published so far */
+	Map<String, String> properties() {
+		return properties;
+	}
+
+	/**
+	 * Begin flight recorder profile of scenario, if enabled by
+	 * {@link #jfr()}; refused when scenarios run concurrently, since events
+	 * are process wide.
+	 */
+	void recordStart(final String name) {
+		final JfrProfile jfr = jfr();
+		if (jfr == null) {
+			return;
+		}
+		if (parallelism() > 1) {
+			log.warn("flight recorder is not used with parallelism {}",
+					parallelism());
+			return;
+		}
+		if (jfr.start(name)) {
+			recorder = jfr;
+		}
+	}
+
+	/** finish flight recorder profile, before tear down */
+	void recordFinish() {
+		final JfrProfile jfr = recorder;
+		if (jfr != null) {
+			recorder = null;
+			jfr.finish(measure.summary());
+		}
+	}
+
+	/** return leased ports; repeated release is ignored */
+	void releaseLeases() {
+		for (final NetworkUtil.Lease lease : leases) {
+			lease.release();
+		}
+		leases.clear();
+	}
+
+	/**
+	 * Start measurement; samples reach telemetry held by execution.
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		if (measure == null) {
+			measure = new MetricsMeasure();
+		}
+		final MetricsTelemetry telemetry = MetricsTelemetry.attached();
+		if (telemetry != null) {
+			measure.listeners().add(telemetry);
+		}
 	}
 
 	/**
-	 * Finish measurement.
+	 * Finish measurement, report footprint; release leased ports.
 	 */
 	@Override
 	protected void tearDown() throws Exception {
+		if (isFootprintOn) {
+			footprint.summarize(measure.summary());
+		}
 		measure.shutdown();
+		releaseLeases();
+	}
+
+	/**
+	 * Scenario execution strategy, such as {@link LocalEngine} or
+	 * {@link ForkEngine}.
+	 */
+	protected MetricsEngine engine() {
+		return new LocalEngine();
+	}
+
+	/**
+	 * Live sample export, or null; acquired once per {@link MetricsRunner}
+	 * execution and once per forked child, and attached to each scenario; by
+	 * default configured with system properties, see
+	 * {@link MetricsTelemetry#system()}.
+	 */
+	protected MetricsTelemetry telemetry() {
+		return MetricsTelemetry.system();
+	}
+
+	/**
+	 * Flight recorder profile of each scenario, or null; by default enabled
+	 * by system property, see {@link JfrProfile#defaultFolder()}.
+	 */
+	protected JfrProfile jfr() {
+		final File folder = JfrProfile.defaultFolder();
+		return folder == null ? null : new JfrProfile(folder);
+	}
+
+	/**
+	 * Checkpoint of completed scenarios, for resumable sweeps, or null; by
+	 * default enabled by system property, see
+	 * {@link MetricsCache#defaultFolder()}.
+	 */
+	protected MetricsCache cache() {
+		final File folder = MetricsCache.defaultFolder();
+		return folder == null ? null : new MetricsCache(folder);
+	}
+
+	/**
+	 * Regression check against baseline stored result; configured by system
+	 * properties, see {@link MetricsRegression#system()}; override to set
+	 * per metric thresholds in code.
+	 */
+	protected MetricsRegression regression() {
+		return MetricsRegression.system();
 	}
 
 	/**
-	 * Measure time step and minimum run time.
+	 * Number of scenarios executed concurrently by {@link MetricsRunner}.
+	 */
+	protected int parallelism() {
+		return 1;
+	}
+
+	/**
+	 * Adaptive search of highest load under latency limit, or null for plain
+	 * sweep; search replaces values of its load variable.
+	 */
+	protected MetricsSaturation saturation() {
+		return null;
+	}
+
+	/**
+	 * Scenario parameter combination is valid; invoked with partial
+	 * combinations while parameters are assigned, so return true when a
+	 * variable in question is not present yet.
+	 */
+	protected boolean isValid(final Map<String, String> vars) {
+		return true;
+	}
+
+	/**
+	 * CPU and NUMA placement of scenario, or null; by default declared by
+	 * scenario variable {@value MetricsAffinity#VARIABLE}, see
+	 * {@link MetricsAffinity#parse(String)}.
+	 */
+	protected MetricsAffinity affinity(final Map<String, String> vars) {
+		return MetricsAffinity.parse(vars.get(MetricsAffinity.VARIABLE));
+	}
+
+	/**
+	 * Scenario must run alone, i.e. it is heavy or changes shared host state.
+	 */
+	protected boolean isExclusive(final Map<String, String> vars) {
+		return false;
+	}
+
+	/**
+	 * Measure time step, millis.
 	 */
 	protected long markStep() {
-		return 3 * 1000;
+		return 100;
 	}
 
 	/**
-	 * Measure progress while in sleep.
+	 * Measure time step, nanos; override for sub millisecond sampling.
 	 */
-	protected void markWait(final long time) throws Exception {
+	protected long markPeriod() {
+		return TimeUnit.MILLISECONDS.toNanos(markStep());
+	}
+
+	/**
+	 * Number of marks which must be stable to finish warm up.
+	 */
+	protected int warmupWindow() {
+		return 10;
+	}
+
+	/**
+	 * Relative variation of marks accepted as steady state.
+	 */
+	protected double warmupTolerance() {
+		return 0.05;
+	}
+
+	/**
+	 * Maximum warm up time, millis; zero disables warm up.
+	 */
+	protected long warmupLimit() {
+		return 60 * 1000;
+	}
+
+	/**
+	 * Mark with {@link MetricsSampler} until workload reaches steady state or
+	 * warm up limit, then discard warm up samples and flight recorder events;
+	 * listeners never see them, see {@link MetricsMeasure#hold()}.
+	 */
+	protected void warmup() throws Exception {
+
+		final long limit = warmupLimit();
+		if (limit <= 0) {
+			return;
+		}
+
+		final MetricsMeasure measure = measure();
+
+		measure.hold();
+
+		final MetricsSteady steady = new MetricsSteady(warmupWindow(),
+				warmupTolerance());
+		final MetricsSeries rate = measure.series(MetricsMeasure.RATE);
+		final MetricsSeries time = measure.series(MetricsMeasure.TIME);
+
+		final MetricsSampler sampler = new MetricsSampler(measure,
+				markPeriod(), TimeUnit.NANOSECONDS);
 
 		final long timeStart = System.currentTimeMillis();
 
-		while (true) {
-			Thread.sleep(markStep());
-			measure().mark();
-			final long timeFinish = System.currentTimeMillis();
-			if (timeFinish - timeStart >= time) {
-				System.out.print("+\n");
-				return;
-			} else {
-				System.out.print("-");
-				continue;
+		sampler.start();
+		try {
+			int index = 0;
+			while (true) {
+				/** sampler keeps the schedule, this only inspects marks */
+				TimeUnit.NANOSECONDS.sleep(sampler.period() / 2);
+				boolean isSteady = false;
+				synchronized (measure) {
+					while (!isSteady && index < rate.size()) {
+						isSteady = steady.update(rate.value(index),
+								time.value(index));
+						index++;
+					}
+				}
+				if (isSteady) {
+					log.info("steady state after {} ms",
+							System.currentTimeMillis() - timeStart);
+					break;
+				}
+				if (System.currentTimeMillis() - timeStart >= limit) {
+					log.warn("no steady state after {} ms, measuring anyway",
+							limit);
+					break;
+				}
 			}
+		} finally {
+			sampler.stop();
 		}
 
+		measure.reset();
+
+		final JfrProfile jfr = recorder;
+		if (jfr != null) {
+			jfr.restart();
+		}
+	}
+
+	/**
+	 * Measure progress with {@link MetricsSampler} while in sleep, after
+	 * {@link #warmup()}.
+	 */
+	protected void markWait(final long time) throws Exception {
+		warmup();
+		markSleep(time);
+	}
+
+	/**
+	 * Arrival schedule of {@link #markLoad(double, MetricsLoad.Operation, long)}.
+	 */
+	protected MetricsLoad.Arrival loadArrival() {
+		return MetricsLoad.Arrival.FIXED;
+	}
+
+	/**
+	 * Worker threads of {@link #markLoad(double, MetricsLoad.Operation, long)};
+	 * zero for a thread per operation.
+	 */
+	protected int loadThreads() {
+		return 0;
+	}
+
+	/**
+	 * Rate units per operation of
+	 * {@link #markLoad(double, MetricsLoad.Operation, long)}, such as message
+	 * bytes.
+	 */
+	protected long loadUnits() {
+		return 1;
+	}
+
+	/**
+	 * Drive operation open loop at target rate, operations per second, through
+	 * {@link #warmup()} and measurement; offered and achieved throughput are
+	 * reported into scenario summary.
+	 */
+	protected MetricsLoad markLoad(final double rate,
+			final MetricsLoad.Operation operation, final long time)
+			throws Exception {
+
+		final MetricsLoad load = new MetricsLoad(measure(), rate,
+				loadArrival(), operation);
+		load.threads(loadThreads());
+		load.units(loadUnits());
+
+		load.start();
+		try {
+			warmup();
+			load.reset();
+			markSleep(time);
+		} finally {
+			load.stop();
+		}
+
+		load.summarize(measure().summary());
+		log.info("load offered {} achieved {}", load.offeredRate(),
+				load.achievedRate());
+
+		return load;
+	}
+
+	/**
+	 * Run operation in closed loop on given number of threads, typically a
+	 * scenario parameter, which start together; measure through
+	 * {@link #warmup()} and measurement with per thread
+	 * {@link MetricsStripe} meters.
+	 */
+	protected void markThreads(final int threads,
+			final MetricsWorkers.Worker worker, final long time)
+			throws Exception {
+
+		final MetricsWorkers workers = new MetricsWorkers(measure(), threads,
+				worker);
+
+		workers.start();
+		try {
+			warmup();
+			markSleep(time);
+		} finally {
+			workers.stop();
+		}
+
+	}
+
+	private void markSleep(final long time) throws Exception {
+
+		final MetricsSampler sampler = new MetricsSampler(measure(),
+				markPeriod(), TimeUnit.NANOSECONDS);
+
+		sampler.start();
+		try {
+			Thread.sleep(time);
+		} finally {
+			sampler.stop();
+		}
+
+		log.info("marks {} missed {}", sampler.count(), sampler.missed());
+
 	}
 
 }
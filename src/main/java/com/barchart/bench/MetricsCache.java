@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.caliper.Json;
+import com.google.caliper.MeasurementType;
+import com.google.caliper.ScenarioResult;
+
+/**
+ * Checkpoint of completed scenario results, for resumable sweeps.
+ * <p>
+ * each scenario result is saved into its own file as soon as scenario is
+ * finished; file name is a digest of benchmark class byte code, harness
+ * byte code, scenario variables and JVM configuration, so re-run of a sweep
+ * picks up results of unchanged scenarios and measures only new or modified
+ * ones; restored results are marked with summary entry {@value #RESTORED}
+ */
+public class MetricsCache {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsCache.class);
+
+	/**
+	 * System property: cache folder, or "true" for folder "cache" next to
+	 * {@link MetricsStore#defaultFile()}.
+	 */
+	public static final String PROPERTY = "bench.cache";
+
+	/** summary key of results restored from cache */
+	public static final String RESTORED = "cache.restored";
+
+	/**
+	 * Cache folder configured by system property {@value #PROPERTY}, or null.
+	 */
+	public static File defaultFolder() {
+		final String path = System.getProperty(PROPERTY);
+		if (path == null || "false".equals(path)) {
+			return null;
+		}
+		if ("true".equals(path)) {
+			return new File(MetricsStore.defaultFile().getAbsoluteFile()
+					.getParentFile(), "cache");
+		}
+		return new File(path);
+	}
+
+	private final File folder;
+
+	public MetricsCache(final File folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * Cache folder.
+	 */
+	public File folder() {
+		return folder;
+	}
+
+	/**
+	 * Saved result of unchanged scenario, or null.
+	 */
+	public ScenarioResult get(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final MetricsEngine engine) {
+		final File file = file(klaz, vars, engine);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			return Json.getGsonInstance().fromJson(
+					FileUtils.readFileToString(file, "UTF-8"),
+					ScenarioResult.class);
+		} catch (final Exception e) {
+			log.warn("dropping damaged cache entry " + file, e);
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Save scenario result; write is atomic, so interrupted sweep never leaves
+	 * partial entry.
+	 */
+	public void put(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final MetricsEngine engine,
+			final ScenarioResult result) throws IOException {
+		final File file = file(klaz, vars, engine);
+		final File temp = new File(folder, file.getName() + ".tmp");
+		if (!folder.exists() && !folder.mkdirs()) {
+			throw new IOException("failed to create " + folder);
+		}
+		FileUtils.writeStringToFile(temp,
+				Json.getGsonInstance().toJson(result), "UTF-8");
+		file.delete();
+		if (!temp.renameTo(file)) {
+			throw new IOException("failed to rename " + temp);
+		}
+		log.debug("cached {} {}", klaz.getSimpleName(), vars);
+	}
+
+	/**
+	 * Copy of saved result marked as restored, see {@link #isRestored}.
+	 */
+	static ScenarioResult restored(final ScenarioResult result) {
+		final Map<String, String> summary = MetricsMeasure.summary(result);
+		summary.put(RESTORED, "true");
+		return new ScenarioResult(
+				result.getMeasurementSet(MeasurementType.TIME),
+				MetricsMeasure.summaryLog(summary),
+				result.getMeasurementSet(MeasurementType.INSTANCE),
+				result.getEventLog(MeasurementType.INSTANCE),
+				result.getMeasurementSet(MeasurementType.MEMORY),
+				result.getEventLog(MeasurementType.MEMORY));
+	}
+
+	/**
+	 * Result was restored from cache rather than measured in this run.
+	 */
+	public static boolean isRestored(final ScenarioResult result) {
+		return "true".equals(MetricsMeasure.summary(result).get(RESTORED));
+	}
+
+	/**
+	 * Discard all saved results.
+	 */
+	public void clear() throws IOException {
+		if (folder.exists()) {
+			FileUtils.cleanDirectory(folder);
+		}
+	}
+
+	File file(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final MetricsEngine engine) {
+		return new File(folder, klaz.getSimpleName() + "-"
+				+ key(klaz, vars, engine) + ".json");
+	}
+
+	/**
+	 * Digest of scenario inputs: benchmark and harness byte code, variables
+	 * and JVM configuration.
+	 */
+	static String key(final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final MetricsEngine engine) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (final Class<?> type : classes(klaz)) {
+				digest.update(type.getName().getBytes("UTF-8"));
+				digest.update(bytecode(type));
+			}
+			digest.update(harness());
+			digest.update(BenchUtil.encode(vars).getBytes("UTF-8"));
+			for (final String entry : config(engine)) {
+				digest.update(entry.getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+			final StringBuilder text = new StringBuilder();
+			for (final byte value : digest.digest()) {
+				text.append(String.format("%02x", value & 0xFF));
+			}
+			return text.toString();
+		} catch (final Exception e) {
+			throw new IllegalStateException("failed to make cache key", e);
+		}
+	}
+
+	/** benchmark class, its super classes and nested classes */
+	private static List<Class<?>> classes(final Class<?> klaz) {
+		final List<Class<?>> list = new ArrayList<Class<?>>();
+		Class<?> type = klaz;
+		while (type != null && type != MetricsBench.class
+				&& type != Object.class) {
+			list.add(type);
+			final Class<?>[] nested = type.getDeclaredClasses();
+			Arrays.sort(nested, new Comparator<Class<?>>() {
+				@Override
+				public int compare(final Class<?> one, final Class<?> two) {
+					return one.getName().compareTo(two.getName());
+				}
+			});
+			list.addAll(Arrays.asList(nested));
+			type = type.getSuperclass();
+		}
+		return list;
+	}
+
+	private static byte[] harness;
+
+	/**
+	 * Digest of harness jar, or of class files of harness folder, such as
+	 * "target/classes"; computed once.
+	 */
+	static synchronized byte[] harness() throws Exception {
+		if (harness != null) {
+			return harness;
+		}
+		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		final File source = new File(MetricsBench.class.getProtectionDomain()
+				.getCodeSource().getLocation().toURI());
+		if (source.isFile()) {
+			digest.update(FileUtils.readFileToByteArray(source));
+		} else {
+			final List<File> files = new ArrayList<File>(FileUtils.listFiles(
+					source, new String[] { "class" }, true));
+			Collections.sort(files);
+			for (final File file : files) {
+				digest.update(file.getPath().getBytes("UTF-8"));
+				digest.update(FileUtils.readFileToByteArray(file));
+			}
+		}
+		harness = digest.digest();
+		return harness;
+	}
+
+	private static byte[] bytecode(final Class<?> type) throws IOException {
+		final ClassLoader loader = type.getClassLoader() == null ? ClassLoader
+				.getSystemClassLoader() : type.getClassLoader();
+		final InputStream input = loader.getResourceAsStream(type.getName()
+				.replace('.', '/') + ".class");
+		if (input == null) {
+			return new byte[0];
+		}
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	/** JVM and engine settings which affect results */
+	private static List<String> config(final MetricsEngine engine) {
+		final List<String> list = new ArrayList<String>();
+		list.add(System.getProperty("java.vm.name"));
+		list.add(System.getProperty("java.version"));
+		list.add(System.getProperty("os.arch"));
+		list.add(String.valueOf(Runtime.getRuntime().availableProcessors()));
+		list.add(String.valueOf(Runtime.getRuntime().maxMemory()));
+		final List<String> jvmArgs = new ArrayList<String>(ManagementFactory
+				.getRuntimeMXBean().getInputArguments());
+		Collections.sort(jvmArgs);
+		list.addAll(jvmArgs);
+		list.add(engine.getClass().getName());
+		if (engine instanceof ForkEngine) {
+			list.addAll(((ForkEngine) engine).jvmArgs());
+		}
+		return list;
+	}
+
+}
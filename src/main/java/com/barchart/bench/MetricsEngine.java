@@ -0,0 +1,23 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Map;
+
+/**
+ * Scenario execution strategy for {@link MetricsRunner}.
+ */
+public interface MetricsEngine {
+
+	/**
+	 * Execute single benchmark scenario and provide its finished measure.
+	 */
+	MetricsMeasure execute(Class<? extends MetricsBench> klaz,
+			Map<String, String> vars) throws Exception;
+
+}
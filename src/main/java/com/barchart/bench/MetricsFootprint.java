@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory footprint of a scenario.
+ * <p>
+ * heap after GC is taken before set up, after set up and after workload;
+ * deep retained size of designated fixtures is measured by object graph walk
+ * when instrumentation agent is available, i.e. JVM is started with
+ * "-javaagent:barchart-bench.jar"
+ */
+public class MetricsFootprint {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsFootprint.class);
+
+	/** forced GC rounds limit */
+	static final int GC_ROUNDS = 10;
+
+	/** heap change accepted as settled, bytes */
+	static final long GC_SETTLED = 64 * 1024;
+
+	private static volatile Instrumentation instrumentation;
+
+	/**
+	 * Agent entry, see "Premain-Class" of jar manifest.
+	 */
+	public static void premain(final String options,
+			final Instrumentation instrumentation) {
+		install(instrumentation);
+	}
+
+	/**
+	 * Agent entry, see "Agent-Class" of jar manifest.
+	 */
+	public static void agentmain(final String options,
+			final Instrumentation instrumentation) {
+		install(instrumentation);
+	}
+
+	private static void install(final Instrumentation instrumentation) {
+		try {
+			openModules(instrumentation);
+		} catch (final ClassNotFoundException e) {
+			log.debug("no modules before java 9");
+		} catch (final Exception e) {
+			log.warn("failed to open modules, JDK object graphs are skipped",
+					e);
+		}
+		MetricsFootprint.instrumentation = instrumentation;
+	}
+
+	/**
+	 * Open packages of boot layer modules to this class, so object graph walk
+	 * can enter JDK collections; by reflection, since compiled for java 6.
+	 */
+	private static void openModules(final Instrumentation instrumentation)
+			throws Exception {
+		final Class<?> moduleClass = Class.forName("java.lang.Module");
+		final Class<?> layerClass = Class.forName("java.lang.ModuleLayer");
+		final Object self = Class.class.getMethod("getModule").invoke(
+				MetricsFootprint.class);
+		final Set<?> modules = (Set<?>) layerClass.getMethod("modules").invoke(
+				layerClass.getMethod("boot").invoke(null));
+		final Method redefine = Instrumentation.class.getMethod(
+				"redefineModule", moduleClass, Set.class, Map.class, Map.class,
+				Set.class, Map.class);
+		for (final Object module : modules) {
+			final Map<String, Set<Object>> opens = new HashMap<String, Set<Object>>();
+			for (final Object name : (Set<?>) moduleClass.getMethod(
+					"getPackages").invoke(module)) {
+				opens.put((String) name, Collections.singleton(self));
+			}
+			redefine.invoke(instrumentation, module, Collections.emptySet(),
+					Collections.emptyMap(), opens, Collections.emptySet(),
+					Collections.emptyMap());
+		}
+	}
+
+	/**
+	 * Instrumentation agent is loaded.
+	 */
+	public static boolean isAvailable() {
+		return instrumentation != null;
+	}
+
+	/**
+	 * Used heap after forcing GC until heap settles, bytes.
+	 */
+	public static long heapAfterGc() {
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long used = memory.getHeapMemoryUsage().getUsed();
+		for (int round = 0; round < GC_ROUNDS; round++) {
+			System.gc();
+			System.runFinalization();
+			final long next = memory.getHeapMemoryUsage().getUsed();
+			final boolean isSettled = Math.abs(used - next) < GC_SETTLED;
+			used = next;
+			if (isSettled) {
+				break;
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Deep size of object graph reachable from root, static fields excluded,
+	 * bytes; walk stops at {@link #isBoundary(Object)} instances other than
+	 * root; -1 without instrumentation agent.
+	 */
+	public static long deepSize(final Object root) {
+		final Instrumentation instrumentation = MetricsFootprint.instrumentation;
+		if (instrumentation == null || root == null) {
+			return -1;
+		}
+		final Map<Object, Object> visited = new IdentityHashMap<Object, Object>();
+		final Deque<Object> pending = new ArrayDeque<Object>();
+		pending.push(root);
+		long total = 0;
+		while (!pending.isEmpty()) {
+			final Object value = pending.pop();
+			if (value != root && isBoundary(value)) {
+				continue;
+			}
+			if (visited.put(value, value) != null) {
+				continue;
+			}
+			total += instrumentation.getObjectSize(value);
+			final Class<?> type = value.getClass();
+			if (type.isArray()) {
+				if (type.getComponentType().isPrimitive()) {
+					continue;
+				}
+				for (int index = 0; index < Array.getLength(value); index++) {
+					final Object item = Array.get(value, index);
+					if (item != null) {
+						pending.push(item);
+					}
+				}
+				continue;
+			}
+			for (final Field field : fields(type)) {
+				try {
+					final Object item = field.get(value);
+					if (item != null) {
+						pending.push(item);
+					}
+				} catch (final IllegalAccessException e) {
+					log.debug("field is not accessible", e);
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Shared runtime and harness objects, not retained by fixture: classes,
+	 * class loaders, threads, and benchmark with its measure, which inner
+	 * class fixture reaches through "this$0".
+	 */
+	static boolean isBoundary(final Object value) {
+		return value instanceof Class || value instanceof ClassLoader
+				|| value instanceof Thread || value instanceof MetricsBench
+				|| value instanceof MetricsMeasure;
+	}
+
+	private static final Map<Class<?>, List<Field>> fieldMap = new ConcurrentHashMap<Class<?>, List<Field>>();
+
+	/** accessible reference fields of class and its super classes */
+	private static List<Field> fields(final Class<?> klaz) {
+		List<Field> list = fieldMap.get(klaz);
+		if (list != null) {
+			return list;
+		}
+		list = new ArrayList<Field>();
+		for (Class<?> type = klaz; type != null; type = type.getSuperclass()) {
+			for (final Field field : type.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())
+						|| field.getType().isPrimitive()) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+					list.add(field);
+				} catch (final RuntimeException e) {
+					/** module encapsulation: count object, skip its graph */
+					log.debug("field is not accessible", e);
+				}
+			}
+		}
+		fieldMap.put(klaz, list);
+		return list;
+	}
+
+	private final Map<String, Object> fixtureMap = new ConcurrentHashMap<String, Object>();
+
+	private final Map<String, Long> entryMap = new ConcurrentHashMap<String, Long>();
+
+	private long heapBase = -1;
+
+	private long heapSetup = -1;
+
+	private long retained = -1;
+
+	/**
+	 * Designate fixture for deep size measurement.
+	 *
+	 * @param entries
+	 *            number of entries in fixture, for bytes per entry; zero for
+	 *            none
+	 */
+	public void retain(final String name, final Object fixture,
+			final long entries) {
+		fixtureMap.put(name, fixture);
+		entryMap.put(name, entries);
+	}
+
+	/**
+	 * Take heap before set up.
+	 */
+	public void base() {
+		heapBase = heapAfterGc();
+	}
+
+	/**
+	 * Take heap and fixture sizes after set up, once.
+	 *
+	 * @return footprint of set up: total deep size of fixtures when measured,
+	 *         otherwise heap growth; negative when not available
+	 */
+	public long setup() {
+		if (heapSetup >= 0) {
+			return footprint();
+		}
+		heapSetup = heapAfterGc();
+		if (isAvailable() && !fixtureMap.isEmpty()) {
+			retained = 0;
+			for (final Object fixture : fixtureMap.values()) {
+				retained += deepSize(fixture);
+			}
+		}
+		return footprint();
+	}
+
+	private long footprint() {
+		if (retained >= 0) {
+			return retained;
+		}
+		if (heapBase < 0) {
+			return -1;
+		}
+		return Math.max(0, heapSetup - heapBase);
+	}
+
+	/**
+	 * Take heap after workload and report footprint into summary.
+	 */
+	public void summarize(final Map<String, String> summary) {
+
+		if (heapBase < 0) {
+			return;
+		}
+		final long heapFinish = heapAfterGc();
+
+		summary.put("footprint.heap.base", String.valueOf(heapBase));
+		if (heapSetup >= 0) {
+			summary.put("footprint.heap.setup",
+					String.valueOf(heapSetup - heapBase));
+			summary.put("footprint.heap.workload",
+					String.valueOf(heapFinish - heapSetup));
+		}
+		summary.put("footprint.heap.finish",
+				String.valueOf(heapFinish - heapBase));
+
+		if (!isAvailable()) {
+			return;
+		}
+		for (final Map.Entry<String, Object> entry : fixtureMap.entrySet()) {
+			final String prefix = "footprint." + entry.getKey() + ".";
+			final long size = deepSize(entry.getValue());
+			final long entries = entryMap.get(entry.getKey());
+			summary.put(prefix + "bytes", String.valueOf(size));
+			if (entries > 0) {
+				summary.put(prefix + "entries", String.valueOf(entries));
+				summary.put(prefix + "perEntry",
+						String.format("%.1f", size / (double) entries));
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,20 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+/**
+ * Receives {@link MetricsMeasure} samples as they are taken.
+ */
+public interface MetricsListener {
+
+	/**
+	 * Named metric sample taken at {@link System#nanoTime()}.
+	 */
+	void sample(MetricsMeasure measure, String metric, long time, double value);
+
+}
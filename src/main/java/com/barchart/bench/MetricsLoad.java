@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Open loop load driver.
+ * <p>
+ * operations are issued on a fixed or Poisson arrival schedule at target
+ * rate, regardless of how long earlier operations take; latency is recorded
+ * into {@link MetricsMeasure#latency()} from the intended start time, so
+ * queueing delay is included; each completed operation marks
+ * {@link MetricsMeasure#rate()} with its {@link #units(long)}
+ */
+public class MetricsLoad {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsLoad.class);
+
+	/**
+	 * Measured operation.
+	 */
+	public interface Operation {
+
+		void execute() throws Exception;
+
+	}
+
+	/**
+	 * Arrival schedule.
+	 */
+	public enum Arrival {
+
+		/** constant interval */
+		FIXED,
+
+		/** exponential interval, mean at target rate */
+		POISSON,
+
+	}
+
+	private final MetricsMeasure measure;
+
+	private final double rate;
+
+	private final Arrival arrival;
+
+	private final Operation operation;
+
+	private final Random random = new Random();
+
+	private final AtomicLong offered = new AtomicLong();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private int threads;
+
+	private long units = 1;
+
+	private volatile boolean isActive;
+
+	private volatile long timeStart;
+
+	private volatile long timeFinish;
+
+	private ExecutorService executor;
+
+	private Thread thread;
+
+	/**
+	 * @param rate
+	 *            target operations per second
+	 */
+	public MetricsLoad(final MetricsMeasure measure, final double rate,
+			final Arrival arrival, final Operation operation) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("invalid rate");
+		}
+		this.measure = measure;
+		this.rate = rate;
+		this.arrival = arrival;
+		this.operation = operation;
+	}
+
+	/**
+	 * Number of worker threads; zero for a thread per operation, virtual when
+	 * supported by the JVM.
+	 */
+	public void threads(final int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("negative thread count");
+		}
+		threads = count;
+	}
+
+	/**
+	 * Rate units per operation, such as message bytes; default one.
+	 */
+	public void units(final long count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("invalid unit count");
+		}
+		units = count;
+	}
+
+	/**
+	 * Start issuing operations.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("load is active");
+		}
+		executor = newExecutor(threads);
+		isActive = true;
+		reset();
+		thread = new Thread("load " + arrival + " " + rate) {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop issuing operations and wait for operations in progress; queued
+	 * operations are discarded.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (thread == null) {
+			return;
+		}
+		timeFinish = System.nanoTime();
+		isActive = false;
+		LockSupport.unpark(thread);
+		thread.join();
+		thread = null;
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Restart offered and achieved counts, such as after warm up.
+	 */
+	public void reset() {
+		offered.set(0);
+		completed.set(0);
+		failed.set(0);
+		timeStart = System.nanoTime();
+	}
+
+	private void dispatch() {
+		double intended = System.nanoTime();
+		while (isActive) {
+			intended += interval();
+			final long start = (long) intended;
+			long delay;
+			while (isActive && (delay = start - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(delay);
+			}
+			if (!isActive) {
+				break;
+			}
+			offered.incrementAndGet();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					execute(start);
+				}
+			});
+		}
+	}
+
+	/** next arrival interval, nanos */
+	private double interval() {
+		final double mean = 1e9 / rate;
+		switch (arrival) {
+		case POISSON:
+			return -Math.log(1 - random.nextDouble()) * mean;
+		default:
+			return mean;
+		}
+	}
+
+	private void execute(final long start) {
+		if (!isActive) {
+			return;
+		}
+		try {
+			operation.execute();
+		} catch (final Throwable e) {
+			failed.incrementAndGet();
+			log.debug("operation failure", e);
+			return;
+		}
+		measure.latency().record(System.nanoTime() - start);
+		measure.rate().mark(units);
+		completed.incrementAndGet();
+	}
+
+	/** thread per operation or fixed pool */
+	private static ExecutorService newExecutor(final int threads) {
+		final ThreadFactory factory = new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable task) {
+				final Thread thread = new Thread(task, "load worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		if (threads > 0) {
+			return Executors.newFixedThreadPool(threads, factory);
+		}
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final Exception e) {
+			log.debug("virtual threads not available", e);
+			return Executors.newCachedThreadPool(factory);
+		}
+	}
+
+	/**
+	 * Target operations per second.
+	 */
+	public double rate() {
+		return rate;
+	}
+
+	/**
+	 * Operations issued since start or reset.
+	 */
+	public long offered() {
+		return offered.get();
+	}
+
+	/**
+	 * Operations completed since start or reset.
+	 */
+	public long completed() {
+		return completed.get();
+	}
+
+	/**
+	 * Operations failed since start or reset.
+	 */
+	public long failed() {
+		return failed.get();
+	}
+
+	/** seconds since start or reset, until stop */
+	private double elapsed() {
+		final long finish = isActive ? System.nanoTime() : timeFinish;
+		return Math.max(1, finish - timeStart) / 1e9;
+	}
+
+	/**
+	 * Issued operations per second.
+	 */
+	public double offeredRate() {
+		return offered() / elapsed();
+	}
+
+	/**
+	 * Completed operations per second.
+	 */
+	public double achievedRate() {
+		return completed() / elapsed();
+	}
+
+	/**
+	 * Report target, offered and achieved throughput into scenario summary.
+	 */
+	public void summarize(final Map<String, String> summary) {
+		summary.put("load.target", String.valueOf(rate));
+		summary.put("load.offered", String.valueOf(offeredRate()));
+		summary.put("load.achieved", String.valueOf(achievedRate()));
+		summary.put("load.failed", String.valueOf(failed()));
+	}
+
+}
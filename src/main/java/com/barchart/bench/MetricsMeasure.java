@@ -7,15 +7,21 @@
  */
 package com.barchart.bench;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.caliper.Measurement;
 import com.google.caliper.MeasurementSet;
+import com.google.caliper.MeasurementType;
 import com.google.caliper.Run;
 import com.google.caliper.Scenario;
 import com.google.caliper.ScenarioResult;
@@ -27,7 +33,12 @@ import com.yammer.metrics.core.Timer;
 /**
  * Caliper measure with Metrics provider.
  * <p>
- * measure up to 3 values: {@link #rate()}, {@link #time()}, {@link #size()}
+ * measure 3 caliper values: {@link #rate()}, {@link #time()}, {@link #size()},
+ * and any number of named {@link #metric(String, MetricsValue.Kind, String)}
+ * values
+ * <p>
+ * extra scenario values, such as {@link #latency()} percentiles, are kept in
+ * {@link #summary()} and reported as caliper event log
  */
 public class MetricsMeasure {
 
@@ -41,6 +52,8 @@ public class MetricsMeasure {
 
 		private volatile Double size = 0.0;
 
+		private volatile boolean isSet;
+
 		@Override
 		public Double value() {
 			return size;
@@ -48,9 +61,26 @@ public class MetricsMeasure {
 
 		public void value(final double number) {
 			this.size = number;
+			isSet = true;
+		}
+
+		/** automatic footprint, unless value is set by benchmark */
+		void footprint(final double number) {
+			if (!isSet) {
+				this.size = number;
+			}
 		}
 	}
 
+	/** rate metric name */
+	public static final String RATE = "rate";
+
+	/** time metric name */
+	public static final String TIME = "time";
+
+	/** size metric name */
+	public static final String SIZE = "size";
+
 	/**
 	 * Default rate measurement units.
 	 */
@@ -84,9 +114,29 @@ public class MetricsMeasure {
 		SIZE_UNIT.put("Size GB", 1024 * 1024 * 1024);
 	}
 
-	private final Map<Long, Measurement> rateMap = new HashMap<Long, Measurement>();
-	private final Map<Long, Measurement> timeMap = new HashMap<Long, Measurement>();
-	private final Map<Long, Measurement> sizeMap = new HashMap<Long, Measurement>();
+	/**
+	 * Default number of preallocated samples per metric.
+	 */
+	public static final int CAPACITY = 16 * 1024;
+
+	private final MetricsSeries rateSeries;
+	private final MetricsSeries timeSeries;
+	private final MetricsSeries sizeSeries;
+	private final int capacity;
+
+	public MetricsMeasure() {
+		this(CAPACITY);
+	}
+
+	/**
+	 * Measure with given number of preallocated samples per metric.
+	 */
+	public MetricsMeasure(final int capacity) {
+		rateSeries = new MetricsSeries(RATE_UNIT, capacity);
+		timeSeries = new MetricsSeries(TIME_UNIT, capacity);
+		sizeSeries = new MetricsSeries(SIZE_UNIT, capacity);
+		this.capacity = capacity;
+	}
 
 	private final MetricsRegistry metrics = new MetricsRegistry();
 
@@ -101,6 +151,38 @@ public class MetricsMeasure {
 		metrics.newGauge(getClass(), "", size);
 	}
 
+	private final LatencyRecorder latency = new LatencyRecorder(time);
+
+	private final GcProfile profile = new GcProfile();
+
+	private final AtomicBoolean isShutdown = new AtomicBoolean();
+	{
+		profile.start();
+	}
+
+	/** timer count at profile start */
+	private long profileCount;
+
+	private final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+
+	/**
+	 * Sample listeners, notified on each {@link #mark()}.
+	 */
+	public List<MetricsListener> listeners() {
+		return listeners;
+	}
+
+	private volatile boolean isHeld;
+
+	/**
+	 * Keep samples from listeners until {@link #reset()}, such as during warm
+	 * up, so forked parents, cluster coordinator and telemetry never see
+	 * discarded samples.
+	 */
+	public void hold() {
+		isHeld = true;
+	}
+
 	/**
 	 * Rate meter.
 	 */
@@ -122,6 +204,108 @@ public class MetricsMeasure {
 		return size;
 	}
 
+	/**
+	 * Latency percentile recorder; also updates {@link #time()}.
+	 */
+	public LatencyRecorder latency() {
+		return latency;
+	}
+
+	private final Map<String, MetricsValue> metricMap = new ConcurrentHashMap<String, MetricsValue>();
+
+	/**
+	 * Register named metric, or get registered one of the same kind.
+	 *
+	 * @param name
+	 *            metric name, other than rate, time, size
+	 * @param kind
+	 *            interval aggregation
+	 * @param unit
+	 *            display unit, such as "msg/s", or "ratio" for
+	 *            {@link MetricsValue.Kind#RATIO} fraction
+	 */
+	public synchronized MetricsValue metric(final String name,
+			final MetricsValue.Kind kind, final String unit) {
+		if (isCore(name)) {
+			throw new IllegalArgumentException("reserved metric " + name);
+		}
+		if (name.isEmpty() || name.indexOf('=') >= 0
+				|| name.indexOf('\n') >= 0) {
+			throw new IllegalArgumentException("invalid metric " + name);
+		}
+		MetricsValue value = metricMap.get(name);
+		if (value == null) {
+			value = new MetricsValue(name, kind, unit, capacity);
+			metricMap.put(name, value);
+		} else if (value.kind() != kind) {
+			throw new IllegalArgumentException("metric " + name + " is "
+					+ value.kind());
+		}
+		return value;
+	}
+
+	/**
+	 * Registered named metrics.
+	 */
+	public Collection<MetricsValue> metrics() {
+		return metricMap.values();
+	}
+
+	private final List<MetricsStripe> stripes = new CopyOnWriteArrayList<MetricsStripe>();
+
+	/**
+	 * New contention free rate and time meters for the calling thread, merged
+	 * into {@link #rate()} and {@link #time()} samples on each {@link #mark()}.
+	 */
+	public MetricsStripe stripe() {
+		final MetricsStripe stripe = new MetricsStripe(latency);
+		stripes.add(stripe);
+		return stripe;
+	}
+
+	/** rate events, shared meter and stripes */
+	private long rateCount() {
+		long count = rate.count();
+		for (final MetricsStripe stripe : stripes) {
+			count += stripe.rateCount();
+		}
+		return count;
+	}
+
+	/** timed operations, shared timer and stripes */
+	private long timeCount() {
+		long count = time.count();
+		for (final MetricsStripe stripe : stripes) {
+			count += stripe.timeCount();
+		}
+		return count;
+	}
+
+	/** total operation time, shared timer and stripes */
+	private double timeSum() {
+		double sum = time.sum();
+		for (final MetricsStripe stripe : stripes) {
+			sum += stripe.timeSum();
+		}
+		return sum;
+	}
+
+	/**
+	 * Core metric was fed at all, as opposed to placeholder samples of a
+	 * measure which does not use it.
+	 */
+	boolean isMeasured(final String metric) {
+		if (RATE.equals(metric)) {
+			return rateCount() > 0;
+		} else if (TIME.equals(metric)) {
+			return timeCount() > 0;
+		} else if (SIZE.equals(metric)) {
+			return size.value() > 0;
+		} else {
+			return metricMap.containsKey(metric);
+		}
+	}
+
 	/**
 	 * Workaround: zero breaks gwt web app.
 	 */
@@ -133,31 +317,119 @@ public class MetricsMeasure {
 		}
 	}
 
+	/** state of previous mark */
+	private long markTime = System.nanoTime();
+	private long markRateCount;
+	private long markTimeCount;
+	private double markTimeSum;
+
 	/**
 	 * Perform measurement; convert from metrics into caliper.
+	 * <p>
+	 * rate and time are reported for the interval since previous mark, so
+	 * samples are independent of each other and of earlier warm up
 	 */
-	public void mark() {
-		final double rateValue = filter(rate.oneMinuteRate());
-		final double timeValue = filter(time.mean());
+	public synchronized void mark() {
+		final long timeStamp = System.nanoTime();
+		final long rateCount = rateCount();
+		final long timeCount = timeCount();
+		final double timeSum = timeSum();
+		final double elapsed = (timeStamp - markTime) / 1e9;
+		final double rateValue = filter(elapsed <= 0 ? 0
+				: (rateCount - markRateCount) / elapsed);
+		final double timeValue = filter(timeCount == markTimeCount ? 0
+				: (timeSum - markTimeSum) / (timeCount - markTimeCount));
 		final double sizeValue = filter(size.value());
+		markTime = timeStamp;
+		markRateCount = rateCount;
+		markTimeCount = timeCount;
+		markTimeSum = timeSum;
+		latency.merge();
+		profile.update();
+		for (final MetricsValue metric : metricMap.values()) {
+			final double value = metric.sample(elapsed);
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			metric.series().add(timeStamp, value);
+			if (isHeld) {
+				continue;
+			}
+			for (final MetricsListener listener : listeners) {
+				listener.sample(this, metric.name(), timeStamp, value);
+			}
+		}
 		if (rateValue == 1.0 && timeValue == 1.0 && sizeValue == 1.0) {
 			/** ignore complete blank entries */
 			return;
 		}
-		{
-			final Measurement mark = new Measurement(RATE_UNIT, rateValue,
-					rateValue);
-			rateMap.put(System.nanoTime(), mark);
+		rateSeries.add(timeStamp, rateValue);
+		timeSeries.add(timeStamp, timeValue);
+		sizeSeries.add(timeStamp, sizeValue);
+		if (isHeld) {
+			return;
+		}
+		for (final MetricsListener listener : listeners) {
+			listener.sample(this, RATE, timeStamp, rateValue);
+			listener.sample(this, TIME, timeStamp, timeValue);
+			listener.sample(this, SIZE, timeStamp, sizeValue);
+		}
+	}
+
+	/**
+	 * Discard samples taken so far, such as during warm up; release
+	 * {@link #hold()}.
+	 */
+	public synchronized void reset() {
+		isHeld = false;
+		rateSeries.clear();
+		timeSeries.clear();
+		sizeSeries.clear();
+		for (final MetricsValue metric : metricMap.values()) {
+			metric.reset();
 		}
-		{
-			final Measurement mark = new Measurement(TIME_UNIT, timeValue,
-					timeValue);
-			timeMap.put(System.nanoTime(), mark);
+		latency.reset();
+		profile.start();
+		profileCount = timeCount();
+	}
+
+	/**
+	 * Store sample of named metric taken elsewhere, such as in a child JVM,
+	 * and notify listeners; unknown named metric is registered as a gauge.
+	 */
+	public void record(final String metric, final long time,
+			final double value) {
+		if (!isCore(metric) && !metricMap.containsKey(metric)) {
+			metric(metric, MetricsValue.Kind.GAUGE, "");
 		}
-		{
-			final Measurement mark = new Measurement(SIZE_UNIT, sizeValue,
-					sizeValue);
-			sizeMap.put(System.nanoTime(), mark);
+		series(metric).add(time, value);
+		if (isHeld) {
+			return;
+		}
+		for (final MetricsListener listener : listeners) {
+			listener.sample(this, metric, time, value);
+		}
+	}
+
+	private static boolean isCore(final String metric) {
+		return RATE.equals(metric) || TIME.equals(metric)
+				|| SIZE.equals(metric);
+	}
+
+	/**
+	 * Ordered samples of core or registered named metric.
+	 */
+	public MetricsSeries series(final String metric) {
+		if (RATE.equals(metric)) {
+			return rateSeries;
+		} else if (TIME.equals(metric)) {
+			return timeSeries;
+		} else if (SIZE.equals(metric)) {
+			return sizeSeries;
+		} else if (metricMap.containsKey(metric)) {
+			return metricMap.get(metric).series();
+		} else {
+			throw new IllegalArgumentException("unknown metric " + metric);
 		}
 	}
 
@@ -170,10 +442,47 @@ public class MetricsMeasure {
 		return variables;
 	}
 
-	private MeasurementSet measurementSet(final Map<Long, Measurement> map) {
-		final Measurement[] array = map.values().toArray(new Measurement[0]);
-		final MeasurementSet set = new MeasurementSet(array);
-		return set;
+	private final Map<String, String> summary = new TreeMap<String, String>();
+
+	/**
+	 * Scenario summary values, such as latency percentiles.
+	 */
+	public Map<String, String> summary() {
+		return summary;
+	}
+
+	/**
+	 * Render summary as caliper event log.
+	 */
+	public static String summaryLog(final Map<String, String> summary) {
+		if (summary.isEmpty()) {
+			return null;
+		}
+		final StringBuilder text = new StringBuilder();
+		for (final Map.Entry<String, String> entry : summary.entrySet()) {
+			text.append(entry.getKey()).append('=').append(entry.getValue())
+					.append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Extract summary from caliper result produced by
+	 * {@link #appendTo(Run)}.
+	 */
+	public static Map<String, String> summary(final ScenarioResult result) {
+		final Map<String, String> summary = new TreeMap<String, String>();
+		final String log = result.getEventLog(MeasurementType.TIME);
+		if (log == null) {
+			return summary;
+		}
+		for (final String line : log.split("\n")) {
+			final int index = line.indexOf('=');
+			if (index > 0) {
+				summary.put(line.substring(0, index), line.substring(index + 1));
+			}
+		}
+		return summary;
 	}
 
 	/**
@@ -183,16 +492,16 @@ public class MetricsMeasure {
 
 		final Scenario scenario = new Scenario(variables());
 
-		/** display rate as caliper durations */
-		final MeasurementSet timeSet = measurementSet(rateMap);
-		final String timeLog = null;
+		/** display rate as caliper durations, with summary as event log */
+		final MeasurementSet timeSet = rateSeries.measurementSet();
+		final String timeLog = summaryLog(summary());
 
 		/** display time as caliper instances */
-		final MeasurementSet instSet = measurementSet(timeMap);
+		final MeasurementSet instSet = timeSeries.measurementSet();
 		final String instLog = null;
 
 		/** display size as caliper memory */
-		final MeasurementSet heapSet = measurementSet(sizeMap);
+		final MeasurementSet heapSet = sizeSeries.measurementSet();
 		final String heapLog = null;
 
 		final ScenarioResult scenarioResult = new ScenarioResult(timeSet,
@@ -204,10 +513,24 @@ public class MetricsMeasure {
 		measurements.put(scenario, scenarioResult);
 	}
 
+	/** metrics resources are terminated */
+	boolean isShutdown() {
+		return isShutdown.get();
+	}
+
 	/**
-	 * Terminate metrics resources.
+	 * Terminate metrics resources; finalize summary; repeated call is
+	 * ignored.
 	 */
 	public void shutdown() {
+		if (!isShutdown.compareAndSet(false, true)) {
+			return;
+		}
+		latency.summarize(summary);
+		for (final MetricsValue metric : metricMap.values()) {
+			metric.summarize(summary);
+		}
+		profile.finish(timeCount() - profileCount, summary);
 		rate.stop();
 		time.stop();
 		metrics.shutdown();
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Lazy Cartesian product of scenario parameters.
+ * <p>
+ * combinations are produced one at a time in deterministic order: parameter
+ * names ascending, first name most significant; values shorter first, then
+ * alphabetic, so numeric values come in numeric order
+ * <p>
+ * {@link Constraint} is consulted as each parameter is assigned, so an invalid
+ * partial combination prunes all of its completions without visiting them
+ */
+public class MetricsProduct implements Iterable<Map<String, String>> {
+
+	/**
+	 * Scenario validity rule.
+	 */
+	public interface Constraint {
+
+		/**
+		 * @param vars
+		 *            partial or complete combination; rule must return true
+		 *            when a variable it depends on is not assigned yet
+		 */
+		boolean accept(Map<String, String> vars);
+
+	}
+
+	/**
+	 * Accept all combinations.
+	 */
+	public static final Constraint ANY = new Constraint() {
+		@Override
+		public boolean accept(final Map<String, String> vars) {
+			return true;
+		}
+	};
+
+	/**
+	 * Value order: shorter first, then alphabetic.
+	 */
+	public static final Comparator<String> VALUE_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(final String o1, final String o2) {
+			if (o1.length() != o2.length()) {
+				return o1.length() < o2.length() ? -1 : 1;
+			}
+			return o1.compareTo(o2);
+		}
+	};
+
+	private final String[] names;
+	private final String[][] values;
+	private final Constraint constraint;
+
+	public MetricsProduct(final Map<String, ? extends Collection<String>> axes) {
+		this(axes, ANY);
+	}
+
+	public MetricsProduct(final Map<String, ? extends Collection<String>> axes,
+			final Constraint constraint) {
+		final Map<String, Collection<String>> sorted = new TreeMap<String, Collection<String>>(
+				axes);
+		this.names = sorted.keySet().toArray(new String[sorted.size()]);
+		this.values = new String[names.length][];
+		for (int level = 0; level < names.length; level++) {
+			final String[] array = sorted.get(names[level]).toArray(
+					new String[0]);
+			Arrays.sort(array, VALUE_ORDER);
+			values[level] = array;
+		}
+		this.constraint = constraint;
+	}
+
+	/**
+	 * Count valid combinations without keeping them.
+	 */
+	public int size() {
+		int count = 0;
+		for (final Iterator<Map<String, String>> iter = iterator(); iter
+				.hasNext(); iter.next()) {
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public Iterator<Map<String, String>> iterator() {
+		return new Cursor();
+	}
+
+	/**
+	 * Depth first walk over parameter assignments.
+	 */
+	private class Cursor implements Iterator<Map<String, String>> {
+
+		private final int[] index = new int[names.length];
+
+		private final Map<String, String> partial = new TreeMap<String, String>();
+
+		private final Map<String, String> view = Collections
+				.unmodifiableMap(partial);
+
+		/** number of assigned parameters; negative when exhausted */
+		private int level = names.length == 0 ? -1 : 0;
+
+		private Map<String, String> next = seek();
+
+		private Map<String, String> seek() {
+			while (level >= 0) {
+				if (level == names.length) {
+					final Map<String, String> result = new TreeMap<String, String>(
+							partial);
+					level--;
+					index[level]++;
+					return result;
+				}
+				if (index[level] >= values[level].length) {
+					index[level] = 0;
+					partial.remove(names[level]);
+					level--;
+					if (level >= 0) {
+						index[level]++;
+					}
+					continue;
+				}
+				partial.put(names[level], values[level][index[level]]);
+				if (constraint.accept(view)) {
+					level++;
+				} else {
+					index[level]++;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map<String, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			final Map<String, String> result = next;
+			next = seek();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -0,0 +1,522 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.caliper.Measurement;
+import com.google.caliper.MeasurementSet;
+import com.google.caliper.MeasurementType;
+import com.google.caliper.Result;
+import com.google.caliper.Scenario;
+import com.google.caliper.ScenarioResult;
+
+/**
+ * Performance regression detection between two runs.
+ * <p>
+ * scenarios are matched by variables; per metric the mark samples are
+ * compared with Mann-Whitney U test and bootstrap confidence interval of the
+ * median ratio; regression is reported when the difference is significant, the
+ * whole interval is on the worse side, and the median change exceeds the
+ * metric threshold; besides rate, time and size, each quantile sketch in the
+ * scenario summary, such as latency, is compared as equally weighted samples
+ */
+public class MetricsRegression {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsRegression.class);
+
+	/** bootstrap resample count */
+	private static final int RESAMPLES = 2000;
+
+	/** system property: significance level */
+	public static final String ALPHA = "bench.regression.alpha";
+
+	/** system property: fail benchmark execution on regression */
+	public static final String FATAL = "bench.regression.fail";
+
+	/** system property prefix: per metric threshold, such as "...latency=0.2" */
+	public static final String THRESHOLD = "bench.regression.threshold.";
+
+	/** summary key suffix of quantile sketch */
+	public static final String QUANTILES = "quantiles";
+
+	/** quantile sketch size */
+	static final int SKETCH = 20;
+
+	/** threshold of metric without configured one */
+	private static final double THRESHOLD_DEFAULT = 0.10;
+
+	/**
+	 * Comparison outcome of one metric of one scenario.
+	 */
+	public static class Verdict {
+
+		private final Map<String, String> variables;
+		private final String metric;
+		private final double baseline;
+		private final double current;
+		private final double pValue;
+		private final double ratioLow;
+		private final double ratioHigh;
+		private final boolean isRegression;
+
+		Verdict(final Map<String, String> variables, final String metric,
+				final double baseline, final double current,
+				final double pValue, final double ratioLow,
+				final double ratioHigh, final boolean isRegression) {
+			this.variables = variables;
+			this.metric = metric;
+			this.baseline = baseline;
+			this.current = current;
+			this.pValue = pValue;
+			this.ratioLow = ratioLow;
+			this.ratioHigh = ratioHigh;
+			this.isRegression = isRegression;
+		}
+
+		/** scenario variables */
+		public Map<String, String> variables() {
+			return variables;
+		}
+
+		/** metric name */
+		public String metric() {
+			return metric;
+		}
+
+		/** baseline median */
+		public double baseline() {
+			return baseline;
+		}
+
+		/** current median */
+		public double current() {
+			return current;
+		}
+
+		/** relative median change, current / baseline - 1 */
+		public double change() {
+			return current / baseline - 1;
+		}
+
+		/** two sided Mann-Whitney p-value */
+		public double pValue() {
+			return pValue;
+		}
+
+		/** lower confidence bound of current / baseline median ratio */
+		public double ratioLow() {
+			return ratioLow;
+		}
+
+		/** upper confidence bound of current / baseline median ratio */
+		public double ratioHigh() {
+			return ratioHigh;
+		}
+
+		/** significant change to the worse beyond threshold */
+		public boolean isRegression() {
+			return isRegression;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s %s %s: %.4g -> %.4g (%+.2f%%, p=%.4f, ratio %.3f..%.3f)",
+					isRegression ? "REGRESSION" : "ok", variables, metric,
+					baseline, current, 100 * change(), pValue, ratioLow,
+					ratioHigh);
+		}
+
+	}
+
+	/**
+	 * Value at percentile, 0..100.
+	 */
+	interface Quantile {
+
+		double value(double percentile);
+
+	}
+
+	private final double alpha;
+
+	private final boolean isFatal;
+
+	private final Map<String, Double> thresholdMap = new HashMap<String, Double>();
+
+	/**
+	 * Report only; 95% confidence; 5% rate and time, 10% other threshold.
+	 */
+	public MetricsRegression() {
+		this(0.05, false);
+	}
+
+	/**
+	 * @param alpha
+	 *            significance level
+	 * @param isFatal
+	 *            fail benchmark execution on regression
+	 */
+	public MetricsRegression(final double alpha, final boolean isFatal) {
+		if (!(alpha > 0 && alpha < 1)) {
+			throw new IllegalArgumentException("alpha " + alpha);
+		}
+		this.alpha = alpha;
+		this.isFatal = isFatal;
+		thresholdMap.put(MetricsMeasure.RATE, 0.05);
+		thresholdMap.put(MetricsMeasure.TIME, 0.05);
+		thresholdMap.put(MetricsMeasure.SIZE, 0.10);
+	}
+
+	/**
+	 * Regression configured by system properties {@value #ALPHA} (default
+	 * 0.05), {@value #FATAL} and {@value #THRESHOLD}&lt;metric&gt;.
+	 */
+	public static MetricsRegression system() {
+		final MetricsRegression regression = new MetricsRegression(
+				Double.parseDouble(System.getProperty(ALPHA, "0.05")),
+				Boolean.getBoolean(FATAL));
+		for (final String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(THRESHOLD)) {
+				regression.threshold(name.substring(THRESHOLD.length()),
+						Double.parseDouble(System.getProperty(name)));
+			}
+		}
+		return regression;
+	}
+
+	/**
+	 * Significance level.
+	 */
+	public double alpha() {
+		return alpha;
+	}
+
+	/**
+	 * Regression fails benchmark execution.
+	 */
+	public boolean isFatal() {
+		return isFatal;
+	}
+
+	/**
+	 * Relative change tolerated for metric.
+	 */
+	public double threshold(final String metric) {
+		final Double threshold = thresholdMap.get(metric);
+		return threshold == null ? THRESHOLD_DEFAULT : threshold;
+	}
+
+	/**
+	 * Set relative change tolerated for metric, such as 0.05 for 5%.
+	 */
+	public void threshold(final String metric, final double ratio) {
+		if (ratio < 0) {
+			throw new IllegalArgumentException("negative threshold");
+		}
+		thresholdMap.put(metric, ratio);
+	}
+
+	/**
+	 * Metric where bigger value is better.
+	 */
+	protected boolean isHigherBetter(final String metric) {
+		return MetricsMeasure.RATE.equals(metric);
+	}
+
+	/**
+	 * Compare scenarios present in both results.
+	 */
+	public List<Verdict> compare(final Result baseline, final Result current) {
+		final List<Verdict> list = new ArrayList<Verdict>();
+		final Map<Scenario, ScenarioResult> baseMap = baseline.getRun()
+				.getMeasurements();
+		for (final Map.Entry<Scenario, ScenarioResult> entry : current
+				.getRun().getMeasurements().entrySet()) {
+			final Map<String, String> vars = entry.getKey().getVariables();
+			final ScenarioResult base = find(baseMap, vars);
+			if (base == null) {
+				log.debug("no baseline for {}", vars);
+				continue;
+			}
+			compare(list, vars, MetricsMeasure.RATE, base, entry.getValue(),
+					MeasurementType.TIME);
+			compare(list, vars, MetricsMeasure.TIME, base, entry.getValue(),
+					MeasurementType.INSTANCE);
+			compare(list, vars, MetricsMeasure.SIZE, base, entry.getValue(),
+					MeasurementType.MEMORY);
+			compare(list, vars, MetricsMeasure.summary(base),
+					MetricsMeasure.summary(entry.getValue()));
+		}
+		return list;
+	}
+
+	/**
+	 * Verdicts reporting regression.
+	 */
+	public static List<Verdict> regressions(final List<Verdict> list) {
+		final List<Verdict> result = new ArrayList<Verdict>();
+		for (final Verdict verdict : list) {
+			if (verdict.isRegression()) {
+				result.add(verdict);
+			}
+		}
+		return result;
+	}
+
+	private static ScenarioResult find(final Map<Scenario, ScenarioResult> map,
+			final Map<String, String> vars) {
+		for (final Map.Entry<Scenario, ScenarioResult> entry : map.entrySet()) {
+			if (entry.getKey().getVariables().equals(vars)) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	private void compare(final List<Verdict> list,
+			final Map<String, String> vars, final String metric,
+			final ScenarioResult base, final ScenarioResult next,
+			final MeasurementType type) {
+		final double[] baseArray = samples(base.getMeasurementSet(type));
+		final double[] nextArray = samples(next.getMeasurementSet(type));
+		if (baseArray.length == 0 || nextArray.length == 0) {
+			return;
+		}
+		final Verdict verdict = verdict(vars, metric, baseArray, nextArray);
+		if (verdict != null) {
+			list.add(verdict);
+		}
+	}
+
+	/**
+	 * Compare quantile sketches of summary metrics present in both runs;
+	 * counter and ratio {@link MetricsValue} are better when higher.
+	 */
+	private void compare(final List<Verdict> list,
+			final Map<String, String> vars, final Map<String, String> base,
+			final Map<String, String> next) {
+		final String suffix = "." + QUANTILES;
+		for (final Map.Entry<String, String> entry : next.entrySet()) {
+			final String key = entry.getKey();
+			final String text = base.get(key);
+			if (!key.endsWith(suffix) || text == null) {
+				continue;
+			}
+			final String metric = key.substring(0,
+					key.length() - suffix.length());
+			final String kind = next.get(metric + ".kind");
+			final boolean isHigherBetter = isHigherBetter(metric)
+					|| "counter".equals(kind) || "ratio".equals(kind);
+			final Verdict verdict = verdict(vars, metric, sketch(text),
+					sketch(entry.getValue()), isHigherBetter);
+			if (verdict != null) {
+				list.add(verdict);
+			}
+		}
+	}
+
+	/**
+	 * Compare two sample sets of a metric; null when not measured.
+	 */
+	public Verdict verdict(final Map<String, String> vars, final String metric,
+			final double[] baseArray, final double[] nextArray) {
+		return verdict(vars, metric, baseArray, nextArray,
+				isHigherBetter(metric));
+	}
+
+	private Verdict verdict(final Map<String, String> vars,
+			final String metric, final double[] baseArray,
+			final double[] nextArray, final boolean isHigherBetter) {
+
+		final double baseMedian = median(baseArray);
+		final double nextMedian = median(nextArray);
+		if (baseMedian <= 0) {
+			return null;
+		}
+
+		final double pValue = mannWhitney(baseArray, nextArray);
+		final double[] interval = bootstrap(baseArray, nextArray, alpha);
+		final double change = nextMedian / baseMedian - 1;
+		final double threshold = threshold(metric);
+
+		final boolean isWorse;
+		if (isHigherBetter) {
+			isWorse = interval[1] < 1 && change < -threshold;
+		} else {
+			isWorse = interval[0] > 1 && change > threshold;
+		}
+
+		return new Verdict(vars, metric, baseMedian, nextMedian, pValue,
+				interval[0], interval[1], isWorse && pValue < alpha);
+	}
+
+	/**
+	 * Mark samples; caliper placeholders of unmeasured metric are ignored.
+	 */
+	private static double[] samples(final MeasurementSet set) {
+		if (set == null) {
+			return new double[0];
+		}
+		final List<Measurement> list = set.getMeasurements();
+		final double[] array = new double[list.size()];
+		boolean isMeasured = false;
+		for (int index = 0; index < array.length; index++) {
+			array[index] = list.get(index).getRaw();
+			isMeasured |= array[index] != 1.0;
+		}
+		return isMeasured ? array : new double[0];
+	}
+
+	/**
+	 * Quantile sketch text of up to {@value #SKETCH} points, never more than
+	 * sample count, at the middle of equal probability bins, so points stand
+	 * for equally weighted samples; tail beyond the last bin middle is not
+	 * represented.
+	 */
+	static String sketch(final Quantile quantile, final long count) {
+		final int size = (int) Math.min(SKETCH, count);
+		final StringBuilder text = new StringBuilder();
+		for (int index = 0; index < size; index++) {
+			if (index > 0) {
+				text.append(',');
+			}
+			text.append(quantile.value(100.0 * (index + 0.5) / size));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Parse quantile sketch text.
+	 */
+	static double[] sketch(final String text) {
+		final String[] items = text.split(",");
+		final double[] array = new double[items.length];
+		for (int index = 0; index < array.length; index++) {
+			array[index] = Double.parseDouble(items[index]);
+		}
+		return array;
+	}
+
+	static double median(final double[] array) {
+		final double[] sorted = array.clone();
+		Arrays.sort(sorted);
+		final int middle = sorted.length / 2;
+		if (sorted.length % 2 == 1) {
+			return sorted[middle];
+		} else {
+			return (sorted[middle - 1] + sorted[middle]) / 2;
+		}
+	}
+
+	/**
+	 * Two sided Mann-Whitney U test p-value, normal approximation with tie and
+	 * continuity correction.
+	 */
+	static double mannWhitney(final double[] one, final double[] two) {
+
+		final int n1 = one.length;
+		final int n2 = two.length;
+		final int n = n1 + n2;
+
+		final double[] all = new double[n];
+		System.arraycopy(one, 0, all, 0, n1);
+		System.arraycopy(two, 0, all, n1, n2);
+		final double[] sorted = all.clone();
+		Arrays.sort(sorted);
+
+		/** average rank of each distinct value; tie correction term */
+		double tieSum = 0;
+		double rankSum = 0;
+		for (int index = 0; index < n1; index++) {
+			rankSum += rank(sorted, one[index]);
+		}
+		for (int index = 0; index < n;) {
+			int next = index;
+			while (next < n && sorted[next] == sorted[index]) {
+				next++;
+			}
+			final double ties = next - index;
+			tieSum += ties * ties * ties - ties;
+			index = next;
+		}
+
+		final double u = rankSum - n1 * (n1 + 1) / 2.0;
+		final double mean = n1 * (double) n2 / 2.0;
+		final double variance = n1 * (double) n2 / 12.0
+				* ((n + 1) - tieSum / (n * (double) (n - 1)));
+		if (variance <= 0) {
+			return 1.0;
+		}
+
+		final double delta = Math.abs(u - mean) - 0.5;
+		final double z = Math.max(0, delta) / Math.sqrt(variance);
+		return Math.min(1.0, 2 * (1 - normal(z)));
+	}
+
+	/** average 1-based rank of value in sorted array */
+	private static double rank(final double[] sorted, final double value) {
+		int first = Arrays.binarySearch(sorted, value);
+		while (first > 0 && sorted[first - 1] == value) {
+			first--;
+		}
+		int last = first;
+		while (last + 1 < sorted.length && sorted[last + 1] == value) {
+			last++;
+		}
+		return (first + last) / 2.0 + 1;
+	}
+
+	/** standard normal cumulative distribution */
+	static double normal(final double z) {
+		final double x = Math.abs(z) / Math.sqrt(2);
+		final double t = 1 / (1 + 0.3275911 * x);
+		final double erf = 1 - t
+				* (0.254829592 + t
+						* (-0.284496736 + t
+								* (1.421413741 + t
+										* (-1.453152027 + t * 1.061405429))))
+				* Math.exp(-x * x);
+		return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+	}
+
+	/**
+	 * Bootstrap confidence interval of median ratio two / one.
+	 */
+	static double[] bootstrap(final double[] one, final double[] two,
+			final double alpha) {
+		final Random random = new Random(one.length * 31L + two.length);
+		final double[] ratio = new double[RESAMPLES];
+		final double[] sampleOne = new double[one.length];
+		final double[] sampleTwo = new double[two.length];
+		for (int round = 0; round < RESAMPLES; round++) {
+			for (int index = 0; index < one.length; index++) {
+				sampleOne[index] = one[random.nextInt(one.length)];
+			}
+			for (int index = 0; index < two.length; index++) {
+				sampleTwo[index] = two[random.nextInt(two.length)];
+			}
+			ratio[round] = median(sampleTwo) / median(sampleOne);
+		}
+		Arrays.sort(ratio);
+		final int low = (int) Math.floor(RESAMPLES * alpha / 2);
+		final int high = (int) Math.ceil(RESAMPLES * (1 - alpha / 2)) - 1;
+		return new double[] { ratio[low], ratio[high] };
+	}
+
+}
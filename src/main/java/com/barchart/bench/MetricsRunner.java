@@ -7,11 +7,11 @@
  */
 package com.barchart.bench;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,12 +19,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.caliper.ConfiguredBenchmark;
 import com.google.caliper.Environment;
 import com.google.caliper.EnvironmentGetter;
 import com.google.caliper.Json;
@@ -44,6 +51,24 @@ public final class MetricsRunner {
 	private final static Logger log = LoggerFactory
 			.getLogger(MetricsRunner.class);
 
+	/** environment property: source control revision */
+	public static final String REVISION = "git.revision";
+
+	/** environment property: regression check outcome of stored result */
+	public static final String VERDICT = "bench.verdict";
+
+	/** verdict: no regression, or no baseline to compare with */
+	public static final String PASSED = "passed";
+
+	/** verdict: regression against baseline */
+	public static final String REGRESSED = "regressed";
+
+	/** verdict: regression accepted as new baseline */
+	public static final String ACCEPTED = "accepted";
+
+	/** system property: accept regressed result as new baseline */
+	public static final String ACCEPT = "bench.baseline.accept";
+
 	private MetricsRunner() {
 	}
 
@@ -55,16 +80,111 @@ public final class MetricsRunner {
 	}
 
 	/**
-	 * Execute full cycle: warm up, execute and publish benchmark.
+	 * Execute full cycle: execute with per scenario warm up, verify benchmark
+	 * result against stored baseline, see {@link MetricsStore#baseline(String)},
+	 * and store it with its verdict.
 	 */
 	public static void execute(final Class<? extends MetricsBench> klaz)
 			throws Exception {
-		Run run;
-		run = execute("WARMUP", klaz);
-		run = execute("REPORT", klaz);
-		final Result result = newResult(run);
-		publish(result);
-		System.out.println(json(result));
+		final MetricsStore store = new MetricsStore();
+		execute(klaz, store, store.baseline(klaz.getName()));
+	}
+
+	/**
+	 * Execute full cycle against pinned baseline entry, or null for none;
+	 * result is stored tagged with {@link #VERDICT}, so regressed one never
+	 * becomes baseline of a later run, unless accepted with system property
+	 * {@value #ACCEPT}; scenarios restored from {@link MetricsBench#cache()}
+	 * are reported but neither verified nor stored again.
+	 */
+	public static Result execute(final Class<? extends MetricsBench> klaz,
+			final MetricsStore store, final MetricsStore.Entry baseline)
+			throws Exception {
+		final Run run = execute("REPORT", klaz);
+		System.out.println(json(newResult(run)));
+		final Run fresh = fresh(run);
+		final Result result = newResult(fresh);
+		if (fresh.getMeasurements().isEmpty()) {
+			log.info("all scenarios restored from cache, nothing to store");
+			return result;
+		}
+		String verdict = PASSED;
+		List<MetricsRegression.Verdict> failed = Collections.emptyList();
+		MetricsRegression regression = null;
+		if (baseline != null) {
+			regression = klaz.newInstance().regression();
+			failed = MetricsRegression.regressions(report(regression,
+					store.load(baseline), result));
+			if (!failed.isEmpty()) {
+				verdict = Boolean.getBoolean(ACCEPT) ? ACCEPTED : REGRESSED;
+			}
+		}
+		final Result tagged = verdict(result, verdict);
+		store.append(tagged);
+		log.info("stored result {}", verdict);
+		if (REGRESSED.equals(verdict) && regression.isFatal()) {
+			throw new Exception("performance regression: " + failed);
+		}
+		return tagged;
+	}
+
+	/**
+	 * Result copy with {@link #VERDICT} environment property.
+	 */
+	private static Result verdict(final Result result, final String verdict) {
+		final Map<String, String> properties = new TreeMap<String, String>(
+				result.getEnvironment().getProperties());
+		properties.put(VERDICT, verdict);
+		return new Result(result.getRun(), new Environment(properties));
+	}
+
+	/**
+	 * Run with scenarios measured now, without ones restored from cache.
+	 */
+	private static Run fresh(final Run run) {
+		final Map<Scenario, ScenarioResult> measurements = new HashMap<Scenario, ScenarioResult>();
+		for (final Map.Entry<Scenario, ScenarioResult> entry : run
+				.getMeasurements().entrySet()) {
+			if (!MetricsCache.isRestored(entry.getValue())) {
+				measurements.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return new Run(measurements, run.getBenchmarkName(),
+				run.getExecutedTimestamp());
+	}
+
+	/**
+	 * Compare result with baseline; fail on regression when it is fatal.
+	 */
+	public static List<MetricsRegression.Verdict> verify(
+			final MetricsRegression regression, final Result baseline,
+			final Result result) throws Exception {
+		final List<MetricsRegression.Verdict> list = report(regression,
+				baseline, result);
+		final List<MetricsRegression.Verdict> failed = MetricsRegression
+				.regressions(list);
+		if (!failed.isEmpty() && regression.isFatal()) {
+			throw new Exception("performance regression: " + failed);
+		}
+		return list;
+	}
+
+	/**
+	 * Compare result with baseline and log verdicts.
+	 */
+	private static List<MetricsRegression.Verdict> report(
+			final MetricsRegression regression, final Result baseline,
+			final Result result) {
+		final List<MetricsRegression.Verdict> list = regression.compare(
+				baseline, result);
+		for (final MetricsRegression.Verdict verdict : list) {
+			log.info("{}", verdict);
+		}
+		if (!MetricsRegression.regressions(list).isEmpty()) {
+			log.warn("performance regression against {}", baseline.getRun()
+					.getExecutedTimestamp());
+		}
+		return list;
 	}
 
 	/**
@@ -72,38 +192,235 @@ public final class MetricsRunner {
 	 */
 	public static Run execute(final String name,
 			final Class<? extends MetricsBench> klaz) throws Exception {
+		final MetricsBench booter = klaz.newInstance();
+		return execute(name, klaz, booter.parallelism());
+	}
+
+	/**
+	 * Execute benchmark for all parameter combinations on a pool of worker
+	 * threads; scenarios declared {@link MetricsBench#isExclusive(Map)} or
+	 * pinned by {@link MetricsBench#affinity(Map)} never overlap with any
+	 * other scenario; scenarios saved by
+	 * {@link MetricsBench#cache()} are not executed again; with
+	 * {@link MetricsBench#saturation()} load variable is searched instead of
+	 * swept, sequentially and without cache.
+	 */
+	public static Run execute(final String name,
+			final Class<? extends MetricsBench> klaz, final int parallelism)
+			throws Exception {
 
 		final MetricsBench booter = klaz.newInstance();
 
-		final List<Map<String, String>> varsSet = product(booter);
+		/** one endpoint for all scenarios */
+		final MetricsTelemetry telemetry = booter.telemetry();
+		final MetricsTelemetry previous = MetricsTelemetry.attach(telemetry);
+
+		try {
+			return execute(name, klaz, parallelism, booter);
+		} finally {
+			MetricsTelemetry.attach(previous);
+			if (telemetry != null) {
+				telemetry.close();
+			}
+		}
+
+	}
+
+	private static Run execute(final String name,
+			final Class<? extends MetricsBench> klaz, final int parallelism,
+			final MetricsBench booter) throws Exception {
+
+		final MetricsProduct varsSet = scenarios(booter);
+
+		final int total = varsSet.size();
+
+		final MetricsEngine engine = booter.engine();
+
+		final MetricsCache cache = booter.cache();
 
 		final Run run = newRun(klaz.getName());
 
-		int index = 0;
-		for (final Map<String, String> vars : varsSet) {
-			final int done = 100 * index++ / varsSet.size();
+		final MetricsSaturation saturation = booter.saturation();
+		if (saturation != null) {
+			if (parallelism > 1) {
+				log.warn("{} saturation search ignores parallelism {}", name,
+						parallelism);
+			}
+			if (cache != null) {
+				log.warn("{} saturation search ignores cache", name);
+			}
+			saturate(name, klaz, saturation, varsSet, engine, run);
+			return run;
+		}
+
+		if (parallelism <= 1) {
+			int index = 0;
+			for (final Map<String, String> vars : varsSet) {
+				final int done = 100 * index++ / total;
+				if (restore(cache, klaz, vars, engine, run)) {
+					log.info("{} {}% {} cached", name, done, vars);
+					continue;
+				}
+				log.info("{} {}% {}", name, done, vars);
+				engine.execute(klaz, vars).appendTo(run);
+				save(cache, klaz, vars, engine, run);
+			}
+			return run;
+		}
 
-			log.info("{} {}% {}", name, done, vars);
+		log.info("{} parallelism {}", name, parallelism);
 
-			/** call setUp() */
-			final ConfiguredBenchmark runner = booter.createBenchmark(vars);
+		/** shared by regular scenarios, held alone by exclusive ones */
+		final ReadWriteLock isolation = new ReentrantReadWriteLock(true);
 
-			final MetricsBench bench = (MetricsBench) runner.getBenchmark();
-			final MetricsMeasure measure = bench.measure();
-			measure.variables().putAll(vars);
+		/** bounds number of scheduled scenarios */
+		final Semaphore pending = new Semaphore(parallelism);
 
-			/** call timeXXX() */
-			runner.run(0);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 
-			/** call tearDown() */
-			runner.close();
+		final AtomicInteger index = new AtomicInteger();
 
-			measure.appendTo(run);
+		final ExecutorService executor = Executors
+				.newFixedThreadPool(parallelism);
+
+		try {
+
+			for (final Map<String, String> vars : varsSet) {
+
+				if (restore(cache, klaz, vars, engine, run)) {
+					final int done = 100 * index.getAndIncrement() / total;
+					log.info("{} {}% {} cached", name, done, vars);
+					continue;
+				}
+
+				pending.acquire();
+
+				if (failure.get() != null) {
+					pending.release();
+					break;
+				}
+
+				/** pinned scenario must not share its CPUs */
+				final boolean isExclusive = booter.isExclusive(vars)
+						|| booter.affinity(vars) != null;
+				final Lock lock = isExclusive ? isolation.writeLock()
+						: isolation.readLock();
+
+				final Runnable task = new Runnable() {
+					@Override
+					public void run() {
+						lock.lock();
+						try {
+							final int done = 100 * index.getAndIncrement()
+									/ total;
+							log.info("{} {}% {}", name, done, vars);
+							final MetricsMeasure measure = engine.execute(klaz,
+									vars);
+							if (!isExclusive && engine instanceof LocalEngine) {
+								/** JVM counters include concurrent scenarios */
+								measure.summary().put(GcProfile.SCOPE,
+										"process");
+							}
+							synchronized (run) {
+								measure.appendTo(run);
+								save(cache, klaz, vars, engine, run);
+							}
+						} catch (final Throwable e) {
+							/** errors too, so runner never waits on lost task */
+							failure.compareAndSet(null, e);
+						} finally {
+							lock.unlock();
+							pending.release();
+						}
+					}
+				};
+
+				executor.execute(task);
+			}
+
+			/** wait for completion */
+			pending.acquire(parallelism);
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		final Throwable error = failure.get();
+		if (error instanceof Exception) {
+			throw (Exception) error;
+		}
+		if (error instanceof Error) {
+			throw (Error) error;
+		}
+		if (error != null) {
+			throw new Exception("scenario failure", error);
 		}
 
 		return run;
 	}
 
+	/**
+	 * Search saturation for each combination of variables other than load
+	 * variable, one scenario at a time.
+	 */
+	private static void saturate(final String name,
+			final Class<? extends MetricsBench> klaz,
+			final MetricsSaturation saturation, final MetricsProduct varsSet,
+			final MetricsEngine engine, final Run run) throws Exception {
+		final Set<Map<String, String>> doneSet = new HashSet<Map<String, String>>();
+		for (final Map<String, String> vars : varsSet) {
+			final Map<String, String> group = new TreeMap<String, String>(vars);
+			group.remove(saturation.variable());
+			if (!doneSet.add(group)) {
+				continue;
+			}
+			log.info("{} saturation {}", name, group);
+			saturation.search(engine, klaz, group, run);
+		}
+	}
+
+	/**
+	 * Append saved scenario result to run.
+	 *
+	 * @return false when scenario must be executed
+	 */
+	private static boolean restore(final MetricsCache cache,
+			final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final MetricsEngine engine,
+			final Run run) {
+		if (cache == null) {
+			return false;
+		}
+		final ScenarioResult result = cache.get(klaz, vars, engine);
+		if (result == null) {
+			return false;
+		}
+		synchronized (run) {
+			run.getMeasurements().put(new Scenario(vars),
+					MetricsCache.restored(result));
+		}
+		return true;
+	}
+
+	/**
+	 * Checkpoint finished scenario result.
+	 */
+	private static void save(final MetricsCache cache,
+			final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final MetricsEngine engine,
+			final Run run) throws IOException {
+		if (cache == null) {
+			return;
+		}
+		final ScenarioResult result = run.getMeasurements().get(
+				new Scenario(vars));
+		if (result == null) {
+			log.warn("scenario variables changed, not cached: {}", vars);
+			return;
+		}
+		cache.put(klaz, vars, engine, result);
+	}
+
 	/**
 	 * Convert caliper result into JSON string.
 	 */
@@ -113,7 +430,10 @@ public final class MetricsRunner {
 
 	/**
 	 * Map signature based on map values.
+	 *
+	 * @deprecated scenario order is kept by {@link MetricsProduct}
 	 */
+	@Deprecated
 	public static String signature(final Map<String, String> map) {
 		final StringBuilder text = new StringBuilder();
 		for (final String item : map.values()) {
@@ -124,29 +444,25 @@ public final class MetricsRunner {
 
 	/**
 	 * Generate all parameter combinations for {@link SimpleBenchmark}.
+	 *
+	 * @deprecated materializes all combinations; use
+	 *             {@link #scenarios(SimpleBenchmark)}
 	 */
+	@Deprecated
 	public static List<Map<String, String>> product(final SimpleBenchmark bench) {
-		final Set<Map<String, String>> collect = new HashSet<Map<String, String>>();
-		final Map<String, Set<String>> pending = new TreeMap<String, Set<String>>();
-		for (final String name : new TreeSet<String>(bench.parameterNames())) {
-			pending.put(name, bench.parameterValues(name));
-		}
-		final List<Map<String, String>> list = new ArrayList<Map<String, String>>(
-				product(collect, pending));
-		final Comparator<Map<String, String>> comp = new Comparator<Map<String, String>>() {
-			@Override
-			public int compare(final Map<String, String> o1,
-					final Map<String, String> o2) {
-				return signature(o1).compareTo(signature(o2));
-			}
-		};
-		Collections.sort(list, comp);
+		final List<Map<String, String>> list = new ArrayList<Map<String, String>>();
+		for (final Map<String, String> vars : scenarios(bench)) {
+			list.add(vars);
+		}
 		return list;
 	}
 
 	/**
 	 * Calculate ordered Cartesian product of sets.
+	 *
+	 * @deprecated use {@link MetricsProduct}
 	 */
+	@Deprecated
 	public static Set<Map<String, String>> product(
 			final Set<Map<String, String>> collect,
 			final Map<String, Set<String>> pending) {
@@ -180,9 +496,34 @@ public final class MetricsRunner {
 		}
 	}
 
+	/**
+	 * Lazy parameter combinations for {@link SimpleBenchmark}; invalid
+	 * combinations of {@link MetricsBench#isValid(Map)} are skipped.
+	 */
+	public static MetricsProduct scenarios(final SimpleBenchmark bench) {
+		final Map<String, Set<String>> axes = new TreeMap<String, Set<String>>();
+		for (final String name : bench.parameterNames()) {
+			axes.put(name, bench.parameterValues(name));
+		}
+		if (bench instanceof MetricsBench) {
+			final MetricsBench metricsBench = (MetricsBench) bench;
+			return new MetricsProduct(axes, new MetricsProduct.Constraint() {
+				@Override
+				public boolean accept(final Map<String, String> vars) {
+					return metricsBench.isValid(vars);
+				}
+			});
+		} else {
+			return new MetricsProduct(axes);
+		}
+	}
+
 	/**
 	 * Publish result on http://microbenchmarks.appspot.com
+	 *
+	 * @deprecated service is gone; use {@link MetricsStore}
 	 */
+	@Deprecated
 	public static void publish(final Result result) throws Exception {
 		final Runner runner = new Runner();
 		final Method method = runner.getClass().getDeclaredMethod(
@@ -202,15 +543,52 @@ public final class MetricsRunner {
 	}
 
 	/**
-	 * Make new result from run.
+	 * Make new result from run; environment includes source revision, host
+	 * CPU topology and CPU placement of each scenario affinity.
 	 */
 	public static Result newResult(final Run run) {
-		final Environment env = new EnvironmentGetter()
-				.getEnvironmentSnapshot();
+		final Map<String, String> properties = new TreeMap<String, String>(
+				new EnvironmentGetter().getEnvironmentSnapshot()
+						.getProperties());
+		properties.put(REVISION, revision());
+		properties.putAll(MetricsAffinity.topology());
+		for (final ScenarioResult result : run.getMeasurements().values()) {
+			final Map<String, String> summary = MetricsMeasure.summary(result);
+			final String spec = summary.get("affinity.spec");
+			if (spec == null) {
+				continue;
+			}
+			final String mem = summary.get("affinity.mem");
+			final String memApplied = "true".equals(summary
+					.get("affinity.mem.applied")) ? "" : " not applied";
+			properties.put("affinity." + spec, "cpus "
+					+ summary.get("affinity.cpus")
+					+ (mem == null ? "" : " mem " + mem + memApplied)
+					+ " applied " + summary.get("affinity.applied"));
+		}
+		final Environment env = new Environment(properties);
 		final Result result = new Result(run, env);
 		return result;
 	}
 
+	/**
+	 * Source control revision of current directory, or "unknown".
+	 */
+	public static String revision() {
+		try {
+			final Process process = new ProcessBuilder("git", "rev-parse",
+					"HEAD").redirectErrorStream(true).start();
+			final String text = IOUtils.toString(process.getInputStream())
+					.trim();
+			if (process.waitFor() == 0 && text.length() > 0) {
+				return text;
+			}
+		} catch (final Exception e) {
+			log.debug("revision not available", e);
+		}
+		return "unknown";
+	}
+
 	/**
 	 * Verify measure publication manually.
 	 */
@@ -230,7 +608,7 @@ public final class MetricsRunner {
 			measure.appendTo(run);
 		}
 		final Result result = newResult(run);
-		publish(result);
+		new MetricsStore().append(result);
 		System.out.println(json(result));
 	}
 
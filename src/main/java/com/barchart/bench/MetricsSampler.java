@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background sampler which calls {@link MetricsMeasure#mark()} on a dedicated
+ * thread at fixed period.
+ * <p>
+ * marks are scheduled at origin + tick * period, so time spent in mark does
+ * not accumulate drift; ticks which already passed are skipped and counted as
+ * {@link #missed()} instead of being marked in a burst
+ */
+public class MetricsSampler {
+
+	private final MetricsMeasure measure;
+
+	private final long period;
+
+	private volatile boolean isActive;
+
+	private volatile long count;
+
+	private volatile long missed;
+
+	private Thread thread;
+
+	public MetricsSampler(final MetricsMeasure measure, final long period,
+			final TimeUnit unit) {
+		this.measure = measure;
+		this.period = unit.toNanos(period);
+		if (this.period <= 0) {
+			throw new IllegalArgumentException("invalid period " + period);
+		}
+	}
+
+	/**
+	 * Sampling period, nanoseconds.
+	 */
+	public long period() {
+		return period;
+	}
+
+	/**
+	 * Number of marks taken.
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * Number of ticks skipped because mark was late.
+	 */
+	public long missed() {
+		return missed;
+	}
+
+	/**
+	 * Start sampling thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("sampler is active");
+		}
+		isActive = true;
+		thread = new Thread("sampler") {
+			@Override
+			public void run() {
+				sample();
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stop sampling thread and wait for it to finish.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (thread == null) {
+			return;
+		}
+		isActive = false;
+		LockSupport.unpark(thread);
+		thread.join();
+		thread = null;
+	}
+
+	private void sample() {
+		final long origin = System.nanoTime();
+		long tick = 1;
+		while (isActive) {
+			final long deadline = origin + tick * period;
+			long delay;
+			while ((delay = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, delay);
+				if (!isActive) {
+					return;
+				}
+			}
+			measure.mark();
+			count++;
+			final long passed = (System.nanoTime() - origin) / period;
+			if (passed > tick) {
+				missed += passed - tick;
+				tick = passed;
+			}
+			tick++;
+		}
+	}
+
+}
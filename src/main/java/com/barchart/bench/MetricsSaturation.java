@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.caliper.Run;
+
+/**
+ * Adaptive search of the highest sustainable load under a latency limit.
+ * <p>
+ * load variable, such as target rate of
+ * {@link MetricsBench#markLoad(double, MetricsLoad.Operation, long)}, is
+ * bisected in log scale between bounds until the highest passing rate is
+ * known within precision; load values are whole numbers, rounded once, so
+ * scenario, sample and reported rate agree; scenario passes when summary
+ * metric, such as
+ * "latency.p99", stays under limit and achieved load, when reported, keeps up
+ * with target; every sampled scenario is kept in the run as the load curve
+ */
+public class MetricsSaturation {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsSaturation.class);
+
+	/**
+	 * Single sampled scenario.
+	 */
+	public static class Sample {
+
+		private final double rate;
+		private final double value;
+		private final boolean isPass;
+
+		Sample(final double rate, final double value, final boolean isPass) {
+			this.rate = rate;
+			this.value = value;
+			this.isPass = isPass;
+		}
+
+		/** load variable value */
+		public double rate() {
+			return rate;
+		}
+
+		/** limited metric value, or NaN */
+		public double value() {
+			return value;
+		}
+
+		/** scenario met the limit */
+		public boolean isPass() {
+			return isPass;
+		}
+
+		@Override
+		public String toString() {
+			return rate + "=" + value + (isPass ? " pass" : " fail");
+		}
+
+	}
+
+	/**
+	 * Outcome of one search.
+	 */
+	public static class Curve {
+
+		private final List<Sample> samples = new ArrayList<Sample>();
+
+		private double rate = Double.NaN;
+
+		/** sampled scenarios, by rate */
+		public List<Sample> samples() {
+			return samples;
+		}
+
+		/** highest passing rate, or NaN when even lower bound fails */
+		public double rate() {
+			return rate;
+		}
+
+	}
+
+	private final String variable;
+
+	private final long low;
+
+	private final long high;
+
+	private final String metric;
+
+	private final double limit;
+
+	private double precision = 0.05;
+
+	private double shortfall = 0.05;
+
+	private int steps = 12;
+
+	/**
+	 * @param variable
+	 *            load scenario variable, such as "rate"
+	 * @param low
+	 *            lower search bound, at least one
+	 * @param high
+	 *            upper search bound, above lower after rounding
+	 * @param metric
+	 *            limited summary key, such as "latency.p99"
+	 * @param limit
+	 *            highest accepted metric value, such as p99 nanoseconds
+	 */
+	public MetricsSaturation(final String variable, final double low,
+			final double high, final String metric, final double limit) {
+		if (low < 1 || Math.round(high) <= Math.round(low)) {
+			throw new IllegalArgumentException("bounds " + low + " " + high);
+		}
+		this.variable = variable;
+		this.low = Math.round(low);
+		this.high = Math.round(high);
+		this.metric = metric;
+		this.limit = limit;
+	}
+
+	/** load scenario variable */
+	public String variable() {
+		return variable;
+	}
+
+	/**
+	 * Relative width of final interval; default 5%.
+	 */
+	public MetricsSaturation precision(final double precision) {
+		this.precision = precision;
+		return this;
+	}
+
+	/**
+	 * Accepted relative shortfall of "load.achieved" behind "load.target";
+	 * default 5%.
+	 */
+	public MetricsSaturation shortfall(final double shortfall) {
+		this.shortfall = shortfall;
+		return this;
+	}
+
+	/**
+	 * Limit of sampled scenarios per search; default 12.
+	 */
+	public MetricsSaturation steps(final int steps) {
+		this.steps = steps;
+		return this;
+	}
+
+	/**
+	 * Search highest passing rate for fixed other variables; sampled
+	 * scenarios are appended to run with "saturation." summary entries.
+	 */
+	public Curve search(final MetricsEngine engine,
+			final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final Run run) throws Exception {
+
+		final Curve curve = new Curve();
+		final List<MetricsMeasure> measures = new ArrayList<MetricsMeasure>();
+
+		double passRate = Double.NaN;
+		double failRate = Double.NaN;
+
+		if (sample(engine, klaz, vars, low, curve, measures)) {
+			passRate = low;
+			if (sample(engine, klaz, vars, high, curve, measures)) {
+				passRate = high;
+				log.warn("{} passes upper bound {}", vars, high);
+			} else {
+				failRate = high;
+			}
+		}
+
+		while (!Double.isNaN(failRate) && measures.size() < steps
+				&& failRate / passRate > 1 + precision) {
+			final long rate = Math.round(Math.sqrt(passRate * failRate));
+			if (rate <= passRate || rate >= failRate) {
+				break;
+			}
+			if (sample(engine, klaz, vars, rate, curve, measures)) {
+				passRate = rate;
+			} else {
+				failRate = rate;
+			}
+		}
+
+		curve.rate = passRate;
+
+		Collections.sort(curve.samples, new Comparator<Sample>() {
+			@Override
+			public int compare(final Sample one, final Sample two) {
+				return Double.compare(one.rate, two.rate);
+			}
+		});
+
+		final String passText = Double.isNaN(passRate) ? "NaN" : String
+				.valueOf(Math.round(passRate));
+		for (final MetricsMeasure measure : measures) {
+			measure.summary().put("saturation.rate", passText);
+			measure.summary().put("saturation.metric", metric);
+			measure.summary().put("saturation.limit", String.valueOf(limit));
+			synchronized (run) {
+				measure.appendTo(run);
+			}
+		}
+
+		log.info("saturation {} {} = {} under {} {}", vars, variable,
+				passRate, metric, limit);
+		for (final Sample sample : curve.samples) {
+			log.info("saturation {} {}", vars, sample);
+		}
+
+		return curve;
+	}
+
+	private boolean sample(final MetricsEngine engine,
+			final Class<? extends MetricsBench> klaz,
+			final Map<String, String> vars, final long rate,
+			final Curve curve, final List<MetricsMeasure> measures)
+			throws Exception {
+
+		final Map<String, String> scenario = new TreeMap<String, String>(vars);
+		scenario.put(variable, String.valueOf(rate));
+
+		final MetricsMeasure measure = engine.execute(klaz, scenario);
+		final Map<String, String> summary = measure.summary();
+
+		final double value = number(summary.get(metric));
+		final double target = number(summary.get("load.target"));
+		final double achieved = number(summary.get("load.achieved"));
+
+		boolean isPass = value <= limit;
+		if (!Double.isNaN(target) && !Double.isNaN(achieved)) {
+			isPass &= achieved >= target * (1 - shortfall);
+		}
+
+		summary.put("saturation.pass", String.valueOf(isPass));
+		measures.add(measure);
+		curve.samples.add(new Sample(rate, value, isPass));
+
+		log.info("saturation {} {} {}={}", scenario, isPass ? "pass"
+				: "fail", metric, value);
+
+		return isPass;
+	}
+
+	private static double number(final String text) {
+		if (text == null) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(text);
+		} catch (final NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.caliper.Measurement;
+import com.google.caliper.MeasurementSet;
+
+/**
+ * Ordered time series of primitive samples: time stamps and values.
+ * <p>
+ * storage is preallocated; sampling allocates only when capacity is exceeded;
+ * caliper measurements are built on demand by {@link #measurementSet()}
+ */
+public class MetricsSeries {
+
+	private final Map<String, Integer> units;
+
+	private long[] times;
+	private double[] values;
+	private int size;
+
+	public MetricsSeries(final Map<String, Integer> units, final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("invalid capacity " + capacity);
+		}
+		this.units = units;
+		this.times = new long[capacity];
+		this.values = new double[capacity];
+	}
+
+	/**
+	 * Caliper measurement units.
+	 */
+	public Map<String, Integer> units() {
+		return units;
+	}
+
+	/**
+	 * Append sample.
+	 */
+	public synchronized void add(final long time, final double value) {
+		if (size == times.length) {
+			times = Arrays.copyOf(times, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		times[size] = time;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Number of samples.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Sample time stamp.
+	 */
+	public synchronized long time(final int index) {
+		check(index);
+		return times[index];
+	}
+
+	/**
+	 * Sample value.
+	 */
+	public synchronized double value(final int index) {
+		check(index);
+		return values[index];
+	}
+
+	/**
+	 * Copy of sample values, in order.
+	 */
+	public synchronized double[] values() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Discard samples, keep storage.
+	 */
+	public synchronized void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Convert samples into caliper measurements, in order.
+	 */
+	public synchronized MeasurementSet measurementSet() {
+		final Measurement[] array = new Measurement[size];
+		for (int index = 0; index < size; index++) {
+			array[index] = new Measurement(units, values[index],
+					values[index]);
+		}
+		return new MeasurementSet(array);
+	}
+
+	private void check(final int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + " size "
+					+ size);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Steady state detector for warm up.
+ * <p>
+ * steady when, over last window of marks, rate and time vary within tolerance
+ * (coefficient of variation) and JIT compilation takes no more than tolerance
+ * share of wall time
+ */
+public class MetricsSteady {
+
+	private final int window;
+	private final double tolerance;
+
+	private final double[] rateArray;
+	private final double[] timeArray;
+	private final long[] wallArray;
+	private final long[] jitArray;
+
+	private final CompilationMXBean compiler = ManagementFactory
+			.getCompilationMXBean();
+
+	private int count;
+
+	/**
+	 * @param window
+	 *            number of marks to consider
+	 * @param tolerance
+	 *            relative variation, such as 0.05
+	 */
+	public MetricsSteady(final int window, final double tolerance) {
+		if (window < 2) {
+			throw new IllegalArgumentException("window must be at least 2");
+		}
+		this.window = window;
+		this.tolerance = tolerance;
+		this.rateArray = new double[window];
+		this.timeArray = new double[window];
+		this.wallArray = new long[window + 1];
+		this.jitArray = new long[window + 1];
+		wallArray[0] = System.nanoTime();
+		jitArray[0] = compileMillis();
+	}
+
+	private long compileMillis() {
+		if (compiler == null || !compiler.isCompilationTimeMonitoringSupported()) {
+			return 0;
+		}
+		return compiler.getTotalCompilationTime();
+	}
+
+	/**
+	 * Consume latest mark values.
+	 *
+	 * @return steady state is reached
+	 */
+	public boolean update(final double rate, final double time) {
+		rateArray[count % window] = rate;
+		timeArray[count % window] = time;
+		count++;
+		wallArray[count % (window + 1)] = System.nanoTime();
+		jitArray[count % (window + 1)] = compileMillis();
+		return isSteady();
+	}
+
+	/**
+	 * Last window of marks is stable.
+	 */
+	public boolean isSteady() {
+		if (count < window) {
+			return false;
+		}
+		if (variation(rateArray) > tolerance) {
+			return false;
+		}
+		if (variation(timeArray) > tolerance) {
+			return false;
+		}
+		final int last = count % (window + 1);
+		final int first = (count + 1) % (window + 1);
+		final double wallMillis = (wallArray[last] - wallArray[first]) / 1e6;
+		final long jitMillis = jitArray[last] - jitArray[first];
+		return jitMillis <= tolerance * wallMillis;
+	}
+
+	/**
+	 * Number of marks consumed.
+	 */
+	public int count() {
+		return count;
+	}
+
+	/** coefficient of variation */
+	static double variation(final double[] array) {
+		double sum = 0;
+		for (final double value : array) {
+			sum += value;
+		}
+		final double mean = sum / array.length;
+		if (mean == 0) {
+			return 0;
+		}
+		double square = 0;
+		for (final double value : array) {
+			square += (value - mean) * (value - mean);
+		}
+		return Math.sqrt(square / (array.length - 1)) / Math.abs(mean);
+	}
+
+}
@@ -0,0 +1,517 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.caliper.Json;
+import com.google.caliper.Result;
+import com.google.caliper.Run;
+import com.google.caliper.Scenario;
+
+/**
+ * Embedded append only store of caliper results.
+ * <p>
+ * each {@link Result} is one record: header with time stamp, benchmark name,
+ * source revision and scenario variables, followed by deflated JSON payload;
+ * headers are indexed in memory on open, payloads are read from memory mapped
+ * file on demand; single mapping limits store file to 2 GB
+ */
+public class MetricsStore {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsStore.class);
+
+	/** record marker: "BNCH" */
+	private static final int MAGIC = 0x424e4348;
+
+	/** system property to override store location */
+	public static final String PROPERTY = "bench.store";
+
+	/**
+	 * Indexed record header.
+	 */
+	public static class Entry {
+
+		private final long offset;
+		private final long timestamp;
+		private final String benchmark;
+		private final String revision;
+		private final List<Map<String, String>> scenarios;
+
+		Entry(final long offset, final long timestamp, final String benchmark,
+				final String revision, final List<Map<String, String>> scenarios) {
+			this.offset = offset;
+			this.timestamp = timestamp;
+			this.benchmark = benchmark;
+			this.revision = revision;
+			this.scenarios = scenarios;
+		}
+
+		/** record position in store file */
+		public long offset() {
+			return offset;
+		}
+
+		/** run execution time, millis */
+		public long timestamp() {
+			return timestamp;
+		}
+
+		/** benchmark class name */
+		public String benchmark() {
+			return benchmark;
+		}
+
+		/** source control revision */
+		public String revision() {
+			return revision;
+		}
+
+		/** scenario variables of the run */
+		public List<Map<String, String>> scenarios() {
+			return scenarios;
+		}
+
+		/** run has scenario with all given variables */
+		public boolean hasScenario(final Map<String, String> vars) {
+			if (vars == null || vars.isEmpty()) {
+				return true;
+			}
+			for (final Map<String, String> scenario : scenarios) {
+				if (scenario.entrySet().containsAll(vars.entrySet())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return benchmark + "@" + timestamp + "/" + revision;
+		}
+
+	}
+
+	private final File file;
+
+	private final List<Entry> entryList = new ArrayList<Entry>();
+
+	private final Map<String, List<Entry>> benchmarkMap = new HashMap<String, List<Entry>>();
+
+	private MappedByteBuffer buffer;
+
+	/** position after last indexed record */
+	private long indexed;
+
+	/**
+	 * Store in {@value #PROPERTY} or ${user.home}/.barchart-bench/results.store
+	 */
+	public static File defaultFile() {
+		final String path = System.getProperty(PROPERTY);
+		if (path != null) {
+			return new File(path);
+		}
+		return new File(System.getProperty("user.home") + File.separator
+				+ ".barchart-bench" + File.separator + "results.store");
+	}
+
+	/**
+	 * Open default store.
+	 */
+	public MetricsStore() throws IOException {
+		this(defaultFile());
+	}
+
+	/**
+	 * Open or create store file and index existing records.
+	 */
+	public MetricsStore(final File file) throws IOException {
+		this.file = file;
+		final File folder = file.getAbsoluteFile().getParentFile();
+		if (!folder.exists() && !folder.mkdirs()) {
+			throw new IOException("failed to create " + folder);
+		}
+		scan();
+	}
+
+	/**
+	 * Store file.
+	 */
+	public File file() {
+		return file;
+	}
+
+	/**
+	 * Index record headers; drop torn record left by a crash.
+	 */
+	private void scan() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		remap();
+		indexFrom(0);
+		if (indexed < buffer.limit()) {
+			repair();
+		}
+		log.debug("indexed {} runs in {}", entryList.size(), file);
+	}
+
+	/**
+	 * Index complete records starting at position; stop at incomplete one.
+	 */
+	private void indexFrom(long position) {
+		while (position < buffer.limit()) {
+			final Entry entry;
+			try {
+				entry = header(position);
+			} catch (final Exception e) {
+				break;
+			}
+			index(entry);
+			position = entry.offset + 8 + buffer.getInt((int) position + 4);
+		}
+		indexed = position;
+	}
+
+	/**
+	 * Truncate damaged tail under the append lock, so record which another
+	 * process is still writing is never taken for a torn one.
+	 */
+	private void repair() throws IOException {
+		final RandomAccessFile access = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = access.getChannel();
+			final FileLock lock = channel.lock();
+			try {
+				remap();
+				indexFrom(indexed);
+				if (indexed < buffer.limit()) {
+					log.warn("dropping damaged store tail at {} in {}",
+							indexed, file);
+					channel.truncate(indexed);
+					remap();
+				}
+			} finally {
+				lock.release();
+			}
+		} finally {
+			access.close();
+		}
+	}
+
+	/**
+	 * Map whole file; single mapping limits store size to 2 GB.
+	 */
+	private void remap() throws IOException {
+		final RandomAccessFile access = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = access.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("store exceeds 2 GB, rotate " + file);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			access.close();
+		}
+	}
+
+	private void index(final Entry entry) {
+		entryList.add(entry);
+		List<Entry> list = benchmarkMap.get(entry.benchmark);
+		if (list == null) {
+			list = new ArrayList<Entry>();
+			benchmarkMap.put(entry.benchmark, list);
+		}
+		list.add(entry);
+	}
+
+	private Entry header(final long offset) throws IOException {
+		final DataInputStream input = input(offset);
+		if (input.readInt() != MAGIC) {
+			throw new IOException("invalid record marker");
+		}
+		final int length = input.readInt();
+		if (offset + 8 + length > buffer.limit()) {
+			throw new IOException("truncated record");
+		}
+		final long timestamp = input.readLong();
+		final String benchmark = input.readUTF();
+		final String revision = input.readUTF();
+		final int count = input.readInt();
+		final List<Map<String, String>> scenarios = new ArrayList<Map<String, String>>(
+				count);
+		for (int index = 0; index < count; index++) {
+			scenarios.add(BenchUtil.decode(input.readUTF()));
+		}
+		return new Entry(offset, timestamp, benchmark, revision,
+				Collections.unmodifiableList(scenarios));
+	}
+
+	private DataInputStream input(final long offset) {
+		final ByteBuffer view = buffer.duplicate();
+		view.position((int) offset);
+		return new DataInputStream(new InputStream() {
+			@Override
+			public int read() {
+				return view.hasRemaining() ? view.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(final byte[] array, final int from, final int size) {
+				if (!view.hasRemaining()) {
+					return -1;
+				}
+				final int count = Math.min(size, view.remaining());
+				view.get(array, from, count);
+				return count;
+			}
+		});
+	}
+
+	/**
+	 * Append result as new record.
+	 */
+	public synchronized Entry append(final Result result) throws IOException {
+
+		final Run run = result.getRun();
+
+		final String revision = result.getEnvironment().getProperties()
+				.get(MetricsRunner.REVISION);
+
+		final byte[] payload = deflate(Json.getGsonInstance().toJson(result)
+				.getBytes("UTF-8"));
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream output = new DataOutputStream(bytes);
+		output.writeLong(run.getExecutedTimestamp().getTime());
+		output.writeUTF(run.getBenchmarkName());
+		output.writeUTF(revision == null ? "" : revision);
+		output.writeInt(run.getMeasurements().size());
+		for (final Scenario scenario : run.getMeasurements().keySet()) {
+			output.writeUTF(BenchUtil.encode(scenario.getVariables()));
+		}
+		output.writeInt(payload.length);
+		output.write(payload);
+		output.flush();
+
+		final ByteBuffer record = ByteBuffer.allocate(8 + bytes.size());
+		record.putInt(MAGIC);
+		record.putInt(bytes.size());
+		record.put(bytes.toByteArray());
+		record.flip();
+
+		final RandomAccessFile access = new RandomAccessFile(file, "rw");
+		final long offset;
+		try {
+			final FileChannel channel = access.getChannel();
+			final FileLock lock = channel.lock();
+			try {
+				offset = channel.size();
+				if (offset + record.remaining() > Integer.MAX_VALUE) {
+					throw new IOException("store would exceed 2 GB, rotate "
+							+ file);
+				}
+				channel.position(offset);
+				while (record.hasRemaining()) {
+					channel.write(record);
+				}
+				channel.force(true);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			access.close();
+		}
+
+		/** pick up records appended by other processes too */
+		final int known = entryList.size();
+		remap();
+		indexFrom(indexed);
+		Entry entry = null;
+		for (int index = known; index < entryList.size(); index++) {
+			if (entryList.get(index).offset == offset) {
+				entry = entryList.get(index);
+			}
+		}
+		if (entry == null) {
+			throw new IOException("damaged store at " + indexed + " in "
+					+ file);
+		}
+
+		log.debug("stored {} in {}", entry, file);
+
+		return entry;
+	}
+
+	/**
+	 * Load full result of indexed record.
+	 */
+	public synchronized Result load(final Entry entry) throws IOException {
+		final DataInputStream input = input(entry.offset);
+		input.readInt();
+		input.readInt();
+		input.readLong();
+		input.readUTF();
+		input.readUTF();
+		final int count = input.readInt();
+		for (int index = 0; index < count; index++) {
+			input.readUTF();
+		}
+		final byte[] payload = new byte[input.readInt()];
+		input.readFully(payload);
+		final String json = new String(inflate(payload), "UTF-8");
+		return Json.getGsonInstance().fromJson(json, Result.class);
+	}
+
+	/**
+	 * All indexed records in store order.
+	 */
+	public synchronized List<Entry> entries() {
+		return new ArrayList<Entry>(entryList);
+	}
+
+	/**
+	 * Records of a benchmark in time range, having a scenario with all given
+	 * variables.
+	 *
+	 * @param vars
+	 *            scenario variables, or null for any scenario
+	 * @param timeFrom
+	 *            inclusive, millis
+	 * @param timeUpto
+	 *            exclusive, millis
+	 */
+	public synchronized List<Entry> query(final String benchmark,
+			final Map<String, String> vars, final long timeFrom,
+			final long timeUpto) {
+		final List<Entry> result = new ArrayList<Entry>();
+		final List<Entry> list = benchmarkMap.get(benchmark);
+		if (list == null) {
+			return result;
+		}
+		for (final Entry entry : list) {
+			if (entry.timestamp < timeFrom || entry.timestamp >= timeUpto) {
+				continue;
+			}
+			if (entry.hasScenario(vars)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Most recent record of a benchmark, or null.
+	 */
+	public synchronized Entry latest(final String benchmark) {
+		final List<Entry> list = benchmarkMap.get(benchmark);
+		if (list == null) {
+			return null;
+		}
+		Entry latest = null;
+		for (final Entry entry : list) {
+			if (latest == null || entry.timestamp >= latest.timestamp) {
+				latest = entry;
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Most recent record of a benchmark which passed regression check or was
+	 * accepted as new baseline, or null; records without
+	 * {@link MetricsRunner#VERDICT} count as passed.
+	 */
+	public synchronized Entry baseline(final String benchmark)
+			throws IOException {
+		final List<Entry> list = benchmarkMap.get(benchmark);
+		if (list == null) {
+			return null;
+		}
+		final List<Entry> sorted = new ArrayList<Entry>(list);
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(final Entry one, final Entry two) {
+				return Long.valueOf(one.timestamp).compareTo(two.timestamp);
+			}
+		});
+		for (int index = sorted.size() - 1; index >= 0; index--) {
+			final Entry entry = sorted.get(index);
+			final String verdict = load(entry).getEnvironment()
+					.getProperties().get(MetricsRunner.VERDICT);
+			if (!MetricsRunner.REGRESSED.equals(verdict)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private static byte[] deflate(final byte[] array) {
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setInput(array);
+			deflater.finish();
+			final ByteArrayOutputStream output = new ByteArrayOutputStream(
+					array.length / 4 + 64);
+			final byte[] chunk = new byte[8 * 1024];
+			while (!deflater.finished()) {
+				output.write(chunk, 0, deflater.deflate(chunk));
+			}
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(final byte[] array) throws IOException {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(array);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream(
+					array.length * 4);
+			final byte[] chunk = new byte[8 * 1024];
+			while (!inflater.finished()) {
+				final int count = inflater.inflate(chunk);
+				if (count == 0 && inflater.needsInput()) {
+					throw new IOException("truncated payload");
+				}
+				output.write(chunk, 0, count);
+			}
+			return output.toByteArray();
+		} catch (final DataFormatException e) {
+			throw new IOException("damaged payload", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
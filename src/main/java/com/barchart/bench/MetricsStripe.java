@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention free rate and time meters of a single thread.
+ * <p>
+ * counters and latency recorder have a single writer and are published with
+ * ordered stores, so updates cost no lock and no fence;
+ * {@link MetricsMeasure#mark()} merges all stripes; obtain from
+ * {@link MetricsMeasure#stripe()} on the thread which uses it, so the stripe
+ * is allocated in that thread local heap region
+ */
+public class MetricsStripe {
+
+	private final LatencyRecorder.Stripe latency;
+
+	private final AtomicLong rateCount = new AtomicLong();
+
+	private final AtomicLong timeCount = new AtomicLong();
+
+	private final AtomicLong timeSum = new AtomicLong();
+
+	MetricsStripe(final LatencyRecorder latency) {
+		this.latency = latency.stripe();
+	}
+
+	/**
+	 * Count single event, same as {@link MetricsMeasure#rate()} mark.
+	 */
+	public void mark() {
+		mark(1);
+	}
+
+	/**
+	 * Count events, such as bytes.
+	 */
+	public void mark(final long count) {
+		rateCount.lazySet(rateCount.get() + count);
+	}
+
+	/**
+	 * Operation start time stamp.
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record operation started at {@link #start()}.
+	 */
+	public void stop(final long start) {
+		record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Record single operation time, nanoseconds; also feeds latency
+	 * percentiles.
+	 */
+	public void record(final long nanos) {
+		if (nanos < 0) {
+			return;
+		}
+		timeSum.lazySet(timeSum.get() + nanos);
+		timeCount.lazySet(timeCount.get() + 1);
+		latency.sample(nanos);
+	}
+
+	long rateCount() {
+		return rateCount.get();
+	}
+
+	long timeCount() {
+		return timeCount.get();
+	}
+
+	long timeSum() {
+		return timeSum.get();
+	}
+
+}
@@ -0,0 +1,435 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Live telemetry of every metric sample, while benchmark is running.
+ * <p>
+ * each sample becomes one JSON line with wall clock time, scenario variables,
+ * metric name and value; lines are exported through local HTTP endpoint, as
+ * server-sent events on "/events" and as JSON lines on "/lines", and into a
+ * rolling file
+ * <p>
+ * sampling thread never blocks: raw samples go through bounded queues, are
+ * serialized on writer thread, and are dropped and counted when a consumer
+ * falls behind
+ */
+public class MetricsTelemetry implements MetricsListener {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(MetricsTelemetry.class);
+
+	/** system property: local HTTP port, zero for any */
+	public static final String PORT = "bench.telemetry.port";
+
+	/** system property: rolling file path */
+	public static final String FILE = "bench.telemetry.file";
+
+	/** pending lines of writer and of each HTTP client */
+	static final int QUEUE = 16 * 1024;
+
+	/** default file size limit before roll over */
+	static final long FILE_LIMIT = 64 * 1024 * 1024;
+
+	/** default number of rolled files kept */
+	static final int FILE_COUNT = 3;
+
+	private static MetricsTelemetry system;
+
+	/** held by current execution, see {@link #attach(MetricsTelemetry)} */
+	private static volatile MetricsTelemetry attached;
+
+	/**
+	 * Telemetry which each scenario set up adds to its listeners, or null.
+	 */
+	static MetricsTelemetry attached() {
+		return attached;
+	}
+
+	/**
+	 * Attach telemetry held by caller, such as {@link MetricsRunner}
+	 * execution or forked child, to scenarios set up from now on, so endpoint
+	 * and file outlive single scenario; null to detach.
+	 *
+	 * @return previously attached telemetry, to restore
+	 */
+	static MetricsTelemetry attach(final MetricsTelemetry telemetry) {
+		synchronized (MetricsTelemetry.class) {
+			final MetricsTelemetry previous = attached;
+			attached = telemetry;
+			return previous;
+		}
+	}
+
+	/**
+	 * Shared telemetry configured by system properties {@value #PORT} and
+	 * {@value #FILE}; null when neither is set; each caller must
+	 * {@link #close()} it.
+	 */
+	public static synchronized MetricsTelemetry system() {
+		if (system != null) {
+			system.holders++;
+			return system;
+		}
+		final String port = System.getProperty(PORT);
+		final String file = System.getProperty(FILE);
+		if (port == null && file == null) {
+			return null;
+		}
+		final MetricsTelemetry telemetry = new MetricsTelemetry(
+				port == null ? -1 : Integer.parseInt(port),
+				file == null ? null : new File(file), FILE_LIMIT, FILE_COUNT);
+		try {
+			telemetry.start();
+		} catch (final IOException e) {
+			log.error("telemetry failure", e);
+			return null;
+		}
+		system = telemetry;
+		system.holders++;
+		return system;
+	}
+
+	/**
+	 * Raw sample, serialized on writer thread.
+	 */
+	private static final class Event {
+
+		final long time;
+		final Map<String, String> vars;
+		final String metric;
+		final double value;
+
+		Event(final long time, final Map<String, String> vars,
+				final String metric, final double value) {
+			this.time = time;
+			this.vars = vars;
+			this.metric = metric;
+			this.value = value;
+		}
+
+	}
+
+	private final Gson gson = new Gson();
+
+	private final int port;
+
+	private final File file;
+
+	private final long fileLimit;
+
+	private final int fileCount;
+
+	private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(
+			QUEUE);
+
+	/** pending lines of each HTTP client */
+	private final List<BlockingQueue<String>> clients = new CopyOnWriteArrayList<BlockingQueue<String>>();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean isActive;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private Thread thread;
+
+	private Writer writer;
+
+	private long fileSize;
+
+	/** users of shared {@link #system()} instance */
+	private int holders;
+
+	/**
+	 * @param port
+	 *            local HTTP port, zero for any, negative for none
+	 * @param file
+	 *            rolling file, or null for none
+	 * @param fileLimit
+	 *            file size which triggers roll over, bytes
+	 * @param fileCount
+	 *            rolled files kept as file.1 ... file.N
+	 */
+	public MetricsTelemetry(final int port, final File file,
+			final long fileLimit, final int fileCount) {
+		this.port = port;
+		this.file = file;
+		this.fileLimit = fileLimit;
+		this.fileCount = fileCount;
+	}
+
+	/**
+	 * Start HTTP endpoint and file writer.
+	 */
+	public synchronized void start() throws IOException {
+
+		if (isActive) {
+			throw new IllegalStateException("telemetry is active");
+		}
+
+		if (file != null) {
+			open();
+		}
+
+		if (port >= 0) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable task) {
+					final Thread thread = new Thread(task, "telemetry client");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			server = HttpServer.create(
+					new InetSocketAddress(InetAddress.getByName("localhost"),
+							port), 0);
+			server.createContext("/events", handler(true));
+			server.createContext("/lines", handler(false));
+			server.setExecutor(executor);
+			server.start();
+			log.info("telemetry http://localhost:{}/events", address()
+					.getPort());
+		}
+
+		isActive = true;
+		thread = new Thread("telemetry writer") {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	/**
+	 * Stop endpoint and flush file.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!isActive) {
+			return;
+		}
+		isActive = false;
+		thread.join();
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+		closeFile();
+	}
+
+	/**
+	 * Release telemetry after execution: stop endpoint and flush file, once
+	 * every user of shared {@link #system()} instance released it.
+	 */
+	public void close() {
+		synchronized (MetricsTelemetry.class) {
+			if (this == system) {
+				if (--holders > 0) {
+					return;
+				}
+				system = null;
+			}
+		}
+		try {
+			stop();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Bound HTTP address, or null.
+	 */
+	public InetSocketAddress address() {
+		return server == null ? null : server.getAddress();
+	}
+
+	/**
+	 * Lines dropped because of slow consumer.
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void sample(final MetricsMeasure measure, final String metric,
+			final long time, final double value) {
+		final Event event = new Event(System.currentTimeMillis(),
+				measure.variables(), metric, value);
+		if (!queue.offer(event)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void drain() {
+		try {
+			while (isActive || !queue.isEmpty()) {
+				final Event event = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (event == null) {
+					flush();
+					continue;
+				}
+				final String line = gson.toJson(event);
+				write(line);
+				for (final BlockingQueue<String> client : clients) {
+					if (!client.offer(line)) {
+						dropped.incrementAndGet();
+					}
+				}
+			}
+		} catch (final InterruptedException e) {
+			log.debug("telemetry interrupted", e);
+		}
+		flush();
+	}
+
+	private HttpHandler handler(final boolean isEvents) {
+		return new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				final BlockingQueue<String> client = new ArrayBlockingQueue<String>(
+						QUEUE);
+				clients.add(client);
+				try {
+					exchange.getResponseHeaders().set(
+							"Content-Type",
+							isEvents ? "text/event-stream"
+									: "application/x-ndjson");
+					exchange.getResponseHeaders().set("Cache-Control",
+							"no-cache");
+					exchange.sendResponseHeaders(200, 0);
+					final OutputStream output = exchange.getResponseBody();
+					while (isActive) {
+						final String line = client.poll(1,
+								TimeUnit.SECONDS);
+						if (line == null) {
+							/** detect closed connection */
+							output.write(isEvents ? ":\n\n".getBytes("UTF-8")
+									: "\n".getBytes("UTF-8"));
+						} else if (isEvents) {
+							output.write(("data: " + line + "\n\n")
+									.getBytes("UTF-8"));
+						} else {
+							output.write((line + "\n").getBytes("UTF-8"));
+						}
+						if (client.isEmpty()) {
+							output.flush();
+						}
+					}
+				} catch (final InterruptedException e) {
+					log.debug("client interrupted", e);
+				} catch (final IOException e) {
+					log.debug("client closed", e);
+				} finally {
+					clients.remove(client);
+					exchange.close();
+				}
+			}
+		};
+	}
+
+	private void open() throws IOException {
+		final File folder = file.getAbsoluteFile().getParentFile();
+		if (folder != null) {
+			folder.mkdirs();
+		}
+		fileSize = file.length();
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true), "UTF-8"));
+	}
+
+	private void write(final String line) {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.write(line);
+			writer.write('\n');
+			fileSize += line.length() + 1;
+			if (fileSize >= fileLimit) {
+				roll();
+			}
+		} catch (final IOException e) {
+			log.error("telemetry file failure", e);
+			closeFile();
+		}
+	}
+
+	/** file -> file.1 -> ... -> file.N, oldest dropped */
+	private void roll() throws IOException {
+		writer.close();
+		for (int index = fileCount; index > 0; index--) {
+			final File source = index == 1 ? file : new File(file.getPath()
+					+ "." + (index - 1));
+			final File target = new File(file.getPath() + "." + index);
+			if (source.exists()) {
+				target.delete();
+				source.renameTo(target);
+			}
+		}
+		open();
+	}
+
+	private void flush() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.flush();
+		} catch (final IOException e) {
+			log.error("telemetry file failure", e);
+			closeFile();
+		}
+	}
+
+	private void closeFile() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (final IOException e) {
+			log.debug("close failure", e);
+		}
+		writer = null;
+	}
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named scenario metric, in addition to rate, time and size.
+ * <p>
+ * registered with {@link MetricsMeasure#metric(String, Kind, String)};
+ * sampled on each {@link MetricsMeasure#mark()} by its kind of aggregation;
+ * statistics and bounded quantile sketch of samples are reported in scenario
+ * summary under "metric.name." keys, where {@link MetricsRegression} compares
+ * them
+ */
+public class MetricsValue {
+
+	/**
+	 * Interval aggregation.
+	 */
+	public enum Kind {
+
+		/** events per second, see {@link MetricsValue#mark(long)} */
+		COUNTER,
+
+		/** last value, see {@link MetricsValue#value(double)} */
+		GAUGE,
+
+		/** mean time, with percentiles, see {@link MetricsValue#record(long)} */
+		TIMER,
+
+		/** hit fraction 0..1, see {@link MetricsValue#mark(boolean)} */
+		RATIO,
+
+	}
+
+	private final String name;
+
+	private final Kind kind;
+
+	private final String unit;
+
+	private final MetricsSeries series;
+
+	private final LatencyRecorder latency;
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private volatile double gauge = Double.NaN;
+
+	/** state of previous sample */
+	private long markCount;
+	private long markTotal;
+
+	MetricsValue(final String name, final Kind kind, final String unit,
+			final int capacity) {
+		this.name = name;
+		this.kind = kind;
+		this.unit = unit;
+		series = new MetricsSeries(Collections.singletonMap(unit, 1), capacity);
+		latency = kind == Kind.TIMER ? new LatencyRecorder(null) : null;
+	}
+
+	/** metric name */
+	public String name() {
+		return name;
+	}
+
+	/** interval aggregation */
+	public Kind kind() {
+		return kind;
+	}
+
+	/** display unit */
+	public String unit() {
+		return unit;
+	}
+
+	/** interval samples */
+	public MetricsSeries series() {
+		return series;
+	}
+
+	private void check(final Kind expected) {
+		if (kind != expected) {
+			throw new IllegalStateException(name + " is " + kind);
+		}
+	}
+
+	/**
+	 * Count single event of counter.
+	 */
+	public void mark() {
+		mark(1);
+	}
+
+	/**
+	 * Count events of counter, such as bytes.
+	 */
+	public void mark(final long events) {
+		check(Kind.COUNTER);
+		count.addAndGet(events);
+	}
+
+	/**
+	 * Set gauge value, such as queue depth.
+	 */
+	public void value(final double value) {
+		check(Kind.GAUGE);
+		gauge = value;
+	}
+
+	/**
+	 * Record timer sample, nanoseconds.
+	 */
+	public void record(final long nanos) {
+		check(Kind.TIMER);
+		if (nanos < 0) {
+			return;
+		}
+		total.addAndGet(nanos);
+		count.incrementAndGet();
+		latency.record(nanos);
+	}
+
+	/**
+	 * Count ratio event, such as cache hit or miss.
+	 */
+	public void mark(final boolean isHit) {
+		check(Kind.RATIO);
+		if (isHit) {
+			total.incrementAndGet();
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Aggregate interval since previous sample.
+	 *
+	 * @return NaN when interval has no value
+	 */
+	synchronized double sample(final double elapsed) {
+		final long countNow = count.get();
+		final long totalNow = total.get();
+		final long countDelta = countNow - markCount;
+		final long totalDelta = totalNow - markTotal;
+		markCount = countNow;
+		markTotal = totalNow;
+		switch (kind) {
+		case COUNTER:
+			return elapsed <= 0 ? Double.NaN : countDelta / elapsed;
+		case GAUGE:
+			return gauge;
+		default:
+			return countDelta == 0 ? Double.NaN : totalDelta
+					/ (double) countDelta;
+		}
+	}
+
+	/**
+	 * Discard samples taken so far.
+	 */
+	void reset() {
+		series.clear();
+		if (latency != null) {
+			latency.reset();
+		}
+	}
+
+	/**
+	 * Report statistics and quantile sketch into scenario summary.
+	 */
+	void summarize(final Map<String, String> summary) {
+
+		final String prefix = "metric." + name + ".";
+		summary.put(prefix + "kind", kind.name().toLowerCase());
+		summary.put(prefix + "unit", unit);
+
+		final double[] values = series.values();
+		if (values.length > 0) {
+			double sum = 0;
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for (final double value : values) {
+				sum += value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			final double[] sorted = values.clone();
+			Arrays.sort(sorted);
+			summary.put(prefix + "mean", String.valueOf(sum / values.length));
+			summary.put(prefix + "median",
+					String.valueOf(MetricsRegression.median(values)));
+			summary.put(prefix + "min", String.valueOf(min));
+			summary.put(prefix + "max", String.valueOf(max));
+			summary.put(prefix + MetricsRegression.QUANTILES,
+					MetricsRegression.sketch(new MetricsRegression.Quantile() {
+						@Override
+						public double value(final double percentile) {
+							return sorted[Math.min(sorted.length - 1,
+									(int) (percentile / 100 * sorted.length))];
+						}
+					}, sorted.length));
+		}
+
+		if (latency != null) {
+			latency.summarize(summary, prefix + "latency.");
+		}
+
+	}
+
+}
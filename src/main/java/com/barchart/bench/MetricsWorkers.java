@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Closed loop worker threads with common start.
+ * <p>
+ * each thread creates own {@link MetricsStripe}, waits for all others to be
+ * ready, then repeats the operation until stopped; each operation is counted
+ * as one rate event and timed
+ */
+public class MetricsWorkers {
+
+	/**
+	 * Measured operation.
+	 */
+	public interface Worker {
+
+		/**
+		 * @param index
+		 *            worker thread index, from zero
+		 */
+		void execute(int index) throws Exception;
+
+	}
+
+	private final MetricsMeasure measure;
+
+	private final Worker worker;
+
+	private final Thread[] threads;
+
+	private final CountDownLatch ready;
+
+	private final CountDownLatch start = new CountDownLatch(1);
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	private volatile boolean isActive;
+
+	public MetricsWorkers(final MetricsMeasure measure, final int count,
+			final Worker worker) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("invalid thread count");
+		}
+		this.measure = measure;
+		this.worker = worker;
+		threads = new Thread[count];
+		ready = new CountDownLatch(count);
+	}
+
+	/**
+	 * Number of worker threads.
+	 */
+	public int size() {
+		return threads.length;
+	}
+
+	/**
+	 * Start all workers at once.
+	 */
+	public synchronized void start() throws InterruptedException {
+		if (isActive) {
+			throw new IllegalStateException("workers are active");
+		}
+		isActive = true;
+		for (int index = 0; index < threads.length; index++) {
+			final int number = index;
+			threads[index] = new Thread("worker " + index) {
+				@Override
+				public void run() {
+					work(number);
+				}
+			};
+			threads[index].setDaemon(true);
+			threads[index].start();
+		}
+		ready.await();
+		start.countDown();
+	}
+
+	private void work(final int index) {
+		final MetricsStripe stripe = measure.stripe();
+		ready.countDown();
+		try {
+			start.await();
+			while (isActive) {
+				final long time = stripe.start();
+				worker.execute(index);
+				stripe.stop(time);
+				stripe.mark();
+			}
+		} catch (final Throwable e) {
+			failure.compareAndSet(null, e);
+			isActive = false;
+		}
+	}
+
+	/**
+	 * Stop all workers and wait for them.
+	 *
+	 * @throws Exception
+	 *             first worker failure
+	 */
+	public synchronized void stop() throws Exception {
+		isActive = false;
+		for (final Thread thread : threads) {
+			if (thread != null) {
+				thread.join();
+			}
+		}
+		final Throwable error = failure.get();
+		if (error instanceof Exception) {
+			throw (Exception) error;
+		}
+		if (error != null) {
+			throw new IllegalStateException("worker failure", error);
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time probe against {@link EchoServer}.
+ * <p>
+ * connection is opened once and kept warm between probes; each probe sends a
+ * message with sequence number and waits for its echo; blocking probe parks
+ * in read of a plain blocking socket with read timeout, non blocking probe
+ * busy polls a non blocking channel, trading a core for lower wake up
+ * latency; not thread safe
+ */
+public class NetworkProbe {
+
+	/**
+	 * Probe transport.
+	 */
+	public enum Protocol {
+		TCP, UDP
+	}
+
+	/** sequence number header */
+	static final int HEADER = 8;
+
+	private final Protocol protocol;
+
+	private final boolean isBlocking;
+
+	private final ByteBuffer request;
+
+	private final ByteBuffer response;
+
+	private long timeout = TimeUnit.SECONDS.toNanos(1);
+
+	/** non blocking transport */
+	private ByteChannel channel;
+
+	/** blocking TCP transport */
+	private Socket socket;
+	private InputStream input;
+	private OutputStream output;
+
+	/** blocking UDP transport */
+	private DatagramSocket datagram;
+	private DatagramPacket sendPacket;
+	private DatagramPacket receivePacket;
+
+	private final byte[] requestArray;
+	private final byte[] responseArray;
+
+	private long sequence;
+
+	private long lost;
+
+	/**
+	 * @param protocol
+	 *            transport
+	 * @param isBlocking
+	 *            block in socket read, rather than busy poll
+	 * @param size
+	 *            message size, bytes
+	 */
+	public NetworkProbe(final Protocol protocol, final boolean isBlocking,
+			final int size) {
+		if (size < HEADER) {
+			throw new IllegalArgumentException("message size below " + HEADER);
+		}
+		this.protocol = protocol;
+		this.isBlocking = isBlocking;
+		request = ByteBuffer.allocateDirect(size);
+		response = ByteBuffer.allocateDirect(size);
+		requestArray = new byte[size];
+		responseArray = new byte[size];
+		new Random(size).nextBytes(requestArray);
+		request.put(requestArray).clear();
+	}
+
+	/**
+	 * Echo wait limit; expired TCP probe fails, expired UDP probe is lost.
+	 */
+	public void timeout(final long time, final TimeUnit unit) {
+		if (time <= 0) {
+			throw new IllegalArgumentException("invalid timeout");
+		}
+		timeout = unit.toNanos(time);
+	}
+
+	/**
+	 * Connect to echo server.
+	 */
+	public void open(final InetSocketAddress address) throws IOException {
+		if (channel != null || socket != null || datagram != null) {
+			throw new IllegalStateException("probe is open");
+		}
+		switch (protocol) {
+		case TCP:
+			if (isBlocking) {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.connect(address, millis(timeout));
+				input = socket.getInputStream();
+				output = socket.getOutputStream();
+			} else {
+				final SocketChannel socketChannel = SocketChannel.open(address);
+				socketChannel.socket().setTcpNoDelay(true);
+				socketChannel.configureBlocking(false);
+				channel = socketChannel;
+			}
+			break;
+		case UDP:
+			if (isBlocking) {
+				datagram = new DatagramSocket();
+				datagram.connect(address);
+				sendPacket = new DatagramPacket(requestArray,
+						requestArray.length);
+				receivePacket = new DatagramPacket(responseArray,
+						responseArray.length);
+			} else {
+				final DatagramChannel datagramChannel = DatagramChannel.open();
+				datagramChannel.connect(address);
+				datagramChannel.configureBlocking(false);
+				channel = datagramChannel;
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("unknown protocol");
+		}
+	}
+
+	/**
+	 * Measure one round trip.
+	 *
+	 * @return round trip time, nanos, or -1 for lost UDP probe
+	 */
+	public long probe() throws IOException {
+		if (isBlocking) {
+			return protocol == Protocol.TCP ? probeSocket() : probeDatagram();
+		}
+		return probeChannel();
+	}
+
+	/** busy poll non blocking channel */
+	private long probeChannel() throws IOException {
+
+		final long number = ++sequence;
+		request.clear();
+		request.putLong(0, number);
+
+		final long timeStart = System.nanoTime();
+		final long deadline = timeStart + timeout;
+
+		while (request.hasRemaining()) {
+			if (channel.write(request) == 0 && System.nanoTime() > deadline) {
+				throw new SocketTimeoutException("probe send timeout");
+			}
+		}
+
+		while (true) {
+			response.clear();
+			if (protocol == Protocol.TCP) {
+				while (response.hasRemaining()) {
+					final int count = channel.read(response);
+					if (count < 0) {
+						throw new EOFException("probe connection closed");
+					}
+					if (count == 0 && System.nanoTime() > deadline) {
+						throw new SocketTimeoutException("probe echo timeout");
+					}
+				}
+			} else if (channel.read(response) == 0) {
+				if (System.nanoTime() > deadline) {
+					lost++;
+					return -1;
+				}
+				continue;
+			}
+			if (response.getLong(0) == number) {
+				return System.nanoTime() - timeStart;
+			}
+			if (protocol == Protocol.TCP) {
+				throw new IOException("probe sequence mismatch");
+			}
+			/** late echo of lost UDP probe */
+		}
+
+	}
+
+	/** block in stream read with read timeout */
+	private long probeSocket() throws IOException {
+
+		final long number = ++sequence;
+		ByteBuffer.wrap(requestArray).putLong(0, number);
+
+		final long timeStart = System.nanoTime();
+
+		socket.setSoTimeout(millis(timeout));
+		output.write(requestArray);
+		output.flush();
+
+		int offset = 0;
+		while (offset < responseArray.length) {
+			final int count = input.read(responseArray, offset,
+					responseArray.length - offset);
+			if (count < 0) {
+				throw new EOFException("probe connection closed");
+			}
+			offset += count;
+		}
+
+		if (ByteBuffer.wrap(responseArray).getLong(0) != number) {
+			throw new IOException("probe sequence mismatch");
+		}
+		return System.nanoTime() - timeStart;
+
+	}
+
+	/** block in datagram receive with read timeout */
+	private long probeDatagram() throws IOException {
+
+		final long number = ++sequence;
+		ByteBuffer.wrap(requestArray).putLong(0, number);
+
+		final long timeStart = System.nanoTime();
+		final long deadline = timeStart + timeout;
+
+		datagram.send(sendPacket);
+
+		while (true) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				lost++;
+				return -1;
+			}
+			datagram.setSoTimeout(millis(remaining));
+			receivePacket.setLength(responseArray.length);
+			try {
+				datagram.receive(receivePacket);
+			} catch (final SocketTimeoutException e) {
+				lost++;
+				return -1;
+			}
+			if (ByteBuffer.wrap(responseArray).getLong(0) == number) {
+				return System.nanoTime() - timeStart;
+			}
+			/** late echo of lost UDP probe */
+		}
+
+	}
+
+	/** socket timeout, at least a millisecond */
+	private static int millis(final long nanos) {
+		return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+	/**
+	 * Measure one round trip and record it into
+	 * {@link MetricsMeasure#latency()}, which also feeds
+	 * {@link MetricsMeasure#time()}.
+	 *
+	 * @return round trip time, nanos, or -1 for lost UDP probe
+	 */
+	public long probe(final MetricsMeasure measure) throws IOException {
+		final long time = probe();
+		if (time >= 0) {
+			measure.latency().record(time);
+		}
+		return time;
+	}
+
+	/**
+	 * Number of lost UDP probes.
+	 */
+	public long lost() {
+		return lost;
+	}
+
+	/**
+	 * Disconnect from echo server.
+	 */
+	public void close() throws IOException {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			if (socket != null) {
+				socket.close();
+			}
+			if (datagram != null) {
+				datagram.close();
+			}
+		} finally {
+			channel = null;
+			socket = null;
+			datagram = null;
+		}
+	}
+
+}
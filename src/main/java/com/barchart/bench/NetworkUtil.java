@@ -7,10 +7,20 @@
  */
 package com.barchart.bench;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,8 +33,121 @@ public final class NetworkUtil {
 	private static final Logger log = LoggerFactory.getLogger(NetworkUtil.class);
 
 	/**
-	 * Measure ping time to a host.
+	 * System property: leased port range, "first-last"; default is below
+	 * typical ephemeral range, so kernel never hands out leased ports.
 	 */
+	public static final String PORT_RANGE = "bench.port.range";
+
+	static final String PORT_RANGE_DEFAULT = "20000-29999";
+
+	/** lock file shared by all benchmark processes on this host */
+	static final String PORT_LOCK = "barchart-bench-ports.lock";
+
+	/** ports leased by this process */
+	private static final BitSet leased = new BitSet();
+
+	/** next lease search position */
+	private static int cursor;
+
+	private static FileChannel lockChannel;
+
+	private static boolean isLockFailed;
+
+	/**
+	 * Reserved range of consecutive local ports.
+	 * <p>
+	 * ports stay reserved against concurrent scenarios of this process and,
+	 * by file lock, of other processes on the host until released
+	 */
+	public static final class Lease implements Closeable {
+
+		private final InetAddress host;
+
+		private final int port;
+
+		private final int count;
+
+		private final List<FileLock> locks;
+
+		private boolean isReleased;
+
+		Lease(final InetAddress host, final int port, final int count,
+				final List<FileLock> locks) {
+			this.host = host;
+			this.port = port;
+			this.count = count;
+			this.locks = locks;
+		}
+
+		/** first leased port */
+		public int port() {
+			return port;
+		}
+
+		/** number of leased ports */
+		public int count() {
+			return count;
+		}
+
+		/** first leased address */
+		public InetSocketAddress address() {
+			return address(0);
+		}
+
+		/** leased address by index in range */
+		public InetSocketAddress address(final int index) {
+			if (index < 0 || index >= count) {
+				throw new IndexOutOfBoundsException("index " + index
+						+ " count " + count);
+			}
+			return new InetSocketAddress(host, port + index);
+		}
+
+		/** ports were returned to the pool */
+		public boolean isReleased() {
+			synchronized (leased) {
+				return isReleased;
+			}
+		}
+
+		/**
+		 * Return ports to the pool; repeated release is ignored.
+		 */
+		public void release() {
+			synchronized (leased) {
+				if (isReleased) {
+					return;
+				}
+				isReleased = true;
+				for (final FileLock lock : locks) {
+					try {
+						lock.release();
+					} catch (final IOException e) {
+						log.debug("lock release failure", e);
+					}
+				}
+				leased.clear(port, port + count);
+			}
+		}
+
+		@Override
+		public void close() {
+			release();
+		}
+
+		@Override
+		public String toString() {
+			return host.getHostAddress() + ":" + port + "+" + count;
+		}
+
+	}
+
+	/**
+	 * Measure ping time to a host, millis; mostly process spawn cost.
+	 *
+	 * @deprecated use {@link NetworkProbe} with {@link EchoServer}
+	 */
+	@Deprecated
 	public static long ping(final String host) throws Exception {
 		final String name = System.getProperty("os.name").toLowerCase();
 
@@ -59,9 +182,142 @@ public final class NetworkUtil {
 		process.waitFor();
 	}
 
+	/**
+	 * Lease single port on named local address.
+	 */
+	public static Lease lease(final String host) throws IOException {
+		return lease(host, 1);
+	}
+
+	/**
+	 * Lease range of consecutive ports on named local address, which are free
+	 * for both TCP and UDP; never waits.
+	 *
+	 * @throws IOException
+	 *             when configured range has no free ports
+	 */
+	public static Lease lease(final String host, final int count)
+			throws IOException {
+
+		final InetAddress address = InetAddress.getByName(host);
+
+		final String[] range = System.getProperty(PORT_RANGE,
+				PORT_RANGE_DEFAULT).split("-");
+		final int first = Integer.parseInt(range[0].trim());
+		final int last = Integer.parseInt(range[1].trim());
+		final int size = last - first + 1;
+
+		if (count < 1 || count > size) {
+			throw new IllegalArgumentException("count " + count);
+		}
+
+		synchronized (leased) {
+			for (int attempt = 0; attempt < size; attempt++) {
+				final int port = first + (cursor++ % size);
+				if (port + count - 1 > last) {
+					continue;
+				}
+				final List<FileLock> locks = acquire(address, port, count);
+				if (locks != null) {
+					cursor = port + count - first;
+					leased.set(port, port + count);
+					final Lease lease = new Lease(address, port, count, locks);
+					log.debug("leased {}", lease);
+					return lease;
+				}
+			}
+		}
+
+		throw new IOException("no free ports in " + first + "-" + last);
+	}
+
+	/** lock and verify each port of range, or null */
+	private static List<FileLock> acquire(final InetAddress address,
+			final int port, final int count) {
+		final List<FileLock> locks = new ArrayList<FileLock>();
+		for (int index = 0; index < count; index++) {
+			final int next = port + index;
+			if (leased.get(next)) {
+				break;
+			}
+			final FileChannel channel = lockChannel();
+			if (channel != null) {
+				final FileLock lock;
+				try {
+					lock = channel.tryLock(next, 1, false);
+				} catch (final IOException e) {
+					log.debug("port lock failure", e);
+					break;
+				}
+				if (lock == null) {
+					break;
+				}
+				locks.add(lock);
+			}
+			if (!isFree(address, next)) {
+				break;
+			}
+			if (index == count - 1) {
+				return locks;
+			}
+		}
+		for (final FileLock lock : locks) {
+			try {
+				lock.release();
+			} catch (final IOException e) {
+				log.debug("lock release failure", e);
+			}
+		}
+		return null;
+	}
+
+	/** host wide lock file, or null when not available */
+	private static FileChannel lockChannel() {
+		if (lockChannel == null && !isLockFailed) {
+			try {
+				final File file = new File(System.getProperty("java.io.tmpdir"),
+						PORT_LOCK);
+				lockChannel = new RandomAccessFile(file, "rw").getChannel();
+			} catch (final IOException e) {
+				log.warn("port lock file is not available", e);
+				isLockFailed = true;
+			}
+		}
+		return lockChannel;
+	}
+
+	/** port can be bound for TCP and UDP */
+	private static boolean isFree(final InetAddress address, final int port) {
+		ServerSocket server = null;
+		DatagramSocket datagram = null;
+		try {
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress(address, port));
+			datagram = new DatagramSocket(new InetSocketAddress(address, port));
+			return true;
+		} catch (final IOException e) {
+			return false;
+		} finally {
+			if (server != null) {
+				try {
+					server.close();
+				} catch (final IOException e) {
+					log.debug("close failure", e);
+				}
+			}
+			if (datagram != null) {
+				datagram.close();
+			}
+		}
+	}
+
 	/**
 	 * @return newly allocated address or null for failure
+	 * @deprecated port may be taken between close and reuse; use
+	 *             {@link #lease(String, int)}
 	 */
+	@Deprecated
 	public static synchronized InetSocketAddress findLocalAddress(
 			final String host) {
 		ServerSocket socket = null;
@@ -85,7 +341,10 @@ public final class NetworkUtil {
 
 	/**
 	 * Find named address on local host.
+	 *
+	 * @deprecated use {@link #lease(String, int)}
 	 */
+	@Deprecated
 	public static InetSocketAddress hostedSocketAddress(final String host)
 			throws Exception {
 		for (int k = 0; k < 10; k++) {
@@ -101,7 +360,10 @@ public final class NetworkUtil {
 
 	/**
 	 * Allocate available local address / port or throw exception.
+	 *
+	 * @deprecated use {@link #lease(String)}
 	 */
+	@Deprecated
 	public static InetSocketAddress localSocketAddress() throws Exception {
 		return hostedSocketAddress("localhost");
 	}
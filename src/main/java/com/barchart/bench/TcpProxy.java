@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP relay with traffic impairment.
+ * <p>
+ * data read from one side is delivered to the other side as is, after shape
+ * delay; segment loss is modeled as retransmission timeout penalty, since
+ * stream can not lose data; reorder does not apply
+ */
+public class TcpProxy extends TrafficProxy {
+
+	/** read buffer size */
+	static final int CHUNK = 16 * 1024;
+
+	/** queued bytes per direction which pause reading */
+	static final int LIMIT = 1024 * 1024;
+
+	/** lost segment penalty, nanos */
+	static final long RETRANSMIT = TimeUnit.MILLISECONDS.toNanos(200);
+
+	/**
+	 * One direction of a connection.
+	 */
+	private static final class Link {
+
+		final SocketChannel source;
+		final SocketChannel target;
+		final Lane lane = new Lane();
+		final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+		Link peer;
+		SelectionKey key;
+
+		/** bytes read and not yet written */
+		long pending;
+		boolean isEndRead;
+		boolean isEndReleased;
+		boolean isEndWritten;
+		boolean isClosed;
+
+		Link(final SocketChannel source, final SocketChannel target) {
+			this.source = source;
+			this.target = target;
+		}
+
+	}
+
+	private ServerSocketChannel server;
+
+	private final Set<Link> linkSet = new HashSet<Link>();
+
+	public TcpProxy(final InetSocketAddress target, final TrafficShape shape) {
+		super(target, shape);
+	}
+
+	@Override
+	public InetSocketAddress address() {
+		return (InetSocketAddress) server.socket().getLocalSocketAddress();
+	}
+
+	@Override
+	protected void bind(final InetSocketAddress local) throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(local);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	@Override
+	protected void handle(final SelectionKey key) throws IOException {
+		if (key.isAcceptable()) {
+			accept();
+			return;
+		}
+		final Link link = (Link) key.attachment();
+		if (key.isConnectable()) {
+			connect(link);
+			return;
+		}
+		if (key.isReadable()) {
+			read(link);
+		}
+		if (key.isValid() && key.isWritable()) {
+			flush(link.peer);
+		}
+	}
+
+	private void accept() throws IOException {
+
+		final SocketChannel client = server.accept();
+		if (client == null) {
+			return;
+		}
+
+		/** connect without blocking relay thread */
+		final SocketChannel remote = SocketChannel.open();
+		final boolean isConnected;
+		try {
+			client.configureBlocking(false);
+			remote.configureBlocking(false);
+			client.socket().setTcpNoDelay(true);
+			remote.socket().setTcpNoDelay(true);
+			isConnected = remote.connect(target());
+		} catch (final IOException e) {
+			log.debug("target connect failure", e);
+			client.close();
+			remote.close();
+			return;
+		}
+
+		final Link upstream = new Link(client, remote);
+		final Link downstream = new Link(remote, client);
+		upstream.peer = downstream;
+		downstream.peer = upstream;
+
+		/** client is not read until target is connected */
+		upstream.key = client.register(selector, 0, upstream);
+		downstream.key = remote.register(selector, SelectionKey.OP_CONNECT,
+				downstream);
+
+		linkSet.add(upstream);
+		linkSet.add(downstream);
+
+		if (isConnected) {
+			connected(downstream);
+		}
+
+	}
+
+	/**
+	 * Finish target connect of downstream link.
+	 */
+	private void connect(final Link link) throws IOException {
+		try {
+			if (!link.source.finishConnect()) {
+				return;
+			}
+		} catch (final IOException e) {
+			log.debug("target connect failure", e);
+			close(link);
+			return;
+		}
+		connected(link);
+	}
+
+	/** start relay in both directions */
+	private void connected(final Link link) {
+		interest(link);
+		interest(link.peer);
+	}
+
+	private void read(final Link link) throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+		final int count = link.source.read(buffer);
+
+		if (count < 0) {
+			link.isEndRead = true;
+			final long release = link.lane.stream(shape(), random, 0, 0);
+			schedule(new Packet(release, null, link, null));
+		} else if (count > 0) {
+			buffer.flip();
+			final long release = link.lane.stream(shape(), random, count,
+					RETRANSMIT);
+			link.pending += count;
+			schedule(new Packet(release, buffer, link, null));
+		}
+
+		interest(link);
+
+	}
+
+	@Override
+	protected void release(final Packet packet) throws IOException {
+		final Link link = (Link) packet.route;
+		if (link.isClosed) {
+			return;
+		}
+		if (packet.data == null) {
+			link.isEndReleased = true;
+		} else {
+			link.outbound.add(packet.data);
+		}
+		flush(link);
+	}
+
+	/**
+	 * Write released data of the link into its target.
+	 */
+	private void flush(final Link link) throws IOException {
+
+		while (!link.outbound.isEmpty()) {
+			final ByteBuffer buffer = link.outbound.peek();
+			link.pending -= link.target.write(buffer);
+			if (buffer.hasRemaining()) {
+				break;
+			}
+			link.outbound.poll();
+		}
+
+		if (link.outbound.isEmpty() && link.isEndReleased
+				&& !link.isEndWritten) {
+			link.isEndWritten = true;
+			link.target.socket().shutdownOutput();
+			if (link.peer.isEndWritten) {
+				close(link);
+				return;
+			}
+		}
+
+		interest(link);
+		interest(link.peer);
+
+	}
+
+	/**
+	 * Update interest of link source channel: read its own data, write data
+	 * of its peer.
+	 */
+	private void interest(final Link link) {
+		if (link.isClosed || !link.key.isValid()
+				|| link.source.isConnectionPending()
+				|| link.target.isConnectionPending()) {
+			return;
+		}
+		int ops = 0;
+		if (!link.isEndRead && link.pending < LIMIT) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (!link.peer.outbound.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		link.key.interestOps(ops);
+	}
+
+	private void close(final Link link) {
+		for (final Link item : new Link[] { link, link.peer }) {
+			item.isClosed = true;
+			item.outbound.clear();
+			linkSet.remove(item);
+			try {
+				item.source.close();
+			} catch (final IOException e) {
+				log.debug("close failure", e);
+			}
+		}
+	}
+
+	@Override
+	protected void failed(final SelectionKey key) {
+		if (key.attachment() instanceof Link) {
+			close((Link) key.attachment());
+		}
+	}
+
+	@Override
+	protected void failed(final Packet packet) {
+		close((Link) packet.route);
+	}
+
+	@Override
+	protected void closeAll() {
+		while (!linkSet.isEmpty()) {
+			close(linkSet.iterator().next());
+		}
+		try {
+			server.close();
+		} catch (final IOException e) {
+			log.debug("close failure", e);
+		}
+	}
+
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In JVM network relay which applies {@link TrafficShape} to traffic between
+ * client and target; root free alternative to {@link TrafficControl}.
+ * <p>
+ * each proxy runs one selector thread; packets wait in a release queue until
+ * their delivery time; every connection or datagram session has its own link
+ * state, so many proxies with different shapes can run side by side
+ */
+public abstract class TrafficProxy {
+
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Packet waiting for delivery.
+	 */
+	protected static final class Packet implements Comparable<Packet> {
+
+		final long release;
+		final ByteBuffer data;
+		final Object route;
+		final SocketAddress address;
+		long sequence;
+
+		Packet(final long release, final ByteBuffer data, final Object route,
+				final SocketAddress address) {
+			this.release = release;
+			this.data = data;
+			this.route = route;
+			this.address = address;
+		}
+
+		@Override
+		public int compareTo(final Packet that) {
+			if (release != that.release) {
+				return release < that.release ? -1 : 1;
+			}
+			if (sequence != that.sequence) {
+				return sequence < that.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+
+	}
+
+	/**
+	 * One direction of a connection: serialization and delivery order.
+	 */
+	protected static final class Lane {
+
+		private long linkFree;
+		private long lastRelease;
+
+		/**
+		 * Delivery time of ordered stream segment.
+		 *
+		 * @param retransmit
+		 *            penalty of lost segment, nanos
+		 */
+		long stream(final TrafficShape shape, final Random random,
+				final int size, final long retransmit) {
+			long release = transmit(shape, random, size);
+			if (shape.loss() > 0 && random.nextDouble() < shape.loss()) {
+				release += retransmit;
+			}
+			release = Math.max(release, lastRelease);
+			lastRelease = release;
+			return release;
+		}
+
+		/**
+		 * Delivery time of datagram, or negative when lost.
+		 */
+		long datagram(final TrafficShape shape, final Random random,
+				final int size) {
+			if (shape.loss() > 0 && random.nextDouble() < shape.loss()) {
+				return -1;
+			}
+			long release = transmit(shape, random, size);
+			if (shape.reorder() > 0 && random.nextDouble() < shape.reorder()) {
+				/** let following datagrams overtake this one */
+				release += Math.max(shape.latency(),
+						TimeUnit.MILLISECONDS.toNanos(1));
+			}
+			return release;
+		}
+
+		private long transmit(final TrafficShape shape, final Random random,
+				final int size) {
+			final long timeNow = System.nanoTime();
+			linkFree = Math.max(timeNow, linkFree) + shape.transfer(size);
+			return linkFree + shape.delay(random);
+		}
+
+	}
+
+	private final InetSocketAddress target;
+
+	private volatile TrafficShape shape;
+
+	protected final Random random = new Random();
+
+	protected Selector selector;
+
+	private final PriorityQueue<Packet> queue = new PriorityQueue<Packet>();
+
+	private long sequence;
+
+	private volatile boolean isActive;
+
+	private Thread thread;
+
+	protected TrafficProxy(final InetSocketAddress target,
+			final TrafficShape shape) {
+		this.target = target;
+		this.shape = shape;
+	}
+
+	/**
+	 * Relay destination.
+	 */
+	public InetSocketAddress target() {
+		return target;
+	}
+
+	/**
+	 * Current impairment.
+	 */
+	public TrafficShape shape() {
+		return shape;
+	}
+
+	/**
+	 * Change impairment; applies to packets received from now on.
+	 */
+	public void shape(final TrafficShape shape) {
+		this.shape = shape;
+	}
+
+	/**
+	 * Proxy address clients should use.
+	 */
+	public abstract InetSocketAddress address();
+
+	/**
+	 * Bind on any free local port and start relay thread.
+	 */
+	public InetSocketAddress start() throws IOException {
+		return start(new InetSocketAddress(target.getAddress(), 0));
+	}
+
+	/**
+	 * Bind on given address and start relay thread.
+	 */
+	public synchronized InetSocketAddress start(final InetSocketAddress local)
+			throws IOException {
+		if (thread != null) {
+			throw new IllegalStateException("proxy is active");
+		}
+		selector = Selector.open();
+		bind(local);
+		isActive = true;
+		thread = new Thread("proxy " + address() + " -> " + target) {
+			@Override
+			public void run() {
+				try {
+					loop();
+				} catch (final Throwable e) {
+					log.error("proxy failure", e);
+				} finally {
+					closeAll();
+					try {
+						selector.close();
+					} catch (final IOException e) {
+						log.debug("selector close", e);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		log.debug("proxy {} -> {} {}", address(), target, shape);
+		return address();
+	}
+
+	/**
+	 * Stop relay thread and close all connections.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (thread == null) {
+			return;
+		}
+		isActive = false;
+		selector.wakeup();
+		thread.join();
+		thread = null;
+	}
+
+	/**
+	 * Schedule packet delivery; relay thread only.
+	 */
+	protected void schedule(final Packet packet) {
+		packet.sequence = sequence++;
+		queue.add(packet);
+	}
+
+	/** release delay below selector timeout granularity, nanos */
+	private static final long FINE = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private void loop() throws IOException {
+		while (isActive) {
+
+			final Packet head = queue.peek();
+			if (head == null) {
+				selector.select();
+			} else {
+				final long delay = head.release - System.nanoTime();
+				if (delay <= 0) {
+					selector.selectNow();
+				} else if (delay < FINE) {
+					/** millisecond select would overshoot release */
+					if (selector.selectNow() == 0) {
+						LockSupport.parkNanos(delay);
+					}
+				} else {
+					/** wake up early, finish wait on the fine path */
+					selector.select(TimeUnit.NANOSECONDS.toMillis(delay));
+				}
+			}
+
+			final Iterator<SelectionKey> iterator = selector.selectedKeys()
+					.iterator();
+			while (iterator.hasNext()) {
+				final SelectionKey key = iterator.next();
+				iterator.remove();
+				try {
+					if (key.isValid()) {
+						handle(key);
+					}
+				} catch (final IOException e) {
+					log.debug("connection failure", e);
+					failed(key);
+				}
+			}
+
+			final long timeNow = System.nanoTime();
+			while (!queue.isEmpty() && queue.peek().release <= timeNow) {
+				final Packet packet = queue.poll();
+				try {
+					release(packet);
+				} catch (final IOException e) {
+					log.debug("delivery failure", e);
+					failed(packet);
+				}
+			}
+
+		}
+	}
+
+	/**
+	 * Bind listening channel and register it with {@link #selector}.
+	 */
+	protected abstract void bind(InetSocketAddress local) throws IOException;
+
+	/**
+	 * Process ready channel.
+	 */
+	protected abstract void handle(SelectionKey key) throws IOException;
+
+	/**
+	 * Deliver packet which is due.
+	 */
+	protected abstract void release(Packet packet) throws IOException;
+
+	/**
+	 * Drop connection of failed channel.
+	 */
+	protected abstract void failed(SelectionKey key);
+
+	/**
+	 * Drop connection of failed delivery.
+	 */
+	protected abstract void failed(Packet packet);
+
+	/**
+	 * Close listening channel and all connections.
+	 */
+	protected abstract void closeAll();
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network impairment applied by {@link TrafficProxy} in each direction.
+ */
+public class TrafficShape {
+
+	/** no impairment */
+	public static final TrafficShape NONE = new TrafficShape(
+			TimeUnit.MILLISECONDS, 0, 0, 0, 0.0, 0.0);
+
+	/**
+	 * Fixed one way latency, millis.
+	 */
+	public static TrafficShape latency(final long millis) {
+		return new TrafficShape(TimeUnit.MILLISECONDS, millis, 0, 0, 0.0, 0.0);
+	}
+
+	private final long latency;
+	private final long jitter;
+	private final long bandwidth;
+	private final double loss;
+	private final double reorder;
+
+	/**
+	 * @param unit
+	 *            latency and jitter time unit
+	 * @param latency
+	 *            one way delay
+	 * @param jitter
+	 *            uniform random delay variation, plus or minus
+	 * @param bandwidth
+	 *            bytes per second, zero for unlimited
+	 * @param loss
+	 *            packet loss probability; for TCP a lost segment costs a
+	 *            retransmission timeout
+	 * @param reorder
+	 *            probability of datagram reordering; ignored for TCP
+	 */
+	public TrafficShape(final TimeUnit unit, final long latency,
+			final long jitter, final long bandwidth, final double loss,
+			final double reorder) {
+		if (latency < 0 || jitter < 0 || bandwidth < 0) {
+			throw new IllegalArgumentException("negative shape value");
+		}
+		if (loss < 0 || loss > 1 || reorder < 0 || reorder > 1) {
+			throw new IllegalArgumentException("invalid probability");
+		}
+		this.latency = unit.toNanos(latency);
+		this.jitter = unit.toNanos(jitter);
+		this.bandwidth = bandwidth;
+		this.loss = loss;
+		this.reorder = reorder;
+	}
+
+	/** one way delay, nanos */
+	public long latency() {
+		return latency;
+	}
+
+	/** delay variation, nanos */
+	public long jitter() {
+		return jitter;
+	}
+
+	/** bytes per second, zero for unlimited */
+	public long bandwidth() {
+		return bandwidth;
+	}
+
+	/** loss probability */
+	public double loss() {
+		return loss;
+	}
+
+	/** reorder probability */
+	public double reorder() {
+		return reorder;
+	}
+
+	/**
+	 * Random delay for next packet, nanos.
+	 */
+	long delay(final Random random) {
+		if (jitter == 0) {
+			return latency;
+		}
+		final long delta = (long) ((2 * random.nextDouble() - 1) * jitter);
+		return Math.max(0, latency + delta);
+	}
+
+	/**
+	 * Link occupation time of a packet, nanos.
+	 */
+	long transfer(final int size) {
+		if (bandwidth == 0) {
+			return 0;
+		}
+		return size * 1000L * 1000L * 1000L / bandwidth;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"latency=%dus jitter=%dus bandwidth=%dB/s loss=%s reorder=%s",
+				latency / 1000, jitter / 1000, bandwidth, loss, reorder);
+	}
+
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.caliper.Param;
+
+/**
+ * Reference transport throughput of this host: one connection over loopback
+ * into a discarding sink.
+ * <p>
+ * reports bytes per second as rate, time of single message write as time,
+ * and message size as size
+ */
+public class TransportBench extends MetricsBench {
+
+	/**
+	 * Client write path.
+	 */
+	public enum Mode {
+
+		/** blocking channel write */
+		BLOCKING,
+
+		/** non blocking channel, selector wait for partial write */
+		SELECTOR,
+
+		/** blocking gathering write of header and payload buffers */
+		GATHER,
+
+		/** zero copy file transfer, buffer kind does not apply */
+		TRANSFER,
+
+	}
+
+	/**
+	 * Client buffer kind.
+	 */
+	public enum Buffer {
+
+		/** reused heap buffer, copied by JDK into temporary direct buffer */
+		HEAP,
+
+		/** reused direct buffer */
+		DIRECT,
+
+		/** direct buffer borrowed from and returned to a pool per message */
+		POOLED,
+
+	}
+
+	/** header size of gathering write */
+	static final int HEADER = 16;
+
+	/** transfer source file size */
+	static final int FILE_SIZE = 4 * 1024 * 1024;
+
+	/** sink read buffer size */
+	static final int SINK_SIZE = 256 * 1024;
+
+	@Param
+	String mode;
+
+	protected static List<String> modeValues() {
+		return Arrays.asList("BLOCKING", "SELECTOR", "GATHER", "TRANSFER");
+	}
+
+	@Param
+	String buffer;
+
+	protected static List<String> bufferValues() {
+		return Arrays.asList("HEAP", "DIRECT", "POOLED");
+	}
+
+	@Param
+	int message;
+
+	protected static List<String> messageValues() {
+		return Arrays.asList("256", "4096", "65536");
+	}
+
+	@Param
+	long duration;
+
+	protected static List<String> durationValues() {
+		return Arrays.asList("3000");
+	}
+
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final AtomicLong sent = new AtomicLong();
+
+	private final AtomicLong received = new AtomicLong();
+
+	private Mode writeMode;
+
+	private Buffer bufferKind;
+
+	private ServerSocketChannel server;
+
+	private Thread sink;
+
+	private SocketChannel channel;
+
+	private Selector selector;
+
+	private File file;
+
+	private FileChannel source;
+
+	private ByteBuffer header;
+
+	private ByteBuffer payload;
+
+	private long position;
+
+	/** buffer kind does not apply to zero copy transfer */
+	@Override
+	protected boolean isValid(final Map<String, String> vars) {
+		return !"TRANSFER".equals(vars.get("mode"))
+				|| !vars.containsKey("buffer")
+				|| "DIRECT".equals(vars.get("buffer"));
+	}
+
+	/** warm up no longer than measurement */
+	@Override
+	protected long warmupLimit() {
+		return duration;
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		writeMode = Mode.valueOf(mode);
+		bufferKind = Buffer.valueOf(buffer);
+
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(lease("localhost", 1).address());
+
+		sink = new Thread("transport sink") {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		sink.setDaemon(true);
+		sink.start();
+
+		channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+
+		if (writeMode == Mode.SELECTOR) {
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_WRITE);
+		}
+
+		if (writeMode == Mode.TRANSFER) {
+			file = File.createTempFile("transport", ".bin");
+			final RandomAccessFile access = new RandomAccessFile(file, "rw");
+			access.setLength(Math.max(FILE_SIZE, message));
+			source = access.getChannel();
+		}
+
+		if (writeMode == Mode.GATHER) {
+			header = allocate(HEADER);
+			payload = allocate(message - HEADER);
+		} else {
+			payload = allocate(message);
+		}
+
+		measure().size().value(message);
+
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		channel.close();
+		sink.join();
+		server.close();
+
+		if (selector != null) {
+			selector.close();
+		}
+		if (source != null) {
+			source.close();
+			file.delete();
+		}
+		pool.clear();
+
+		measure().summary().put("transport.sent", String.valueOf(sent.get()));
+		measure().summary().put("transport.received",
+				String.valueOf(received.get()));
+
+		super.tearDown();
+
+	}
+
+	/** Write messages into sink. */
+	public void timeMain(final int reps) throws Exception {
+
+		final AtomicBoolean isOn = new AtomicBoolean(true);
+
+		final Thread thread = new Thread("transport writer") {
+			@Override
+			public void run() {
+				while (isOn.get()) {
+					try {
+						final long time = measure().latency().start();
+						send();
+						measure().latency().stop(time);
+					} catch (final Exception e) {
+						log.error("", e);
+						break;
+					}
+					measure().rate().mark(message);
+					sent.addAndGet(message);
+				}
+			}
+		};
+		thread.start();
+
+		markWait(duration);
+
+		isOn.set(false);
+		thread.join();
+
+	}
+
+	private void send() throws IOException {
+		switch (writeMode) {
+		case TRANSFER:
+			transfer();
+			break;
+		case GATHER:
+			final ByteBuffer head = borrow(header, HEADER);
+			final ByteBuffer body = borrow(payload, message - HEADER);
+			write(new ByteBuffer[] { head, body });
+			giveBack(head);
+			giveBack(body);
+			break;
+		default:
+			final ByteBuffer data = borrow(payload, message);
+			write(new ByteBuffer[] { data });
+			giveBack(data);
+			break;
+		}
+	}
+
+	private void write(final ByteBuffer[] array) throws IOException {
+		final ByteBuffer last = array[array.length - 1];
+		while (last.hasRemaining()) {
+			if (array.length == 1) {
+				channel.write(last);
+			} else {
+				channel.write(array);
+			}
+			if (selector != null && last.hasRemaining()) {
+				selector.select();
+				selector.selectedKeys().clear();
+			}
+		}
+	}
+
+	private void transfer() throws IOException {
+		if (position + message > source.size()) {
+			position = 0;
+		}
+		long done = 0;
+		while (done < message) {
+			done += source.transferTo(position + done, message - done, channel);
+		}
+		position += message;
+	}
+
+	private ByteBuffer allocate(final int size) {
+		return bufferKind == Buffer.HEAP ? ByteBuffer.allocate(size)
+				: ByteBuffer.allocateDirect(size);
+	}
+
+	/** reused buffer, or pooled one */
+	private ByteBuffer borrow(final ByteBuffer reused, final int size) {
+		if (bufferKind != Buffer.POOLED) {
+			reused.clear();
+			return reused;
+		}
+		ByteBuffer pooled = pool.poll();
+		if (pooled == null || pooled.capacity() < size) {
+			pooled = ByteBuffer.allocateDirect(Math.max(size, message));
+		}
+		pooled.clear().limit(size);
+		return pooled;
+	}
+
+	private void giveBack(final ByteBuffer pooled) {
+		if (bufferKind == Buffer.POOLED) {
+			pool.offer(pooled);
+		}
+	}
+
+	/** discard everything until end of stream */
+	private void drain() {
+		try {
+			final SocketChannel client = server.accept();
+			try {
+				final ByteBuffer chunk = ByteBuffer.allocateDirect(SINK_SIZE);
+				while (true) {
+					chunk.clear();
+					final int count = client.read(chunk);
+					if (count < 0) {
+						break;
+					}
+					received.addAndGet(count);
+				}
+			} finally {
+				client.close();
+			}
+		} catch (final IOException e) {
+			log.debug("sink closed", e);
+		}
+	}
+
+	/** run as java app */
+	public static void main(final String... args) throws Exception {
+		MetricsRunner.execute(TransportBench.class);
+	}
+
+}
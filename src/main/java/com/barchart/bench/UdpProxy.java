@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * UDP relay with traffic impairment.
+ * <p>
+ * each client address gets own upstream channel, so replies find their way
+ * back; datagrams may be lost or reordered according to shape
+ */
+public class UdpProxy extends TrafficProxy {
+
+	/** maximum datagram size */
+	static final int DATAGRAM = 64 * 1024;
+
+	/**
+	 * Datagram exchange of one client.
+	 */
+	private static final class Session {
+
+		final SocketAddress client;
+		final DatagramChannel upstream;
+		final Lane forward = new Lane();
+		final Lane backward = new Lane();
+
+		Session(final SocketAddress client, final DatagramChannel upstream) {
+			this.client = client;
+			this.upstream = upstream;
+		}
+
+	}
+
+	private DatagramChannel server;
+
+	private final Map<SocketAddress, Session> sessionMap = new HashMap<SocketAddress, Session>();
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(DATAGRAM);
+
+	public UdpProxy(final InetSocketAddress target, final TrafficShape shape) {
+		super(target, shape);
+	}
+
+	@Override
+	public InetSocketAddress address() {
+		return (InetSocketAddress) server.socket().getLocalSocketAddress();
+	}
+
+	@Override
+	protected void bind(final InetSocketAddress local) throws IOException {
+		server = DatagramChannel.open();
+		server.socket().bind(local);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_READ);
+	}
+
+	@Override
+	protected void handle(final SelectionKey key) throws IOException {
+		final Session session = (Session) key.attachment();
+		if (session == null) {
+			receiveClient();
+		} else {
+			receiveTarget(session);
+		}
+	}
+
+	private void receiveClient() throws IOException {
+		while (true) {
+			buffer.clear();
+			final SocketAddress client = server.receive(buffer);
+			if (client == null) {
+				return;
+			}
+			Session session = sessionMap.get(client);
+			if (session == null) {
+				final DatagramChannel upstream = DatagramChannel.open();
+				upstream.connect(target());
+				upstream.configureBlocking(false);
+				session = new Session(client, upstream);
+				upstream.register(selector, SelectionKey.OP_READ, session);
+				sessionMap.put(client, session);
+			}
+			route(session.forward, session.upstream, null);
+		}
+	}
+
+	private void receiveTarget(final Session session) throws IOException {
+		while (true) {
+			buffer.clear();
+			if (session.upstream.read(buffer) <= 0) {
+				return;
+			}
+			route(session.backward, server, session.client);
+		}
+	}
+
+	/**
+	 * Schedule copy of received datagram, unless lost.
+	 */
+	private void route(final Lane lane, final DatagramChannel channel,
+			final SocketAddress address) {
+		buffer.flip();
+		final long release = lane.datagram(shape(), random,
+				buffer.remaining());
+		if (release < 0) {
+			return;
+		}
+		final ByteBuffer data = ByteBuffer.allocate(buffer.remaining());
+		data.put(buffer).flip();
+		schedule(new Packet(release, data, channel, address));
+	}
+
+	/**
+	 * Send datagram; full socket buffer drops it, as network would.
+	 */
+	@Override
+	protected void release(final Packet packet) throws IOException {
+		final DatagramChannel channel = (DatagramChannel) packet.route;
+		if (!channel.isOpen()) {
+			return;
+		}
+		if (packet.address == null) {
+			channel.write(packet.data);
+		} else {
+			channel.send(packet.data, packet.address);
+		}
+	}
+
+	@Override
+	protected void failed(final SelectionKey key) {
+		final Session session = (Session) key.attachment();
+		if (session != null) {
+			close(session);
+		}
+	}
+
+	@Override
+	protected void failed(final Packet packet) {
+		/** datagram lost, such as by icmp port unreachable */
+	}
+
+	private void close(final Session session) {
+		sessionMap.remove(session.client);
+		try {
+			session.upstream.close();
+		} catch (final IOException e) {
+			log.debug("close failure", e);
+		}
+	}
+
+	@Override
+	protected void closeAll() {
+		for (final Session session : sessionMap.values()
+				.toArray(new Session[0])) {
+			close(session);
+		}
+		try {
+			server.close();
+		} catch (final IOException e) {
+			log.debug("close failure", e);
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+public class ClusterEngineTest {
+
+	/**
+	 * Echo server and probe client, in separate agents or in one process.
+	 */
+	public static class EchoBench extends MetricsBench {
+
+		private EchoServer server;
+
+		private NetworkProbe probe;
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		@Override
+		protected void setUp() throws Exception {
+			super.setUp();
+			if (isRole("server")) {
+				server = new EchoServer(NetworkProbe.Protocol.TCP);
+				final InetSocketAddress address = server
+						.start(new InetSocketAddress("localhost", 0));
+				publish("echo", String.valueOf(address.getPort()));
+			}
+			if (isRole("client")) {
+				probe = new NetworkProbe(NetworkProbe.Protocol.TCP, true, 100);
+				probe.open(new InetSocketAddress("localhost", Integer
+						.parseInt(property("echo"))));
+			}
+		}
+
+		@Override
+		protected void tearDown() throws Exception {
+			if (probe != null) {
+				probe.close();
+			}
+			if (server != null) {
+				server.stop();
+			}
+			super.tearDown();
+		}
+
+		public void timeMain(final int reps) throws Exception {
+
+			if (!isRole("client")) {
+				/** outlive clients */
+				markWait(1500);
+				/** beyond writeUTF limit */
+				measure().summary().put("test.large",
+						StringUtils.repeat('x', 100 * 1000));
+				return;
+			}
+
+			final AtomicBoolean isOn = new AtomicBoolean(true);
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (isOn.get()) {
+							probe.probe(measure());
+							measure().rate().mark();
+						}
+					} catch (final Exception e) {
+						log.error("", e);
+					}
+				}
+			};
+			thread.start();
+
+			markWait(1000);
+
+			isOn.set(false);
+			thread.join();
+
+		}
+
+	}
+
+	@Test
+	public void clientServer() throws Exception {
+
+		final ClusterEngine engine = ClusterEngine.local(
+				Collections.<String> emptyList(), "server", "client");
+
+		try {
+
+			final Map<String, String> vars = new TreeMap<String, String>();
+			vars.put("benchmark", "Main");
+
+			final MetricsMeasure measure = engine.execute(EchoBench.class,
+					vars);
+
+			final MetricsSeries rate = measure.series(MetricsMeasure.RATE);
+			assertTrue("marks " + rate.size(), rate.size() >= 5);
+			assertTrue(rate.value(rate.size() / 2) > 100);
+
+			final Map<String, String> summary = measure.summary();
+			assertNotNull(summary.get("agent.client0.latency.p99"));
+			assertNotNull(summary.get("agent.server0.offset"));
+			assertNull(summary.get("agent.server0.latency.p99"));
+			assertEquals(100 * 1000, summary.get("agent.server0.test.large")
+					.length());
+			assertTrue(measure.series("agent.client0.rate").size() > 0);
+			assertEquals(vars, measure.variables());
+
+		} finally {
+			engine.close();
+		}
+
+	}
+
+	@Test
+	public void twoClients() throws Exception {
+
+		final ClusterEngine engine = ClusterEngine.local(
+				Collections.<String> emptyList(), "server", "client", "client");
+
+		try {
+
+			final Map<String, String> vars = new TreeMap<String, String>();
+			vars.put("benchmark", "Main");
+
+			final MetricsMeasure measure = engine.execute(EchoBench.class,
+					vars);
+
+			/** merged on time grid: both clients summed, server ignored */
+			final double rate = median(measure.series(MetricsMeasure.RATE));
+			final double sum = median(measure.series("agent.client0.rate"))
+					+ median(measure.series("agent.client1.rate"));
+			assertEquals(sum, rate, sum * 0.3);
+			assertEquals("", measure.summary().get("agent.server0.measured"));
+
+		} finally {
+			engine.close();
+		}
+
+	}
+
+	private static double median(final MetricsSeries series) {
+		final double[] array = new double[series.size()];
+		for (int index = 0; index < array.length; index++) {
+			array[index] = series.value(index);
+		}
+		Arrays.sort(array);
+		return array[array.length / 2];
+	}
+
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+public class ForkEngineTest {
+
+	/**
+	 * Busy workload with fixed warm up, which never reaches steady state.
+	 */
+	public static class WarmupBench extends MetricsBench {
+
+		@Override
+		protected long markStep() {
+			return 50;
+		}
+
+		@Override
+		protected int warmupWindow() {
+			return 1000;
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 500;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+
+			final AtomicBoolean isOn = new AtomicBoolean(true);
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					while (isOn.get()) {
+						measure().rate().mark();
+						Thread.yield();
+					}
+				}
+			};
+			thread.start();
+
+			markWait(500);
+
+			isOn.set(false);
+			thread.join();
+
+			/** marks which child kept after warm up */
+			measure().summary().put("test.marks",
+					String.valueOf(measure().series(MetricsMeasure.RATE).size()));
+
+		}
+
+	}
+
+	@Test
+	public void warmupDiscarded() throws Exception {
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("benchmark", "Main");
+
+		final MetricsMeasure measure = new ForkEngine().execute(
+				WarmupBench.class, vars);
+
+		final int marks = Integer.parseInt(measure.summary().get("test.marks"));
+		assertTrue("marks " + marks, marks >= 5);
+		assertEquals(marks, measure.series(MetricsMeasure.RATE).size());
+		assertEquals(marks, measure.series(MetricsMeasure.TIME).size());
+
+	}
+
+	/**
+	 * Known samples and summary, checked on parent side.
+	 */
+	public static class RoundBench extends MetricsBench {
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+
+			for (int index = 1; index <= 5; index++) {
+				measure().rate().mark(index);
+				measure().size().value(index * 100 + 0.25);
+				Thread.sleep(10);
+				measure().mark();
+			}
+
+			final MetricsSeries size = measure().series(MetricsMeasure.SIZE);
+			final StringBuilder text = new StringBuilder();
+			for (int index = 0; index < size.size(); index++) {
+				text.append(size.time(index)).append('=')
+						.append(size.value(index)).append(';');
+			}
+			measure().summary().put("test.size", text.toString());
+			measure().summary().put("test.text", "value with spaces, \u00e9");
+			/** 128 KB in UTF-8, beyond writeUTF limit */
+			measure().summary().put("test.large",
+					StringUtils.repeat("\u00e9", 64 * 1024));
+
+		}
+
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("benchmark", "Main");
+
+		final MetricsMeasure measure = new ForkEngine().execute(
+				RoundBench.class, vars);
+
+		/** every sample, with child time stamp and exact value */
+		final MetricsSeries size = measure.series(MetricsMeasure.SIZE);
+		assertEquals(5, size.size());
+		final StringBuilder text = new StringBuilder();
+		for (int index = 0; index < size.size(); index++) {
+			text.append(size.time(index)).append('=').append(size.value(index))
+					.append(';');
+		}
+		assertEquals(measure.summary().get("test.size"), text.toString());
+		assertEquals(5, measure.series(MetricsMeasure.RATE).size());
+		assertEquals(5, measure.series(MetricsMeasure.TIME).size());
+
+		/** summary, including child reports */
+		assertEquals("value with spaces, \u00e9",
+				measure.summary().get("test.text"));
+		assertEquals(StringUtils.repeat("\u00e9", 64 * 1024), measure.summary()
+				.get("test.large"));
+		assertNotNull(measure.summary().get("gc.count"));
+		assertEquals(vars, measure.variables());
+
+	}
+
+	/**
+	 * Child scenario fails.
+	 */
+	public static class FailureBench extends MetricsBench {
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			measure().rate().mark();
+			measure().mark();
+			throw new IllegalStateException("child scenario failure");
+		}
+
+	}
+
+	@Test
+	public void failure() throws Exception {
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("benchmark", "Main");
+
+		try {
+			new ForkEngine().execute(FailureBench.class, vars);
+			fail("failure expected");
+		} catch (final Exception e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("child failure"));
+			assertTrue(e.getMessage(),
+					e.getMessage().contains("child scenario failure"));
+		}
+
+	}
+
+}
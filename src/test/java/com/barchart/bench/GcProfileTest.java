@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.google.caliper.Param;
+import com.google.caliper.Run;
+import com.google.caliper.ScenarioResult;
+
+public class GcProfileTest {
+
+	static final int CHUNK = 1024;
+
+	static final int COUNT = 512 * 1024;
+
+	/** keeps chunks reachable for a while */
+	static volatile Object sink;
+
+	/** half a gigabyte of short lived garbage */
+	private static void burst() {
+		final Object[] ring = new Object[64];
+		for (int index = 0; index < COUNT; index++) {
+			ring[index % ring.length] = new byte[CHUNK];
+		}
+		sink = ring;
+	}
+
+	@Test
+	public void allocationBurst() throws Exception {
+
+		final GcProfile profile = new GcProfile();
+		profile.start();
+
+		burst();
+
+		final Map<String, String> summary = new TreeMap<String, String>();
+		profile.finish(COUNT, summary);
+
+		assertTrue(summary.get("gc.count"),
+				Long.parseLong(summary.get("gc.count")) > 0);
+
+		final long allocated = Long.parseLong(summary.get("alloc.bytes"));
+		assertTrue("allocated " + allocated, allocated >= (long) COUNT * CHUNK);
+		final double perOp = Double.parseDouble(summary.get("alloc.perOp"));
+		assertTrue("perOp " + perOp, perOp >= CHUNK && perOp < 2 * CHUNK);
+
+	}
+
+	/**
+	 * Short scenarios for runner.
+	 */
+	public static class QuickBench extends MetricsBench {
+
+		@Param
+		int param;
+
+		protected static List<String> paramValues() {
+			return MetricsRunner.valueList("1,2,3,4");
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			measure().rate().mark(param);
+			Thread.sleep(50);
+			measure().mark();
+		}
+
+	}
+
+	@Test
+	public void processScope() throws Exception {
+
+		/** concurrent scenarios share JVM counters */
+		final Run parallel = MetricsRunner.execute("TEST", QuickBench.class, 2);
+		for (final ScenarioResult result : parallel.getMeasurements().values()) {
+			assertEquals("process",
+					MetricsMeasure.summary(result).get(GcProfile.SCOPE));
+		}
+
+		final Run serial = MetricsRunner.execute("TEST", QuickBench.class, 1);
+		for (final ScenarioResult result : serial.getMeasurements().values()) {
+			assertNull(MetricsMeasure.summary(result).get(GcProfile.SCOPE));
+		}
+
+	}
+
+	/**
+	 * Fails in set up, after measure started its profile.
+	 */
+	public static class FailureBench extends MetricsBench {
+
+		static volatile MetricsMeasure started;
+
+		@Override
+		protected void setUp() throws Exception {
+			super.setUp();
+			started = measure();
+			throw new IllegalStateException("set up");
+		}
+
+		public void timeMain(final int reps) throws Exception {
+		}
+
+	}
+
+	@Test
+	public void setUpFailure() throws Exception {
+
+		try {
+			new LocalEngine().execute(FailureBench.class,
+					Collections.singletonMap("benchmark", "Main"));
+			fail("failure expected");
+		} catch (final IllegalStateException e) {
+			assertEquals("set up", e.getMessage());
+		}
+
+		/** profile listeners are removed although tear down is skipped */
+		assertTrue(FailureBench.started.isShutdown());
+
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class JfrProfileTest {
+
+	private static volatile Object sink;
+
+	@Test
+	public void hotSpots() throws Exception {
+
+		Assume.assumeTrue(JfrProfile.isAvailable());
+
+		final JfrProfile profile = new JfrProfile(new File("target/jfr-test"));
+		assertTrue(profile.start("test scenario"));
+
+		final long timeFinish = System.currentTimeMillis() + 1000;
+		while (System.currentTimeMillis() < timeFinish) {
+			final List<String> list = new ArrayList<String>();
+			for (int index = 0; index < 1000; index++) {
+				list.add(String.valueOf(index));
+			}
+			sink = list;
+		}
+
+		final Map<String, String> summary = new TreeMap<String, String>();
+		profile.finish(summary);
+
+		assertTrue(profile.file().getName().startsWith("test_scenario-"));
+		assertTrue(profile.file().length() > 0);
+		assertEquals(profile.file().getAbsolutePath(), summary.get("jfr.file"));
+		assertNotNull(summary.get("jfr.cpu.1"));
+		assertNotNull(summary.get("jfr.alloc.1"));
+		assertTrue(summary.get("jfr.cpu.1"), summary.get("jfr.cpu.1")
+				.matches("\\d+\\.\\d% .+\\..+"));
+
+		/** library frames are skipped for application site */
+		assertTrue(summary.get("jfr.cpu.1"), summary.get("jfr.cpu.1")
+				.contains(JfrProfileTest.class.getName()));
+
+	}
+
+	/** CPU burn attributed to given method */
+	private static void before(final long millis) {
+		final long timeFinish = System.currentTimeMillis() + millis;
+		long sum = 0;
+		while (System.currentTimeMillis() < timeFinish) {
+			/** mostly java code, which execution samples can see */
+			for (int index = 0; index < 100000; index++) {
+				sum = sum * 31 + index;
+			}
+		}
+		sink = sum;
+	}
+
+	private static void after(final long millis) {
+		final long timeFinish = System.currentTimeMillis() + millis;
+		long sum = 0;
+		while (System.currentTimeMillis() < timeFinish) {
+			/** mostly java code, which execution samples can see */
+			for (int index = 0; index < 100000; index++) {
+				sum = sum * 31 + index;
+			}
+		}
+		sink = sum;
+	}
+
+	@Test
+	public void restartDiscards() throws Exception {
+
+		Assume.assumeTrue(JfrProfile.isAvailable());
+
+		final JfrProfile profile = new JfrProfile(new File("target/jfr-test"));
+		assertTrue(profile.start("restart"));
+
+		before(500);
+
+		assertTrue(profile.restart());
+
+		after(1000);
+
+		final Map<String, String> summary = new TreeMap<String, String>();
+		profile.finish(summary);
+
+		assertNotNull(summary.get("jfr.cpu.1"));
+		for (final Map.Entry<String, String> entry : summary.entrySet()) {
+			assertFalse(entry.getValue(), entry.getValue().contains(".before"));
+		}
+		assertTrue(summary.get("jfr.cpu.1"), summary.get("jfr.cpu.1")
+				.contains(".after"));
+
+	}
+
+	/**
+	 * Profiled scenario which warms up in one method and measures in another.
+	 */
+	public static class ProfileBench extends MetricsBench {
+
+		@Override
+		protected JfrProfile jfr() {
+			return new JfrProfile(new File("target/jfr-test"));
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 500;
+		}
+
+		@Override
+		protected int warmupWindow() {
+			return 1000;
+		}
+
+		@Override
+		protected void warmup() throws Exception {
+			before(500);
+			super.warmup();
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			warmup();
+			after(500);
+			measure().mark();
+		}
+
+	}
+
+	/**
+	 * Same scenario, run concurrently with others.
+	 */
+	public static class ParallelBench extends ProfileBench {
+
+		@Override
+		protected int parallelism() {
+			return 2;
+		}
+
+	}
+
+	@Test
+	public void measurementOnly() throws Exception {
+
+		Assume.assumeTrue(JfrProfile.isAvailable());
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("benchmark", "Main");
+
+		final Map<String, String> summary = new LocalEngine().execute(
+				ProfileBench.class, vars).summary();
+		assertNotNull(summary.get("jfr.file"));
+		for (final Map.Entry<String, String> entry : summary.entrySet()) {
+			assertFalse(entry.getValue(), entry.getValue().contains(".before"));
+		}
+
+		assertNull(new LocalEngine().execute(ParallelBench.class, vars)
+				.summary().get("jfr.file"));
+
+	}
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+
+import com.google.caliper.SimpleBenchmark;
+
+public class JmhEngineTest {
+
+	static final int REPS = 10;
+
+	/**
+	 * Invocation takes a millisecond regardless of reps.
+	 */
+	public static class SleepBench extends SimpleBenchmark {
+
+		public void timeMain(final int reps) throws Exception {
+			Thread.sleep(1);
+		}
+
+	}
+
+	@Test
+	public void singleFork() throws Exception {
+
+		final JmhEngine engine = new JmhEngine(Mode.Throughput, 1, 1, 2, REPS)
+				.iterationTime(200);
+
+		final MetricsMeasure measure = engine.run(SleepBench.class,
+				Collections.singletonMap("benchmark", "Main"));
+
+		final MetricsSeries rate = measure.series(MetricsMeasure.RATE);
+		final MetricsSeries time = measure.series(MetricsMeasure.TIME);
+		assertEquals(2, rate.size());
+		assertEquals(2, time.size());
+
+		/** per operation: up to 1000 invocations of REPS operations */
+		for (int index = 0; index < rate.size(); index++) {
+			assertTrue("rate " + rate.value(index), rate.value(index) > 2000);
+			assertTrue("rate " + rate.value(index),
+					rate.value(index) < 1000 * REPS * 1.05);
+			assertEquals(1e9, rate.value(index) * time.value(index), 1e3);
+		}
+
+		assertEquals(String.valueOf(REPS), measure.summary().get("jmh.reps"));
+
+	}
+
+}
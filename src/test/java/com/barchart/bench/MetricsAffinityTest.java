@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.google.caliper.Param;
+import com.google.caliper.Result;
+import com.google.caliper.Run;
+
+public class MetricsAffinityTest {
+
+	static volatile String observed;
+
+	/**
+	 * Records affinity seen by workload.
+	 */
+	public static class PinBench extends MetricsBench {
+
+		@Param
+		String affinity;
+
+		protected static List<String> affinityValues() {
+			return BenchUtil.valueList("cpu:0");
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			observed = MetricsAffinity.current();
+			measure().rate().mark();
+			measure().mark();
+		}
+
+	}
+
+	@Test
+	public void parse() throws Exception {
+
+		assertNull(MetricsAffinity.parse(null));
+		assertNull(MetricsAffinity.parse("none"));
+
+		final MetricsAffinity cpu = MetricsAffinity.parse("cpu:0-3,8");
+		assertEquals("0-3,8", cpu.cpus());
+		assertEquals(-1, cpu.cpuNode());
+
+		try {
+			MetricsAffinity.parse("socket:1");
+			fail("invalid affinity");
+		} catch (final IllegalArgumentException e) {
+			/** expected */
+		}
+
+	}
+
+	@Test
+	public void pinLocal() throws Exception {
+
+		Assume.assumeTrue(MetricsAffinity.isSupported());
+
+		final String before = MetricsAffinity.current();
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("benchmark", "Main");
+		vars.put("affinity", "cpu:0");
+
+		final MetricsMeasure measure = new LocalEngine().execute(
+				PinBench.class, vars);
+
+		assertEquals("0", observed);
+		assertEquals(before, MetricsAffinity.current());
+		assertEquals("0", measure.summary().get("affinity.applied"));
+
+		final Run run = MetricsRunner.newRun("TEST");
+		measure.appendTo(run);
+		final Result result = MetricsRunner.newResult(run);
+		final Map<String, String> env = result.getEnvironment()
+				.getProperties();
+		assertNotNull(env.get("host.cpus"));
+		assertEquals("cpus 0 applied 0", env.get("affinity.cpu:0"));
+
+	}
+
+	@Test
+	public void memoryNotApplied() throws Exception {
+
+		final MetricsAffinity affinity = new MetricsAffinity("node:0/mem:1",
+				"0", 0, 1);
+
+		/** running process keeps its memory */
+		final Map<String, String> local = new TreeMap<String, String>();
+		affinity.summarize(local);
+		assertEquals("1", local.get("affinity.mem"));
+		assertEquals("false", local.get("affinity.mem.applied"));
+
+		/** child launched by numactl */
+		System.setProperty(MetricsAffinity.MEMBIND, "1");
+		try {
+			final Map<String, String> child = new TreeMap<String, String>();
+			affinity.summarize(child);
+			assertEquals("true", child.get("affinity.mem.applied"));
+		} finally {
+			System.clearProperty(MetricsAffinity.MEMBIND);
+		}
+
+	}
+
+}
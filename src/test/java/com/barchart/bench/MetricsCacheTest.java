@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.caliper.Param;
+import com.google.caliper.Result;
+import com.google.caliper.Run;
+import com.google.caliper.Scenario;
+import com.google.caliper.ScenarioResult;
+
+public class MetricsCacheTest {
+
+	static final AtomicInteger COUNT = new AtomicInteger();
+
+	static File folder;
+
+	/**
+	 * Counts executed scenarios.
+	 */
+	public static class CountBench extends MetricsBench {
+
+		@Param
+		int param;
+
+		protected static List<String> paramValues() {
+			return MetricsRunner.valueList(System.getProperty(
+					"bench.cache.test", "1,2"));
+		}
+
+		@Override
+		protected MetricsCache cache() {
+			return new MetricsCache(folder);
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			COUNT.incrementAndGet();
+			for (int step = 0; step < 3; step++) {
+				measure().rate().mark(100 * param);
+				measure().mark();
+			}
+		}
+
+	}
+
+	@Test
+	public void resume() throws Exception {
+
+		folder = File.createTempFile("bench", ".cache");
+		folder.delete();
+
+		try {
+
+			COUNT.set(0);
+			final Run first = MetricsRunner.execute("TEST", CountBench.class, 1);
+			assertEquals(2, COUNT.get());
+			assertEquals(2, first.getMeasurements().size());
+
+			/** only new scenario is executed */
+			System.setProperty("bench.cache.test", "1,2,3");
+			final Run second = MetricsRunner
+					.execute("TEST", CountBench.class, 2);
+			assertEquals(3, COUNT.get());
+			assertEquals(3, second.getMeasurements().size());
+
+			final Map<String, String> vars = new TreeMap<String, String>();
+			vars.put("benchmark", "Main");
+			vars.put("param", "1");
+			final ScenarioResult restored = second.getMeasurements().get(
+					new Scenario(vars));
+			assertTrue(MetricsCache.isRestored(restored));
+			final Map<String, String> summary = MetricsMeasure
+					.summary(restored);
+			summary.remove(MetricsCache.RESTORED);
+			assertEquals(MetricsMeasure.summary(first.getMeasurements().get(
+					new Scenario(vars))), summary);
+
+			/** restored scenarios are neither verified nor stored again */
+			final MetricsStore store = new MetricsStore(new File(folder,
+					"test.store"));
+			final Result result = MetricsRunner.execute(CountBench.class,
+					store, null);
+			assertEquals(3, COUNT.get());
+			assertTrue(result.getRun().getMeasurements().isEmpty());
+			assertNull(store.latest(CountBench.class.getName()));
+
+			final MetricsCache cache = new MetricsCache(folder);
+			assertNotNull(cache.get(CountBench.class, vars, new LocalEngine()));
+			assertNull(cache.get(CountBench.class, vars, new ForkEngine()));
+
+			cache.clear();
+			assertNull(cache.get(CountBench.class, vars, new LocalEngine()));
+
+		} finally {
+			System.clearProperty("bench.cache.test");
+			new MetricsCache(folder).clear();
+			folder.delete();
+		}
+
+	}
+
+}
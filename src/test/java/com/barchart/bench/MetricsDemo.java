@@ -14,13 +14,9 @@ import java.util.List;
  */
 public abstract class MetricsDemo extends MetricsBench {
 
-	/** introduce network latency */
+	/** introduce network latency, round trip millis */
 	protected static List<String> latencyList() {
-		if (TrafficControl.isAvailable()) {
-			return MetricsRunner.valueList("0,10");
-		} else {
-			return MetricsRunner.valueList("0");
-		}
+		return MetricsRunner.valueList("0,10");
 	}
 
 	/** verify different message sizes */
@@ -28,6 +24,11 @@ public abstract class MetricsDemo extends MetricsBench {
 		return MetricsRunner.valueList("500,1500");
 	}
 
+	/** offered load, operations per second; zero for closed loop */
+	protected static List<String> rateList() {
+		return MetricsRunner.valueList("0,50");
+	}
+
 	/** benchmark run time per each configuration */
 	protected static List<String> durationList() {
 		return MetricsRunner.valueList("6000");
@@ -7,13 +7,14 @@
  */
 package com.barchart.bench;
 
+import java.io.File;
+import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
 import com.google.caliper.Param;
-import com.yammer.metrics.core.TimerContext;
 
 /**
  * Example benchmark setup.
@@ -34,6 +35,13 @@ public class MetricsDemoTest extends MetricsDemo {
 		return MetricsDemo.messageList();
 	}
 
+	@Param
+	private volatile int rate;
+
+	protected static List<String> rateValues() {
+		return MetricsDemo.rateList();
+	}
+
 	@Param
 	private volatile int duration;
 
@@ -41,11 +49,26 @@ public class MetricsDemoTest extends MetricsDemo {
 		return MetricsDemo.durationList();
 	}
 
+	private EchoServer server;
+
+	private TcpProxy proxy;
+
+	private NetworkProbe probe;
+
 	@Override
 	protected void setUp() throws Exception {
 		log.info("init");
 
-		TrafficControl.delay(latency);
+		server = new EchoServer(NetworkProbe.Protocol.TCP);
+		server.start(new InetSocketAddress("localhost", 0));
+
+		/** half of round trip latency in each direction */
+		proxy = new TcpProxy(server.address(),
+				TrafficShape.latency(latency / 2));
+		proxy.start();
+
+		probe = new NetworkProbe(NetworkProbe.Protocol.TCP, true, message);
+		probe.open(proxy.address());
 
 		super.setUp();
 	}
@@ -54,47 +77,69 @@ public class MetricsDemoTest extends MetricsDemo {
 	protected void tearDown() throws Exception {
 		super.tearDown();
 
-		TrafficControl.delay(0);
+		probe.close();
+		proxy.stop();
+		server.stop();
 
 		log.info("done");
 	}
 
+	/** single probe connection serves one operation at a time */
+	@Override
+	protected int loadThreads() {
+		return 1;
+	}
+
+	/** rate is in bytes */
+	@Override
+	protected long loadUnits() {
+		return message;
+	}
+
 	/** Perform measurement upto 3 parameters. */
 	public void timeMain(final int reps) throws Exception {
 
+		if (rate > 0) {
+			markLoad(rate, new MetricsLoad.Operation() {
+				@Override
+				public void execute() throws Exception {
+					probe.probe();
+					measure().size().value(message);
+				}
+			}, duration);
+			return;
+		}
+
 		final AtomicBoolean isOn = new AtomicBoolean(true);
 
-		new Thread() {
+		final Thread thread = new Thread() {
 			@Override
 			public void run() {
-				for (int index = 0;; index++) {
+				while (isOn.get()) {
 
-					if (!isOn.get()) {
-						break;
-					}
-
-					/** measure rate */
-					measure().rate().mark(100 + index);
-
-					/** measure time */
-					final TimerContext time = measure().time().time();
+					/** measure time and latency percentiles */
 					try {
-						NetworkUtil.ping("localhost");
+						probe.probe(measure());
 					} catch (final Exception e) {
 						log.error("", e);
+						break;
 					}
-					time.stop();
+
+					/** measure rate, bytes */
+					measure().rate().mark(message);
 
 					/** measure size */
-					measure().size().value(100 + index);
+					measure().size().value(message);
 
 				}
 			}
-		}.start();
+		};
+		thread.start();
 
 		markWait(duration);
 
 		isOn.set(false);
+		thread.join();
 
 	}
 
@@ -103,10 +148,17 @@ public class MetricsDemoTest extends MetricsDemo {
 		MetricsRunner.execute(MetricsDemoTest.class);
 	}
 
-	/** run as junit test */
+	/** run as junit test, against temporary store */
 	@Test
 	public void test() throws Exception {
-		main();
+		final File file = File.createTempFile("bench", ".store");
+		file.delete();
+		try {
+			MetricsRunner.execute(MetricsDemoTest.class, new MetricsStore(file),
+					null);
+		} finally {
+			file.delete();
+		}
 	}
 
 }
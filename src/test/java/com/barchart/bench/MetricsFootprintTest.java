@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.Test;
+
+public class MetricsFootprintTest {
+
+	/** large enough that unrelated heap churn stays well below it */
+	static final int ENTRIES = 1024 * 1024;
+
+	/**
+	 * Holds list of boxed longs.
+	 */
+	public static class ListBench extends MetricsBench {
+
+		private List<Long> list;
+
+		@Override
+		protected boolean isFootprint() {
+			return true;
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		@Override
+		protected void setUp() throws Exception {
+			super.setUp();
+			list = new ArrayList<Long>(ENTRIES);
+			for (int index = 0; index < ENTRIES; index++) {
+				list.add(Long.valueOf(1000 + index));
+			}
+			retain("list", list, list.size());
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			markWait(300);
+		}
+
+	}
+
+	/**
+	 * Retains inner class fixture, which refers back to benchmark.
+	 */
+	public static class InnerBench extends MetricsBench {
+
+		/** not retained by fixture */
+		private final long[] ballast = new long[ENTRIES];
+
+		class Fixture {
+
+			final long[] data = new long[1024];
+
+			long sum() {
+				return data.length + ballast.length;
+			}
+
+		}
+
+		@Override
+		protected boolean isFootprint() {
+			return true;
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		@Override
+		protected void setUp() throws Exception {
+			super.setUp();
+			final Fixture fixture = new Fixture();
+			retain("fixture", fixture, fixture.sum());
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			markWait(300);
+		}
+
+	}
+
+	@Test
+	public void heapFootprint() throws Exception {
+
+		final MetricsMeasure measure = new LocalEngine().execute(
+				ListBench.class, Collections.singletonMap("benchmark", "Main"));
+
+		/** array of references plus boxed values */
+		final Map<String, String> summary = measure.summary();
+		final long setup = Long.parseLong(summary.get("footprint.heap.setup"));
+		assertTrue("setup " + setup, setup > ENTRIES * 16);
+		assertNotNull(summary.get("footprint.heap.workload"));
+
+		final MetricsSeries size = measure.series(MetricsMeasure.SIZE);
+		assertTrue(size.size() > 0);
+		assertTrue(size.value(0) > ENTRIES * 16);
+
+	}
+
+	/**
+	 * Agent jar with manifest only; agent class itself is found on class
+	 * path, as in packaged "barchart-bench.jar".
+	 */
+	static File agentJar() throws Exception {
+		final File file = File.createTempFile("bench-agent", ".jar");
+		file.deleteOnExit();
+		final Manifest manifest = new Manifest();
+		final Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Premain-Class", MetricsFootprint.class.getName());
+		final JarOutputStream output = new JarOutputStream(
+				new FileOutputStream(file), manifest);
+		output.close();
+		return file;
+	}
+
+	@Test
+	public void deepSize() throws Exception {
+
+		final ForkEngine engine = new ForkEngine("-javaagent:"
+				+ agentJar().getAbsolutePath());
+
+		final MetricsMeasure measure = engine.execute(ListBench.class,
+				Collections.singletonMap("benchmark", "Main"));
+
+		/** reference slot plus boxed value per entry */
+		final Map<String, String> summary = measure.summary();
+		final long size = Long.parseLong(summary.get("footprint.list.bytes"));
+		assertTrue("size " + size, size > ENTRIES * 16);
+		assertTrue("size " + size, size < ENTRIES * 64);
+		assertEquals(String.valueOf(ENTRIES),
+				summary.get("footprint.list.entries"));
+
+		/** retained size becomes size metric */
+		final MetricsSeries series = measure.series(MetricsMeasure.SIZE);
+		assertTrue(series.size() > 0);
+		assertEquals(size, series.value(0), 1);
+
+	}
+
+	@Test
+	public void deepSizeBoundary() throws Exception {
+
+		final ForkEngine engine = new ForkEngine("-javaagent:"
+				+ agentJar().getAbsolutePath());
+
+		final MetricsMeasure measure = engine.execute(InnerBench.class,
+				Collections.singletonMap("benchmark", "Main"));
+
+		/** fixture data only, walk stops at benchmark behind "this$0" */
+		final long size = Long.parseLong(measure.summary().get(
+				"footprint.fixture.bytes"));
+		assertTrue("size " + size, size > 1024 * 8);
+		assertTrue("size " + size, size < ENTRIES);
+
+	}
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MetricsLoadTest {
+
+	@Test
+	public void fixedRate() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+
+		final MetricsLoad load = new MetricsLoad(measure, 1000,
+				MetricsLoad.Arrival.FIXED, new MetricsLoad.Operation() {
+					@Override
+					public void execute() throws Exception {
+					}
+				});
+
+		load.start();
+		Thread.sleep(500);
+		load.stop();
+
+		assertTrue("offered " + load.offered(), load.offered() > 400
+				&& load.offered() <= 510);
+		/** operation issued just before stop may be discarded */
+		assertTrue(load.offered() - load.completed() <= 2);
+		assertEquals(load.completed(), measure.rate().count());
+
+		final Map<String, String> summary = new TreeMap<String, String>();
+		load.summarize(summary);
+		assertEquals("1000.0", summary.get("load.target"));
+		assertEquals("0", summary.get("load.failed"));
+
+		measure.shutdown();
+
+	}
+
+	@Test
+	public void units() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+
+		final MetricsLoad load = new MetricsLoad(measure, 1000,
+				MetricsLoad.Arrival.FIXED, new MetricsLoad.Operation() {
+					@Override
+					public void execute() throws Exception {
+					}
+				});
+		load.units(100);
+
+		load.start();
+		Thread.sleep(200);
+		load.stop();
+
+		/** one mark of all units per operation */
+		assertTrue(load.completed() > 0);
+		assertEquals(100 * load.completed(), measure.rate().count());
+
+		measure.shutdown();
+
+	}
+
+	/** latency from intended start includes waiting behind slow operations */
+	@Test
+	public void queueing() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+
+		final MetricsLoad load = new MetricsLoad(measure, 200,
+				MetricsLoad.Arrival.POISSON, new MetricsLoad.Operation() {
+					@Override
+					public void execute() throws Exception {
+						Thread.sleep(10);
+					}
+				});
+		load.threads(1);
+
+		load.start();
+		Thread.sleep(500);
+		load.stop();
+
+		assertTrue(load.achievedRate() < load.offeredRate());
+		final long max = measure.latency().histogram().getMaxValue();
+		assertTrue("max " + max, max > TimeUnit.MILLISECONDS.toNanos(100));
+
+		measure.shutdown();
+
+	}
+
+}
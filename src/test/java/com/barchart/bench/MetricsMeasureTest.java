@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.caliper.Measurement;
+import com.google.caliper.MeasurementType;
+import com.google.caliper.Run;
+import com.google.caliper.ScenarioResult;
+
+public class MetricsMeasureTest {
+
+	@Test
+	public void latencySummary() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.variables().put("param", "1");
+
+		for (int value = 1; value <= 1000; value++) {
+			measure.latency().record(value * 1000L);
+		}
+		measure.mark();
+		measure.shutdown();
+
+		final Map<String, String> summary = measure.summary();
+		assertEquals("1000", summary.get("latency.count"));
+		assertEquals(500 * 1000, Long.parseLong(summary.get("latency.p50")),
+				1000);
+		assertEquals(990 * 1000, Long.parseLong(summary.get("latency.p99")),
+				1000);
+		assertEquals(1000 * 1000, Long.parseLong(summary.get("latency.max")),
+				1000);
+		assertEquals(1000, measure.time().count());
+		assertNotNull(summary.get("gc.count"));
+		assertNotNull(summary.get("gc.heap.after"));
+
+		final Run run = MetricsRunner.newRun("test");
+		measure.appendTo(run);
+
+		final ScenarioResult result = run.getMeasurements().values()
+				.iterator().next();
+		assertEquals(summary, MetricsMeasure.summary(result));
+
+	}
+
+	@Test
+	public void seriesOrder() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure(2);
+
+		for (int step = 0; step < 5; step++) {
+			measure.record(MetricsMeasure.RATE, step, 10 - step);
+		}
+
+		final MetricsSeries series = measure.series(MetricsMeasure.RATE);
+		assertEquals(5, series.size());
+
+		final Run run = MetricsRunner.newRun("test");
+		measure.appendTo(run);
+
+		final ScenarioResult result = run.getMeasurements().values()
+				.iterator().next();
+		final List<Measurement> list = result.getMeasurementSet(
+				MeasurementType.TIME).getMeasurements();
+		assertEquals(5, list.size());
+		for (int step = 0; step < 5; step++) {
+			assertEquals(10 - step, list.get(step).getRaw(), 0.0);
+		}
+
+		measure.shutdown();
+
+	}
+
+	@Test
+	public void intervalMark() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+
+		for (int step = 0; step < 10; step++) {
+			measure.time().update(100, TimeUnit.NANOSECONDS);
+		}
+		measure.mark();
+
+		for (int step = 0; step < 10; step++) {
+			measure.time().update(200, TimeUnit.NANOSECONDS);
+		}
+		measure.mark();
+
+		final MetricsSeries series = measure.series(MetricsMeasure.TIME);
+		assertEquals(2, series.size());
+		assertEquals(100, series.value(0), 0.001);
+		assertEquals(200, series.value(1), 0.001);
+
+		measure.reset();
+		assertEquals(0, series.size());
+
+		measure.shutdown();
+
+	}
+
+	@Test
+	public void namedMetrics() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+
+		final MetricsValue depth = measure.metric("queue.depth",
+				MetricsValue.Kind.GAUGE, "msg");
+		final MetricsValue hits = measure.metric("cache.hit",
+				MetricsValue.Kind.RATIO, "ratio");
+		final MetricsValue stage = measure.metric("stage.decode",
+				MetricsValue.Kind.TIMER, "ns");
+		assertSame(depth, measure.metric("queue.depth",
+				MetricsValue.Kind.GAUGE, "msg"));
+
+		depth.value(7);
+		hits.mark(true);
+		hits.mark(true);
+		hits.mark(false);
+		hits.mark(true);
+		stage.record(1000);
+		stage.record(3000);
+		measure.mark();
+
+		/** timer without events has no sample */
+		depth.value(9);
+		measure.mark();
+
+		assertEquals(2, measure.series("queue.depth").size());
+		assertEquals(0.75, measure.series("cache.hit").value(0), 0.001);
+		assertEquals(1, measure.series("stage.decode").size());
+		assertEquals(2000, measure.series("stage.decode").value(0), 0.001);
+
+		measure.shutdown();
+
+		final Map<String, String> summary = measure.summary();
+		assertEquals("gauge", summary.get("metric.queue.depth.kind"));
+		assertEquals("7.0,9.0", summary.get("metric.queue.depth.quantiles"));
+		assertNull(summary.get("metric.queue.depth.samples"));
+		assertEquals("8.0", summary.get("metric.queue.depth.mean"));
+		assertEquals("2", summary.get("metric.stage.decode.latency.count"));
+
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void namedKindConflict() throws Exception {
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.metric("depth", MetricsValue.Kind.GAUGE, "msg");
+		measure.metric("depth", MetricsValue.Kind.COUNTER, "msg");
+	}
+
+}
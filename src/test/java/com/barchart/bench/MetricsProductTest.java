@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class MetricsProductTest {
+
+	private static Map<String, Collection<String>> axes() {
+		final Map<String, Collection<String>> axes = new TreeMap<String, Collection<String>>();
+		axes.put("buffer", MetricsRunner.valueList("1000,500"));
+		axes.put("message", MetricsRunner.valueList("100,1500,700"));
+		return axes;
+	}
+
+	@Test
+	public void order() throws Exception {
+
+		final List<String> list = new ArrayList<String>();
+		for (final Map<String, String> vars : new MetricsProduct(axes())) {
+			list.add(vars.get("buffer") + "/" + vars.get("message"));
+		}
+
+		assertEquals(MetricsRunner.valueList(
+				"500/100,500/700,500/1500,1000/100,1000/700,1000/1500"), list);
+
+	}
+
+	@Test
+	public void constraint() throws Exception {
+
+		final List<Map<String, String>> visited = new ArrayList<Map<String, String>>();
+
+		final MetricsProduct.Constraint fits = new MetricsProduct.Constraint() {
+			@Override
+			public boolean accept(final Map<String, String> vars) {
+				visited.add(new TreeMap<String, String>(vars));
+				final String buffer = vars.get("buffer");
+				final String message = vars.get("message");
+				if (buffer == null || message == null) {
+					return true;
+				}
+				return Integer.parseInt(message) <= Integer.parseInt(buffer);
+			}
+		};
+
+		final MetricsProduct product = new MetricsProduct(axes(), fits);
+
+		final List<String> list = new ArrayList<String>();
+		for (final Map<String, String> vars : product) {
+			list.add(vars.get("buffer") + "/" + vars.get("message"));
+		}
+
+		assertEquals(MetricsRunner.valueList("500/100,1000/100,1000/700"), list);
+
+		/** 2 partial and 6 complete combinations */
+		assertEquals(8, visited.size());
+
+		assertEquals(3, product.size());
+
+	}
+
+	@Test
+	public void prune() throws Exception {
+
+		final List<Map<String, String>> visited = new ArrayList<Map<String, String>>();
+
+		final MetricsProduct.Constraint large = new MetricsProduct.Constraint() {
+			@Override
+			public boolean accept(final Map<String, String> vars) {
+				visited.add(new TreeMap<String, String>(vars));
+				return !"500".equals(vars.get("buffer"));
+			}
+		};
+
+		final List<String> list = new ArrayList<String>();
+		for (final Map<String, String> vars : new MetricsProduct(axes(), large)) {
+			list.add(vars.get("buffer") + "/" + vars.get("message"));
+		}
+
+		assertEquals(MetricsRunner.valueList("1000/100,1000/700,1000/1500"),
+				list);
+
+		/** rejected buffer is never combined with any message */
+		assertEquals(2 + 3, visited.size());
+
+	}
+
+	@Test
+	public void empty() throws Exception {
+
+		final Map<String, Collection<String>> axes = new TreeMap<String, Collection<String>>();
+		assertFalse(new MetricsProduct(axes).iterator().hasNext());
+
+		axes.put("message", new ArrayList<String>());
+		assertEquals(0, new MetricsProduct(axes).size());
+
+	}
+
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.caliper.Result;
+import com.google.caliper.Run;
+
+public class MetricsRegressionTest {
+
+	static volatile double rate;
+
+	/**
+	 * Reports configured rate.
+	 */
+	public static class RateBench extends MetricsBench {
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			final Random random = new Random(reps);
+			for (int step = 0; step < 30; step++) {
+				measure().record(MetricsMeasure.RATE, step,
+						rate * (1 + 0.01 * random.nextGaussian()));
+				measure().record(MetricsMeasure.TIME, step,
+						50 * (1 + 0.01 * random.nextGaussian()));
+			}
+		}
+
+	}
+
+	private static Result result(final double rate, final double time,
+			final long seed) {
+		final Random random = new Random(seed);
+		final Run run = MetricsRunner.newRun("test");
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.variables().put("param", "1");
+		for (int step = 0; step < 30; step++) {
+			measure.record(MetricsMeasure.RATE, step,
+					rate * (1 + 0.01 * random.nextGaussian()));
+			measure.record(MetricsMeasure.TIME, step,
+					time * (1 + 0.01 * random.nextGaussian()));
+		}
+		measure.shutdown();
+		measure.appendTo(run);
+		return MetricsRunner.newResult(run);
+	}
+
+	@Test
+	public void stable() throws Exception {
+
+		final MetricsRegression regression = new MetricsRegression();
+
+		final List<MetricsRegression.Verdict> list = regression.compare(
+				result(1000, 50, 1), result(1000, 50, 2));
+
+		/** size is not measured */
+		assertEquals(2, list.size());
+		assertTrue(MetricsRegression.regressions(list).isEmpty());
+
+	}
+
+	@Test
+	public void slower() throws Exception {
+
+		final MetricsRegression regression = new MetricsRegression();
+
+		final List<MetricsRegression.Verdict> list = regression.compare(
+				result(1000, 50, 1), result(900, 60, 2));
+
+		final List<MetricsRegression.Verdict> failed = MetricsRegression
+				.regressions(list);
+		assertEquals(2, failed.size());
+		assertTrue(failed.get(0).pValue() < 0.001);
+
+	}
+
+	@Test
+	public void threshold() throws Exception {
+
+		final MetricsRegression regression = new MetricsRegression();
+		regression.threshold(MetricsMeasure.RATE, 0.20);
+		regression.threshold(MetricsMeasure.TIME, 0.20);
+
+		final List<MetricsRegression.Verdict> list = regression.compare(
+				result(1000, 50, 1), result(900, 55, 2));
+
+		assertTrue(MetricsRegression.regressions(list).isEmpty());
+
+	}
+
+	@Test(expected = Exception.class)
+	public void fatal() throws Exception {
+
+		MetricsRunner.verify(new MetricsRegression(0.05, true),
+				result(1000, 50, 1), result(500, 50, 2));
+
+	}
+
+	@Test
+	public void storeVerdict() throws Exception {
+
+		final File file = File.createTempFile("bench", ".store");
+		file.delete();
+
+		try {
+
+			final MetricsStore store = new MetricsStore(file);
+			final String name = RateBench.class.getName();
+
+			rate = 1000;
+			MetricsRunner.execute(RateBench.class, store, null);
+			final MetricsStore.Entry baseline = store.baseline(name);
+			assertNotNull(baseline);
+
+			/** regressed run is stored, but never becomes baseline */
+			rate = 500;
+			final Result regressed = MetricsRunner.execute(RateBench.class,
+					store, store.baseline(name));
+			assertEquals(MetricsRunner.REGRESSED, regressed.getEnvironment()
+					.getProperties().get(MetricsRunner.VERDICT));
+			assertEquals(2, store.query(name, null, 0, Long.MAX_VALUE).size());
+			assertEquals(baseline.offset(), store.baseline(name).offset());
+
+			/** accepted run becomes new baseline */
+			System.setProperty(MetricsRunner.ACCEPT, "true");
+			try {
+				MetricsRunner.execute(RateBench.class, store,
+						store.baseline(name));
+			} finally {
+				System.clearProperty(MetricsRunner.ACCEPT);
+			}
+			final MetricsStore.Entry accepted = store.baseline(name);
+			assertEquals(store.latest(name).offset(), accepted.offset());
+			assertEquals(MetricsRunner.ACCEPTED, store.load(accepted)
+					.getEnvironment().getProperties()
+					.get(MetricsRunner.VERDICT));
+
+			/** same rate passes against accepted baseline */
+			final Result passed = MetricsRunner.execute(RateBench.class,
+					store, accepted);
+			assertEquals(MetricsRunner.PASSED, passed.getEnvironment()
+					.getProperties().get(MetricsRunner.VERDICT));
+
+		} finally {
+			file.delete();
+		}
+
+	}
+
+	private static Result latency(final long nanos, final long seed) {
+		final Random random = new Random(seed);
+		final Run run = MetricsRunner.newRun("test");
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.variables().put("param", "1");
+		for (int step = 0; step < 1000; step++) {
+			measure.latency().record(
+					(long) (nanos * (1 + 0.1 * random.nextGaussian())));
+		}
+		measure.shutdown();
+		measure.appendTo(run);
+		return MetricsRunner.newResult(run);
+	}
+
+	@Test
+	public void latency() throws Exception {
+
+		final MetricsRegression regression = new MetricsRegression();
+
+		assertTrue(MetricsRegression.regressions(
+				regression.compare(latency(100000, 1), latency(100000, 2)))
+				.isEmpty());
+
+		final List<MetricsRegression.Verdict> failed = MetricsRegression
+				.regressions(regression.compare(latency(100000, 1),
+						latency(130000, 2)));
+		assertEquals(1, failed.size());
+		assertEquals("latency", failed.get(0).metric());
+
+	}
+
+	private static Result named(final double hit, final double depth,
+			final long seed) {
+		final Random random = new Random(seed);
+		final Run run = MetricsRunner.newRun("test");
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.variables().put("param", "1");
+		final MetricsValue hits = measure.metric("cache.hit",
+				MetricsValue.Kind.RATIO, "ratio");
+		final MetricsValue queue = measure.metric("queue.depth",
+				MetricsValue.Kind.GAUGE, "msg");
+		for (int step = 0; step < 30; step++) {
+			for (int event = 0; event < 100; event++) {
+				hits.mark(random.nextDouble() < hit);
+			}
+			queue.value(depth * (1 + 0.01 * random.nextGaussian()));
+			measure.mark();
+		}
+		measure.shutdown();
+		measure.appendTo(run);
+		return MetricsRunner.newResult(run);
+	}
+
+	@Test
+	public void named() throws Exception {
+
+		final MetricsRegression regression = new MetricsRegression();
+
+		assertTrue(MetricsRegression.regressions(
+				regression.compare(named(0.9, 100, 1), named(0.9, 100, 2)))
+				.isEmpty());
+
+		/** lower hit ratio and deeper queue are both worse */
+		final List<MetricsRegression.Verdict> failed = MetricsRegression
+				.regressions(regression.compare(named(0.9, 100, 1),
+						named(0.6, 130, 2)));
+		assertEquals(2, failed.size());
+
+		/** higher hit ratio and shallower queue are not */
+		assertTrue(MetricsRegression.regressions(
+				regression.compare(named(0.6, 130, 1), named(0.9, 100, 2)))
+				.isEmpty());
+
+	}
+
+	@Test
+	public void system() throws Exception {
+
+		System.setProperty(MetricsRegression.ALPHA, "0.01");
+		System.setProperty(MetricsRegression.THRESHOLD + "latency", "0.25");
+		try {
+			final MetricsRegression regression = MetricsRegression.system();
+			assertEquals(0.01, regression.alpha(), 0);
+			assertEquals(0.25, regression.threshold("latency"), 0);
+			assertEquals(0.05, regression.threshold(MetricsMeasure.RATE), 0);
+			assertFalse(regression.isFatal());
+		} finally {
+			System.clearProperty(MetricsRegression.ALPHA);
+			System.clearProperty(MetricsRegression.THRESHOLD + "latency");
+		}
+
+	}
+
+	@Test
+	public void normal() throws Exception {
+
+		assertEquals(0.5, MetricsRegression.normal(0), 1e-6);
+		assertEquals(0.975, MetricsRegression.normal(1.96), 1e-3);
+		assertEquals(0.025, MetricsRegression.normal(-1.96), 1e-3);
+
+	}
+
+}
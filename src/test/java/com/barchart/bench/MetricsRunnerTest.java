@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.caliper.Param;
+import com.google.caliper.Run;
+
+public class MetricsRunnerTest {
+
+	/**
+	 * Every fourth scenario runs alone, others share the pool.
+	 */
+	public static class OverlapBench extends MetricsBench {
+
+		static final AtomicInteger running = new AtomicInteger();
+
+		static final AtomicInteger runningMax = new AtomicInteger();
+
+		static final AtomicInteger overlaps = new AtomicInteger();
+
+		@Param
+		int index;
+
+		protected static List<String> indexValues() {
+			return MetricsRunner.valueList("1,2,3,4,5,6,7,8,9,10,11,12");
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		@Override
+		protected boolean isExclusive(final Map<String, String> vars) {
+			return Integer.parseInt(vars.get("index")) % 4 == 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+
+			final boolean isExclusive = index % 4 == 0;
+
+			final int count = running.incrementAndGet();
+			int max = runningMax.get();
+			while (max < count && !runningMax.compareAndSet(max, count)) {
+				max = runningMax.get();
+			}
+			if (isExclusive && count > 1) {
+				overlaps.incrementAndGet();
+			}
+
+			measure().rate().mark();
+			Thread.sleep(50);
+			measure().mark();
+
+			if (isExclusive && running.get() > 1) {
+				overlaps.incrementAndGet();
+			}
+			running.decrementAndGet();
+
+		}
+
+	}
+
+	@Test
+	public void exclusive() throws Exception {
+
+		final Run run = MetricsRunner.execute("TEST", OverlapBench.class, 4);
+
+		assertEquals(12, run.getMeasurements().size());
+		assertEquals(0, OverlapBench.overlaps.get());
+		assertEquals(0, OverlapBench.running.get());
+
+		/** regular scenarios did run concurrently */
+		assertTrue("max " + OverlapBench.runningMax.get(),
+				OverlapBench.runningMax.get() > 1);
+
+	}
+
+	/**
+	 * One scenario fails with exception, other scenarios stop being scheduled.
+	 */
+	public static class FailureBench extends MetricsBench {
+
+		static final AtomicInteger started = new AtomicInteger();
+
+		@Param
+		int index;
+
+		protected static List<String> indexValues() {
+			return MetricsRunner.valueList("1,2,3,4,5,6,7,8,9,10,11,12");
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			started.incrementAndGet();
+			if (index == 3) {
+				throw new IllegalStateException("scenario " + index);
+			}
+			Thread.sleep(50);
+			measure().rate().mark();
+			measure().mark();
+		}
+
+	}
+
+	@Test
+	public void failure() throws Exception {
+
+		try {
+			MetricsRunner.execute("TEST", FailureBench.class, 2);
+			fail("failure expected");
+		} catch (final IllegalStateException e) {
+			assertEquals("scenario 3", e.getMessage());
+		}
+
+		assertTrue("started " + FailureBench.started.get(),
+				FailureBench.started.get() < 12);
+
+	}
+
+	/**
+	 * One scenario fails with error, such as failed assertion.
+	 */
+	public static class ErrorBench extends MetricsBench {
+
+		@Param
+		int index;
+
+		protected static List<String> indexValues() {
+			return MetricsRunner.valueList("1,2,3,4");
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			if (index == 2) {
+				throw new AssertionError("scenario " + index);
+			}
+			Thread.sleep(50);
+			measure().rate().mark();
+			measure().mark();
+		}
+
+	}
+
+	@Test
+	public void error() throws Exception {
+
+		try {
+			MetricsRunner.execute("TEST", ErrorBench.class, 2);
+			fail("error expected");
+		} catch (final AssertionError e) {
+			assertEquals("scenario 2", e.getMessage());
+		}
+
+	}
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MetricsSamplerTest {
+
+	@Test
+	public void dense() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.size().value(100);
+
+		final MetricsSampler sampler = new MetricsSampler(measure, 500,
+				TimeUnit.MICROSECONDS);
+
+		final long timeStart = System.nanoTime();
+		sampler.start();
+		Thread.sleep(200);
+		sampler.stop();
+		final long timeFinish = System.nanoTime();
+
+		/** loaded host may sleep longer, never shorter */
+		final long ticks = sampler.count() + sampler.missed();
+		assertTrue("ticks " + ticks, ticks >= 100);
+		assertTrue("ticks " + ticks,
+				ticks <= (timeFinish - timeStart) / sampler.period() + 1);
+
+		final MetricsSeries series = measure.series(MetricsMeasure.SIZE);
+		assertEquals(sampler.count(), series.size());
+
+		/** marks stay on fixed grid: late marks do not shift later ones */
+		final long period = sampler.period();
+		final long origin = series.time(0);
+		long tickLast = 0;
+		for (int index = 1; index < series.size(); index++) {
+			final long tick = Math.round((double) (series.time(index) - origin)
+					/ period);
+			assertTrue("tick " + tick, tick >= tickLast);
+			tickLast = tick;
+		}
+		assertTrue("drift " + tickLast + " " + ticks, tickLast <= ticks + 2);
+
+		measure.shutdown();
+
+	}
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.google.caliper.Param;
+import com.google.caliper.Run;
+import com.google.caliper.Scenario;
+import com.google.caliper.ScenarioResult;
+
+public class MetricsSaturationTest {
+
+	/** latency knee of simulated system */
+	static final int KNEE = 700;
+
+	/**
+	 * Latency jumps above knee rate.
+	 */
+	public static class KneeBench extends MetricsBench {
+
+		@Param
+		int rate;
+
+		protected static List<String> rateValues() {
+			return BenchUtil.valueList("1");
+		}
+
+		@Param
+		int size;
+
+		protected static List<String> sizeValues() {
+			return BenchUtil.valueList("1,2");
+		}
+
+		@Override
+		protected MetricsSaturation saturation() {
+			return new MetricsSaturation("rate", 10, 100 * 1000,
+					"latency.p99", 5 * 1000 * 1000).precision(0.02);
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			final long nanos = rate <= KNEE * size ? 1000 * 1000
+					: 20 * 1000 * 1000;
+			for (int index = 0; index < 100; index++) {
+				measure().latency().record(nanos);
+			}
+			measure().mark();
+		}
+
+	}
+
+	@Test
+	public void search() throws Exception {
+
+		final MetricsEngine engine = new MetricsEngine() {
+			@Override
+			public MetricsMeasure execute(
+					final Class<? extends MetricsBench> klaz,
+					final Map<String, String> vars) throws Exception {
+				final double rate = Double.parseDouble(vars.get("rate"));
+				final MetricsMeasure measure = new MetricsMeasure();
+				measure.variables().putAll(vars);
+				measure.shutdown();
+				measure.summary().put("latency.p99",
+						rate <= KNEE ? "1000" : "9000");
+				measure.summary().put("load.target", vars.get("rate"));
+				measure.summary().put("load.achieved", vars.get("rate"));
+				return measure;
+			}
+		};
+
+		final Run run = MetricsRunner.newRun("TEST");
+		final MetricsSaturation.Curve curve = new MetricsSaturation("rate",
+				10, 100 * 1000, "latency.p99", 5000).search(engine,
+				KneeBench.class, new TreeMap<String, String>(), run);
+
+		assertTrue("rate " + curve.rate(), curve.rate() <= KNEE);
+		assertTrue("rate " + curve.rate(), curve.rate() >= KNEE / 1.05);
+		assertTrue(curve.samples().size() <= 12);
+		assertEquals(curve.samples().size(), run.getMeasurements().size());
+		assertTrue(curve.samples().get(0).isPass());
+
+		/** scenario, sample and summary carry the same whole rate */
+		final Set<String> sampled = new TreeSet<String>();
+		for (final MetricsSaturation.Sample sample : curve.samples()) {
+			assertEquals(Math.rint(sample.rate()), sample.rate(), 0);
+			sampled.add(String.valueOf((long) sample.rate()));
+		}
+		final Set<String> executed = new TreeSet<String>();
+		for (final Map.Entry<Scenario, ScenarioResult> entry : run
+				.getMeasurements().entrySet()) {
+			executed.add(entry.getKey().getVariables().get("rate"));
+			assertEquals(String.valueOf((long) curve.rate()), MetricsMeasure
+					.summary(entry.getValue()).get("saturation.rate"));
+		}
+		assertEquals(sampled, executed);
+
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bounds() throws Exception {
+		new MetricsSaturation("rate", 0.4, 100, "latency.p99", 5000);
+	}
+
+	@Test
+	public void runner() throws Exception {
+
+		final Run run = MetricsRunner.execute("TEST", KneeBench.class, 1);
+
+		/** one search per size, knee scales with size */
+		final Map<String, Double> rates = new TreeMap<String, Double>();
+		for (final Map.Entry<Scenario, ScenarioResult> entry : run
+				.getMeasurements().entrySet()) {
+			final Map<String, String> summary = MetricsMeasure.summary(entry
+					.getValue());
+			assertNotNull(summary.get("saturation.pass"));
+			rates.put(entry.getKey().getVariables().get("size"),
+					Double.parseDouble(summary.get("saturation.rate")));
+		}
+		assertEquals(2, rates.size());
+
+		for (final Map.Entry<String, Double> entry : rates.entrySet()) {
+			final int knee = KNEE * Integer.parseInt(entry.getKey());
+			assertTrue("rate " + entry, entry.getValue() <= knee);
+			assertTrue("rate " + entry, entry.getValue() >= knee / 1.02);
+		}
+
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.google.caliper.Result;
+import com.google.caliper.Run;
+
+public class MetricsStoreTest {
+
+	private static Result result(final String name, final String param)
+			throws Exception {
+		final Run run = MetricsRunner.newRun(name);
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.variables().put("param", param);
+		measure.record(MetricsMeasure.RATE, 1, 100);
+		measure.record(MetricsMeasure.TIME, 1, 200);
+		measure.shutdown();
+		measure.appendTo(run);
+		return MetricsRunner.newResult(run);
+	}
+
+	@Test
+	public void appendQueryLoad() throws Exception {
+
+		final File file = File.createTempFile("bench", ".store");
+		file.delete();
+		file.deleteOnExit();
+
+		final MetricsStore store = new MetricsStore(file);
+		final long timeStart = System.currentTimeMillis();
+		store.append(result("alpha", "1"));
+		store.append(result("alpha", "2"));
+		store.append(result("bravo", "1"));
+
+		final MetricsStore reopen = new MetricsStore(file);
+		assertEquals(3, reopen.entries().size());
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("param", "2");
+
+		final List<MetricsStore.Entry> list = reopen.query("alpha", vars,
+				timeStart, Long.MAX_VALUE);
+		assertEquals(1, list.size());
+		assertEquals(2, reopen.query("alpha", null, 0, Long.MAX_VALUE).size());
+		assertEquals(0, reopen.query("alpha", null, 0, timeStart).size());
+
+		final Result result = reopen.load(list.get(0));
+		assertEquals("alpha", result.getRun().getBenchmarkName());
+		assertNotNull(result.getEnvironment().getProperties()
+				.get(MetricsRunner.REVISION));
+
+	}
+
+	@Test
+	public void tornTail() throws Exception {
+
+		final File file = File.createTempFile("bench", ".store");
+		file.delete();
+		file.deleteOnExit();
+
+		final MetricsStore store = new MetricsStore(file);
+		store.append(result("alpha", "1"));
+		final long length = file.length();
+		store.append(result("alpha", "2"));
+
+		final RandomAccessFile access = new RandomAccessFile(file, "rw");
+		access.setLength(file.length() - 10);
+		access.close();
+
+		final MetricsStore reopen = new MetricsStore(file);
+		assertEquals(1, reopen.entries().size());
+		assertEquals(length, file.length());
+
+		reopen.append(result("alpha", "3"));
+		assertEquals(2, new MetricsStore(file).entries().size());
+
+	}
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import com.google.caliper.Param;
+
+public class MetricsTelemetryTest {
+
+	@Test
+	public void stream() throws Exception {
+
+		final File folder = new File("target/telemetry-test");
+		FileUtils.deleteQuietly(folder);
+		final File file = new File(folder, "samples.log");
+
+		final MetricsTelemetry telemetry = new MetricsTelemetry(0, file, 1000,
+				2);
+		telemetry.start();
+
+		final URL url = new URL("http://localhost:"
+				+ telemetry.address().getPort() + "/events");
+		final HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("text/event-stream", connection.getContentType());
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				connection.getInputStream(), "UTF-8"));
+
+		final MetricsMeasure measure = new MetricsMeasure();
+		measure.variables().put("size", "100");
+		measure.listeners().add(telemetry);
+		for (int index = 0; index < 100; index++) {
+			measure.size().value(100 + index);
+			measure.mark();
+		}
+
+		final String line = reader.readLine();
+		assertTrue(line, line.startsWith("data: {\"time\":"));
+		assertTrue(line, line.contains("\"vars\":{\"size\":\"100\"}"));
+		assertTrue(line, line.contains("\"metric\":\"rate\""));
+
+		connection.disconnect();
+		telemetry.stop();
+		measure.shutdown();
+
+		/** 300 lines of about 80 bytes roll over 1000 byte limit */
+		assertTrue(file.exists());
+		assertTrue(new File(folder, "samples.log.1").exists());
+		assertTrue(new File(folder, "samples.log.2").exists());
+		assertFalse(new File(folder, "samples.log.3").exists());
+		assertTrue(file.length() < 1100);
+		assertEquals(0, telemetry.dropped());
+
+	}
+
+	@Test
+	public void sharedClose() throws Exception {
+
+		final File file = new File("target/telemetry-test/shared.log");
+		System.setProperty(MetricsTelemetry.FILE, file.getPath());
+		try {
+
+			final MetricsTelemetry one = MetricsTelemetry.system();
+			final MetricsTelemetry two = MetricsTelemetry.system();
+			assertSame(one, two);
+
+			/** still held by second user */
+			one.close();
+			final MetricsTelemetry three = MetricsTelemetry.system();
+			assertSame(one, three);
+
+			two.close();
+			three.close();
+
+			/** stopped and replaced */
+			final MetricsTelemetry four = MetricsTelemetry.system();
+			assertNotSame(one, four);
+			four.close();
+
+		} finally {
+			System.clearProperty(MetricsTelemetry.FILE);
+		}
+
+		assertTrue(file.exists());
+
+	}
+
+	/**
+	 * Records endpoint seen by each scenario.
+	 */
+	public static class EndpointBench extends MetricsBench {
+
+		static final AtomicInteger created = new AtomicInteger();
+
+		static final Set<Integer> portSet = new ConcurrentSkipListSet<Integer>();
+
+		@Param
+		int index;
+
+		protected static List<String> indexValues() {
+			return MetricsRunner.valueList("1,2,3");
+		}
+
+		@Override
+		protected long warmupLimit() {
+			return 0;
+		}
+
+		@Override
+		protected MetricsTelemetry telemetry() {
+			created.incrementAndGet();
+			final MetricsTelemetry telemetry = new MetricsTelemetry(0, null,
+					0, 0);
+			try {
+				telemetry.start();
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return telemetry;
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			final MetricsTelemetry telemetry = MetricsTelemetry.attached();
+			assertTrue(measure().listeners().contains(telemetry));
+			portSet.add(telemetry.address().getPort());
+			measure().rate().mark();
+			measure().mark();
+		}
+
+	}
+
+	/**
+	 * Endpoint is started once and kept across scenarios.
+	 */
+	@Test
+	public void heldByExecution() throws Exception {
+
+		MetricsRunner.execute("TEST", EndpointBench.class, 1);
+
+		assertEquals(1, EndpointBench.created.get());
+		assertEquals(1, EndpointBench.portSet.size());
+		assertNull(MetricsTelemetry.attached());
+
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.Test;
+
+public class MetricsWorkersTest {
+
+	@Test
+	public void stripes() throws Exception {
+
+		final MetricsMeasure measure = new MetricsMeasure();
+		final AtomicLongArray counts = new AtomicLongArray(4);
+
+		final MetricsWorkers workers = new MetricsWorkers(measure, 4,
+				new MetricsWorkers.Worker() {
+					@Override
+					public void execute(final int index) throws Exception {
+						counts.incrementAndGet(index);
+						Thread.sleep(1);
+					}
+				});
+
+		workers.start();
+		Thread.sleep(100);
+		measure.mark();
+		workers.stop();
+
+		long total = 0;
+		for (int index = 0; index < counts.length(); index++) {
+			assertTrue(counts.get(index) > 0);
+			total += counts.get(index);
+		}
+
+		/** merged at mark: all threads counted, shared meters untouched */
+		final MetricsSeries rate = measure.series(MetricsMeasure.RATE);
+		final MetricsSeries time = measure.series(MetricsMeasure.TIME);
+		assertEquals(1, rate.size());
+		assertTrue(rate.value(0) > 4 * 100);
+		assertTrue(time.value(0) >= 1000 * 1000);
+		assertEquals(0, measure.rate().count());
+		/** per stripe recorders merged into latency histogram */
+		final long count = measure.latency().histogram().getTotalCount();
+		assertTrue("count " + count, count >= 4 * 10 && count <= total);
+
+		measure.shutdown();
+
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void failure() throws Exception {
+
+		final MetricsWorkers workers = new MetricsWorkers(
+				new MetricsMeasure(), 2, new MetricsWorkers.Worker() {
+					@Override
+					public void execute(final int index) throws Exception {
+						throw new IllegalStateException("failure");
+					}
+				});
+
+		workers.start();
+		Thread.sleep(50);
+		workers.stop();
+
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class NetworkProbeTest {
+
+	private static void probe(final NetworkProbe.Protocol protocol,
+			final boolean isBlocking) throws Exception {
+
+		final EchoServer server = new EchoServer(protocol);
+		server.start(new InetSocketAddress("127.0.0.1", 0));
+
+		final NetworkProbe probe = new NetworkProbe(protocol, isBlocking, 1500);
+		probe.open(server.address());
+
+		final MetricsMeasure measure = new MetricsMeasure();
+		for (int index = 0; index < 100; index++) {
+			final long time = probe.probe(measure);
+			assertTrue(protocol + " " + time, time > 0
+					&& time < TimeUnit.SECONDS.toNanos(1));
+		}
+		assertEquals(100, measure.time().count());
+		assertEquals(0, probe.lost());
+
+		probe.close();
+		server.stop();
+		measure.shutdown();
+
+	}
+
+	@Test
+	public void echo() throws Exception {
+		probe(NetworkProbe.Protocol.TCP, true);
+		probe(NetworkProbe.Protocol.TCP, false);
+		probe(NetworkProbe.Protocol.UDP, true);
+		probe(NetworkProbe.Protocol.UDP, false);
+	}
+
+	@Test
+	public void lost() throws Exception {
+
+		final EchoServer server = new EchoServer(NetworkProbe.Protocol.UDP);
+		server.start(new InetSocketAddress("127.0.0.1", 0));
+
+		final UdpProxy proxy = new UdpProxy(server.address(),
+				new TrafficShape(TimeUnit.MILLISECONDS, 0, 0, 0, 1.0, 0.0));
+		proxy.start();
+
+		final NetworkProbe probe = new NetworkProbe(NetworkProbe.Protocol.UDP,
+				true, 64);
+		probe.timeout(20, TimeUnit.MILLISECONDS);
+		probe.open(proxy.address());
+
+		assertEquals(-1, probe.probe());
+		assertEquals(-1, probe.probe());
+		assertEquals(2, probe.lost());
+
+		probe.close();
+		proxy.stop();
+		server.stop();
+
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+public class NetworkUtilTest {
+
+	@Test
+	public void leaseParallel() throws Exception {
+
+		final List<NetworkUtil.Lease> leases = new CopyOnWriteArrayList<NetworkUtil.Lease>();
+
+		final Thread[] threads = new Thread[8];
+		for (int index = 0; index < threads.length; index++) {
+			threads[index] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int count = 1; count <= 4; count++) {
+							leases.add(NetworkUtil.lease("localhost", count));
+						}
+					} catch (final Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[index].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(32, leases.size());
+
+		/** disjoint and bindable */
+		final List<ServerSocket> servers = new CopyOnWriteArrayList<ServerSocket>();
+		try {
+			for (final NetworkUtil.Lease lease : leases) {
+				for (int index = 0; index < lease.count(); index++) {
+					servers.add(new ServerSocket(lease.address(index)
+							.getPort(), 3, lease.address().getAddress()));
+				}
+			}
+		} finally {
+			for (final ServerSocket server : servers) {
+				server.close();
+			}
+		}
+		assertEquals(80, servers.size());
+
+		for (final NetworkUtil.Lease lease : leases) {
+			lease.release();
+			lease.release();
+		}
+
+	}
+
+	@Test
+	public void leaseExhausted() throws Exception {
+
+		final String range = System.getProperty(NetworkUtil.PORT_RANGE);
+		System.setProperty(NetworkUtil.PORT_RANGE, "29990-29993");
+		try {
+
+			final NetworkUtil.Lease lease = NetworkUtil.lease("localhost", 3);
+			try {
+				NetworkUtil.lease("localhost", 2);
+				fail("range is leased");
+			} catch (final IOException e) {
+				/** expected */
+			}
+
+			lease.release();
+			NetworkUtil.lease("localhost", 4).release();
+
+		} finally {
+			if (range == null) {
+				System.clearProperty(NetworkUtil.PORT_RANGE);
+			} else {
+				System.setProperty(NetworkUtil.PORT_RANGE, range);
+			}
+		}
+
+	}
+
+	/**
+	 * Set up leases ports, then fails, so tear down never runs.
+	 */
+	public static class SetupFailureBench extends MetricsBench {
+
+		static volatile NetworkUtil.Lease lease;
+
+		@Override
+		protected void setUp() throws Exception {
+			super.setUp();
+			lease = lease("localhost", 2);
+			throw new IOException("set up failure");
+		}
+
+		public void timeMain(final int reps) throws Exception {
+			fail("workload after failed set up");
+		}
+
+	}
+
+	@Test
+	public void leaseSetupFailure() throws Exception {
+
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("benchmark", "Main");
+
+		try {
+			new LocalEngine().execute(SetupFailureBench.class, vars);
+			fail("failure expected");
+		} catch (final Exception e) {
+			assertTrue(e.toString(), e.toString().contains("set up failure"));
+		}
+
+		assertTrue(SetupFailureBench.lease.isReleased());
+
+	}
+
+}
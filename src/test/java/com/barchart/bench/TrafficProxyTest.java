@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrafficProxyTest {
+
+	private ServerSocket tcpServer;
+	private DatagramSocket udpServer;
+
+	/** echo servers */
+	@Before
+	public void setUp() throws Exception {
+
+		final InetAddress local = InetAddress.getByName("127.0.0.1");
+
+		tcpServer = new ServerSocket(0, 10, local);
+		final Thread tcp = new Thread() {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = tcpServer.accept();
+					final InputStream input = socket.getInputStream();
+					final OutputStream output = socket.getOutputStream();
+					final byte[] array = new byte[4096];
+					int count;
+					while ((count = input.read(array)) >= 0) {
+						output.write(array, 0, count);
+					}
+					socket.close();
+				} catch (final Exception e) {
+				}
+			}
+		};
+		tcp.setDaemon(true);
+		tcp.start();
+
+		udpServer = new DatagramSocket(0, local);
+		final Thread udp = new Thread() {
+			@Override
+			public void run() {
+				try {
+					final byte[] array = new byte[1024];
+					while (true) {
+						final DatagramPacket packet = new DatagramPacket(array,
+								array.length);
+						udpServer.receive(packet);
+						udpServer.send(packet);
+					}
+				} catch (final Exception e) {
+				}
+			}
+		};
+		udp.setDaemon(true);
+		udp.start();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tcpServer.close();
+		udpServer.close();
+	}
+
+	@Test
+	public void tcpLatency() throws Exception {
+
+		final TcpProxy proxy = new TcpProxy(
+				(InetSocketAddress) tcpServer.getLocalSocketAddress(),
+				TrafficShape.latency(20));
+		final InetSocketAddress address = proxy.start();
+
+		final Socket socket = new Socket(address.getAddress(),
+				address.getPort());
+		socket.setTcpNoDelay(true);
+
+		final byte[] sent = new byte[100 * 1000];
+		new Random(1).nextBytes(sent);
+		final byte[] received = new byte[sent.length];
+
+		final long timeStart = System.nanoTime();
+		socket.getOutputStream().write(sent, 0, 10);
+		readFully(socket.getInputStream(), received, 0, 10);
+		final long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- timeStart);
+		assertTrue("rtt " + rtt, rtt >= 40 && rtt < 200);
+
+		socket.getOutputStream().write(sent, 10, sent.length - 10);
+		socket.shutdownOutput();
+		readFully(socket.getInputStream(), received, 10, sent.length - 10);
+		assertTrue(Arrays.equals(sent, received));
+		assertEquals(-1, socket.getInputStream().read());
+
+		socket.close();
+		proxy.stop();
+
+	}
+
+	/**
+	 * Sub millisecond delay is not rounded up to selector granularity.
+	 */
+	@Test
+	public void tcpFineLatency() throws Exception {
+
+		final TcpProxy proxy = new TcpProxy(
+				(InetSocketAddress) tcpServer.getLocalSocketAddress(),
+				new TrafficShape(TimeUnit.MICROSECONDS, 200, 0, 0, 0, 0));
+		final InetSocketAddress address = proxy.start();
+
+		final Socket socket = new Socket(address.getAddress(),
+				address.getPort());
+		socket.setTcpNoDelay(true);
+
+		final byte[] array = new byte[1];
+		final long[] rtt = new long[50];
+		for (int index = 0; index < rtt.length; index++) {
+			final long timeStart = System.nanoTime();
+			socket.getOutputStream().write(array);
+			readFully(socket.getInputStream(), array, 0, 1);
+			rtt[index] = System.nanoTime() - timeStart;
+		}
+		Arrays.sort(rtt);
+
+		/** two proxy hops of 200 micros each, not two milliseconds */
+		final long median = TimeUnit.NANOSECONDS.toMicros(rtt[rtt.length / 2]);
+		assertTrue("median " + median, median >= 400 && median < 1500);
+
+		socket.close();
+		proxy.stop();
+
+	}
+
+	/**
+	 * Target refuses connection; client sees end of stream.
+	 */
+	@Test
+	public void tcpRefused() throws Exception {
+
+		final ServerSocket closed = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"));
+		final InetSocketAddress target = (InetSocketAddress) closed
+				.getLocalSocketAddress();
+		closed.close();
+
+		final TcpProxy proxy = new TcpProxy(target, TrafficShape.NONE);
+		final InetSocketAddress address = proxy.start();
+
+		final Socket socket = new Socket(address.getAddress(),
+				address.getPort());
+		socket.setSoTimeout(5000);
+		try {
+			assertEquals(-1, socket.getInputStream().read());
+		} catch (final SocketException e) {
+			/** reset is fine too */
+		}
+
+		socket.close();
+		proxy.stop();
+
+	}
+
+	@Test
+	public void udpLoss() throws Exception {
+
+		final UdpProxy proxy = new UdpProxy(
+				(InetSocketAddress) udpServer.getLocalSocketAddress(),
+				new TrafficShape(TimeUnit.MILLISECONDS, 1, 0, 0, 0.5, 0.0));
+		final InetSocketAddress address = proxy.start();
+
+		final DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(100);
+
+		final int total = 200;
+		for (int index = 0; index < total; index++) {
+			final byte[] array = new byte[] { (byte) index };
+			socket.send(new DatagramPacket(array, 1, address));
+			Thread.sleep(1);
+		}
+
+		int count = 0;
+		try {
+			while (true) {
+				final DatagramPacket packet = new DatagramPacket(new byte[16],
+						16);
+				socket.receive(packet);
+				count++;
+			}
+		} catch (final SocketTimeoutException e) {
+		}
+
+		/** each way loses half: expect quarter */
+		assertTrue("received " + count, count > total / 8
+				&& count < total / 2);
+
+		socket.close();
+		proxy.stop();
+
+	}
+
+	private static void readFully(final InputStream input, final byte[] array,
+			int offset, int length) throws Exception {
+		while (length > 0) {
+			final int count = input.read(array, offset, length);
+			assertTrue("premature end", count > 0);
+			offset += count;
+			length -= count;
+		}
+	}
+
+}
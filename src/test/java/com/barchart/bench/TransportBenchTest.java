@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.bench;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class TransportBenchTest {
+
+	private static MetricsMeasure execute(final String mode,
+			final String buffer) throws Exception {
+		final Map<String, String> vars = new TreeMap<String, String>();
+		vars.put("benchmark", "Main");
+		vars.put("mode", mode);
+		vars.put("buffer", buffer);
+		vars.put("message", "4096");
+		vars.put("duration", "300");
+		return new LocalEngine().execute(TransportBench.class, vars);
+	}
+
+	@Test
+	public void modes() throws Exception {
+
+		final String[][] list = { { "BLOCKING", "HEAP" },
+				{ "SELECTOR", "DIRECT" }, { "GATHER", "POOLED" },
+				{ "TRANSFER", "DIRECT" } };
+
+		for (final String[] pair : list) {
+
+			final MetricsMeasure measure = execute(pair[0], pair[1]);
+
+			final MetricsSeries rate = measure.series(MetricsMeasure.RATE);
+			assertTrue(pair[0] + " marks", rate.size() > 0);
+			assertTrue(pair[0] + " rate", rate.value(0) > 4096);
+
+			/** sink got every byte */
+			final Map<String, String> summary = measure.summary();
+			assertEquals(summary.get("transport.sent"),
+					summary.get("transport.received"));
+			assertTrue(Long.parseLong(summary.get("transport.sent")) > 0);
+
+		}
+
+	}
+
+}